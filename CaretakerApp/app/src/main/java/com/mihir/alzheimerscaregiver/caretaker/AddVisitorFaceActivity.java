@@ -0,0 +1,171 @@
+package com.mihir.alzheimerscaregiver.caretaker;
+
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.view.View;
+import android.widget.Button;
+import android.widget.EditText;
+import android.widget.ImageView;
+import android.widget.ProgressBar;
+import android.widget.Toast;
+
+import androidx.annotation.Nullable;
+import androidx.appcompat.app.AppCompatActivity;
+
+import com.google.firebase.firestore.Blob;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+// Sends a photo of a visitor to the patient's device, which learns the face from it.
+// The photo travels as a small JPEG in a "faces" document marked pending; the patient's
+// face recognition screen embeds it and replaces the request with the enrolled face.
+public class AddVisitorFaceActivity extends AppCompatActivity {
+
+    private static final int PICK_PHOTO = 1;
+    private static final int MAX_SIDE = 640; // Plenty for a face, and well under Firestore's 1 MB document limit
+
+    private EditText visitorNameEditText;
+    private ImageView photoPreview;
+    private Button choosePhotoButton, saveButton, cancelButton;
+    private ProgressBar progressBar;
+    private FirebaseFirestore db;
+    private String patientId;
+    private byte[] photo;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_add_visitor_face);
+
+        // Get patient ID from intent
+        patientId = getIntent().getStringExtra("patientId");
+        if (patientId == null) {
+            Toast.makeText(this, "Error: Patient ID not found", Toast.LENGTH_SHORT).show();
+            finish();
+            return;
+        }
+
+        db = FirebaseFirestore.getInstance();
+
+        visitorNameEditText = findViewById(R.id.visitorNameEditText);
+        photoPreview = findViewById(R.id.visitorPhotoPreview);
+        choosePhotoButton = findViewById(R.id.choosePhotoButton);
+        saveButton = findViewById(R.id.saveButton);
+        cancelButton = findViewById(R.id.cancelButton);
+        progressBar = findViewById(R.id.progressBar);
+
+        choosePhotoButton.setOnClickListener(v -> {
+            Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+            intent.setType("image/*");
+            startActivityForResult(Intent.createChooser(intent, "Select Picture"), PICK_PHOTO);
+        });
+        saveButton.setOnClickListener(v -> attemptSave());
+        cancelButton.setOnClickListener(v -> finish());
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, @Nullable Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode != PICK_PHOTO || resultCode != RESULT_OK || data == null || data.getData() == null)
+            return;
+        Bitmap bitmap = loadScaled(data.getData());
+        if (bitmap == null) {
+            Toast.makeText(this, "Could not open that photo", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, 85, out);
+        photo = out.toByteArray();
+        photoPreview.setImageBitmap(bitmap);
+    }
+
+    // Decodes at the smallest power-of-two subsample that keeps the long side above MAX_SIDE,
+    // then scales the rest of the way
+    private Bitmap loadScaled(Uri uri) {
+        try {
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            try (InputStream in = getContentResolver().openInputStream(uri)) {
+                BitmapFactory.decodeStream(in, null, options);
+            }
+            int side = Math.max(options.outWidth, options.outHeight);
+            if (side <= 0)
+                return null;
+            int sample = 1;
+            while (side / (sample * 2) >= MAX_SIDE)
+                sample *= 2;
+            options = new BitmapFactory.Options();
+            options.inSampleSize = sample;
+            Bitmap bitmap;
+            try (InputStream in = getContentResolver().openInputStream(uri)) {
+                bitmap = BitmapFactory.decodeStream(in, null, options);
+            }
+            if (bitmap == null)
+                return null;
+            float scale = (float) MAX_SIDE / Math.max(bitmap.getWidth(), bitmap.getHeight());
+            if (scale >= 1)
+                return bitmap;
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap,
+                    Math.round(bitmap.getWidth() * scale), Math.round(bitmap.getHeight() * scale), true);
+            bitmap.recycle();
+            return scaled;
+        } catch (IOException | SecurityException e) {
+            return null;
+        }
+    }
+
+    private void attemptSave() {
+        String name = visitorNameEditText.getText().toString().trim();
+
+        if (TextUtils.isEmpty(name)) {
+            visitorNameEditText.setError("Visitor name is required");
+            visitorNameEditText.requestFocus();
+            return;
+        }
+
+        if (photo == null) {
+            Toast.makeText(this, "Choose a photo of the visitor's face", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        progressBar.setVisibility(View.VISIBLE);
+        saveButton.setEnabled(false);
+
+        // Field names match GallerySync in the patient app
+        Map<String, Object> request = new HashMap<>();
+        request.put("name", name);
+        request.put("photo", Blob.fromBytes(photo));
+        request.put("pending", true);
+        request.put("updatedAt", FieldValue.serverTimestamp());
+        request.put("updatedBy", "caretaker");
+
+        db.collection("patients")
+                .document(patientId)
+                .collection("faces")
+                .add(request)
+                .addOnCompleteListener(task -> {
+                    progressBar.setVisibility(View.GONE);
+                    saveButton.setEnabled(true);
+
+                    if (task.isSuccessful()) {
+                        Toast.makeText(AddVisitorFaceActivity.this,
+                                R.string.visitor_face_sent, Toast.LENGTH_LONG).show();
+                        finish();
+                    } else {
+                        Toast.makeText(AddVisitorFaceActivity.this,
+                                "Failed to send visitor photo: " + task.getException().getMessage(),
+                                Toast.LENGTH_LONG).show();
+                    }
+                });
+    }
+}
@@ -15,7 +15,7 @@ import com.google.firebase.auth.FirebaseAuth;
 public class MainActivity extends AppCompatActivity {
 
     private Button addMedicationButton, addTaskButton, addEmergencyContactButton, logoutButton, viewMmseResultsButton;
-    private Button scheduleMmseTestButton, addCustomQuestionsButton;
+    private Button scheduleMmseTestButton, addCustomQuestionsButton, addVisitorFaceButton;
     private TextView welcomeText;
     private FirebaseAuth mAuth;
     private SharedPreferences prefs;
@@ -50,6 +50,7 @@ public class MainActivity extends AppCompatActivity {
 
     scheduleMmseTestButton = findViewById(R.id.scheduleMmseTestButton);
     addCustomQuestionsButton = findViewById(R.id.addCustomQuestionsButton);
+        addVisitorFaceButton = findViewById(R.id.addVisitorFaceButton);
 
         // Set welcome text
         welcomeText.setText("Welcome! You are linked to Patient ID: " + linkedPatientId);
@@ -95,6 +96,12 @@ public class MainActivity extends AppCompatActivity {
             intent.putExtra("patientId", linkedPatientId);
             startActivity(intent);
         });
+
+        addVisitorFaceButton.setOnClickListener(v -> {
+            Intent intent = new Intent(MainActivity.this, AddVisitorFaceActivity.class);
+            intent.putExtra("patientId", linkedPatientId);
+            startActivity(intent);
+        });
     }
 
     private void logout() {
@@ -0,0 +1,60 @@
+package com.mihir.alzheimerscaregiver.face_core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//All-pairs distance histograms of a gallery of 5 views per person, 192-d, by thread count.
+//5000 prototypes are 12.5 million pairs.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CalibrationBenchmark {
+
+    private static final int DIM = 192;
+    private static final int VIEWS = 5;
+
+    @Param({"500", "2000", "5000"})
+    public int prototypes;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private float[] vectors;
+    private int[] labels;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(5);
+        vectors = new float[prototypes * DIM];
+        labels = new int[prototypes];
+        float[] person = new float[DIM];
+        for (int p = 0; p < prototypes; p++) {
+            if (p % VIEWS == 0)
+                for (int k = 0; k < DIM; k++)
+                    person[k] = (float) random.nextGaussian();
+            labels[p] = p / VIEWS;
+            double norm = 0;
+            for (int k = 0; k < DIM; k++) {
+                float x = person[k] + 0.5f * (float) random.nextGaussian();
+                vectors[p * DIM + k] = x;
+                norm += x * x;
+            }
+            for (int k = 0; k < DIM; k++)
+                vectors[p * DIM + k] /= (float) Math.sqrt(norm);
+        }
+    }
+
+    @Benchmark
+    public ThresholdCalibration allPairs() {
+        return ThresholdCalibration.compute(vectors, labels, prototypes, DIM, threads);
+    }
+}
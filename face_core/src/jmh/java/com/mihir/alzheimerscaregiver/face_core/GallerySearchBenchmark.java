@@ -0,0 +1,95 @@
+package com.mihir.alzheimerscaregiver.face_core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//FaceGallery.findNearest over random identities of 192-dim MobileFaceNet embeddings.
+//Queries are enrolled views plus noise, as a returning visitor would be.
+//search = auto uses the HNSW graph from FaceGallery.DEFAULT_BRUTE_FORCE_LIMIT identities
+//on, brute always scans every centroid.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GallerySearchBenchmark {
+
+    private static final int DIM = 192;
+    private static final int QUERIES = 256;
+    private static final float NOISE = 0.05f;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int identities;
+
+    @Param({"1", "5"})
+    public int prototypes;
+
+    @Param({"auto", "brute"})
+    public String search;
+
+    private FaceGallery gallery;
+    private float[][] queries;
+    private final FaceGallery.Match match = new FaceGallery.Match();
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(3);
+        gallery = new FaceGallery(DIM);
+        if (search.equals("brute"))
+            gallery.setAnnParameters(FaceGallery.DEFAULT_M, FaceGallery.DEFAULT_EF_CONSTRUCTION,
+                    FaceGallery.DEFAULT_EF_SEARCH, Integer.MAX_VALUE);
+        float[][] enrolled = new float[identities][];
+        float[] views = new float[prototypes * DIM];
+        for (int i = 0; i < identities; i++) {
+            float[] base = randomVector(random);
+            for (int p = 0; p < prototypes; p++) {
+                float[] view = p == 0 ? base : jitter(base, 0.5f, random); //Far enough apart to count as novel
+                normalize(view);
+                System.arraycopy(view, 0, views, p * DIM, DIM);
+            }
+            gallery.putPrototypes("person" + i, views, prototypes);
+            enrolled[i] = base;
+        }
+        queries = new float[QUERIES][];
+        for (int q = 0; q < QUERIES; q++)
+            queries[q] = jitter(enrolled[random.nextInt(identities)], NOISE, random);
+    }
+
+    @Benchmark
+    public FaceGallery.Match findNearest() {
+        gallery.findNearest(queries[next++ & (QUERIES - 1)], match);
+        return match;
+    }
+
+    private static float[] randomVector(Random random) {
+        float[] v = new float[DIM];
+        for (int i = 0; i < DIM; i++)
+            v[i] = (float) random.nextGaussian();
+        normalize(v);
+        return v;
+    }
+
+    private static float[] jitter(float[] base, float amount, Random random) {
+        float[] v = new float[DIM];
+        for (int i = 0; i < DIM; i++)
+            v[i] = base[i] + amount * (float) random.nextGaussian() / (float) Math.sqrt(DIM);
+        return v;
+    }
+
+    private static void normalize(float[] v) {
+        double norm = 0;
+        for (float x : v)
+            norm += x * x;
+        float scale = (float) (1 / Math.sqrt(norm));
+        for (int i = 0; i < v.length; i++)
+            v[i] *= scale;
+    }
+}
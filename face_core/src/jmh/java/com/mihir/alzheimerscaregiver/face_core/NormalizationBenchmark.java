@@ -0,0 +1,69 @@
+package com.mihir.alzheimerscaregiver.face_core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//One face into the 112x112 model input: the camera path (crop, rotate, mirror, resize and
+//normalize in one pass) and the photo path (normalize a crop that is already 112x112),
+//for the float model and the int8 model.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NormalizationBenchmark {
+
+    private static final int SIZE = 112;
+    private static final int FRAME_WIDTH = 640, FRAME_HEIGHT = 480;
+    private static final float MEAN = 128f, STD = 128f;
+
+    @Param({"float", "int8"})
+    public String input;
+
+    @Param({"0", "270"})
+    public int rotation;
+
+    private FaceCropSampler sampler;
+    private int[] frame, crop, preview;
+    private ByteBuffer tensor;
+
+    @Setup
+    public void setup() {
+        boolean quantized = input.equals("int8");
+        sampler = quantized
+                ? new FaceCropSampler(SIZE, MEAN, STD, 1 / 128f, 0, true)
+                : new FaceCropSampler(SIZE, MEAN, STD);
+        tensor = ByteBuffer.allocateDirect(SIZE * SIZE * 3 * (quantized ? 1 : 4)).order(ByteOrder.nativeOrder());
+        Random random = new Random(11);
+        frame = new int[FRAME_WIDTH * FRAME_HEIGHT];
+        for (int i = 0; i < frame.length; i++)
+            frame[i] = 0xFF000000 | random.nextInt(0x1000000);
+        crop = new int[SIZE * SIZE];
+        System.arraycopy(frame, 0, crop, 0, crop.length);
+        preview = new int[SIZE * SIZE];
+    }
+
+    @Benchmark
+    public ByteBuffer sampleFace() {
+        tensor.clear();
+        //A 200 px face in the middle of the upright frame
+        sampler.sample(frame, FRAME_WIDTH, FRAME_HEIGHT, 140, 100, 340, 300, rotation, true, tensor, preview);
+        return tensor;
+    }
+
+    @Benchmark
+    public ByteBuffer packCrop() {
+        tensor.clear();
+        sampler.pack(crop, SIZE * SIZE, tensor);
+        return tensor;
+    }
+}
@@ -0,0 +1,70 @@
+package com.mihir.alzheimerscaregiver.face_core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//Camera frame to ARGB at both analysis resolutions of FrameGovernor. pixelStride 2 is the
+//interleaved (NV21-like) chroma layout most devices deliver, 1 the planar one.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class YuvBenchmark {
+
+    @Param({"640x480", "320x240"})
+    public String resolution;
+
+    @Param({"1", "2"})
+    public int chromaPixelStride;
+
+    private final YuvPlane y = new YuvPlane();
+    private final YuvPlane u = new YuvPlane();
+    private final YuvPlane v = new YuvPlane();
+    private int width, height;
+    private int[] argb;
+
+    @Setup
+    public void setup() {
+        String[] size = resolution.split("x");
+        width = Integer.parseInt(size[0]);
+        height = Integer.parseInt(size[1]);
+        Random random = new Random(7);
+
+        byte[] luma = new byte[width * height];
+        random.nextBytes(luma);
+        y.set(luma, width, 1);
+
+        int chromaRow = width / 2 * chromaPixelStride;
+        if (chromaPixelStride == 2) {
+            //One interleaved buffer, U and V offset by one byte, as in NV21
+            byte[] chroma = new byte[chromaRow * height / 2 + 1];
+            random.nextBytes(chroma);
+            v.set(chroma, chromaRow, 2);
+            byte[] shifted = new byte[chroma.length];
+            System.arraycopy(chroma, 1, shifted, 0, chroma.length - 1);
+            u.set(shifted, chromaRow, 2);
+        } else {
+            byte[] cb = new byte[chromaRow * height / 2];
+            byte[] cr = new byte[chromaRow * height / 2];
+            random.nextBytes(cb);
+            random.nextBytes(cr);
+            u.set(cb, chromaRow, 1);
+            v.set(cr, chromaRow, 1);
+        }
+        argb = new int[width * height];
+    }
+
+    @Benchmark
+    public int[] toArgb() {
+        Yuv420.toArgb(y, u, v, width, height, argb);
+        return argb;
+    }
+}
@@ -0,0 +1,109 @@
+package com.mihir.alzheimerscaregiver.face_core;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+//Embeddings of recent face crops, found again by a perceptual hash of the crop so a crop
+//that barely changed (a still patient, the same photo picked twice, a burst of photos)
+//skips the model. The hash is a 64-bit dHash: the crop in grayscale, averaged down to 9x8,
+//one bit per horizontal neighbour pair telling whether brightness rises. Crops whose hashes
+//differ in at most maxHamming bits share an entry. Least recently used entries go first.
+//Only embeddings are kept: the identity follows from findNearest in microseconds and
+//would go stale whenever the gallery changes.
+public class EmbeddingCache {
+
+    public static final int DEFAULT_CAPACITY = 32;
+    public static final int DEFAULT_MAX_HAMMING = 4; //Of 64 bits; noise and a pixel of jitter stay below
+
+    private static final int HASH_WIDTH = 9, HASH_HEIGHT = 8;
+
+    private final int capacity;
+    private final int maxHamming;
+    private final LinkedHashMap<Long, float[]> entries; //Access order, eldest first
+    private long hits, misses;
+
+    public EmbeddingCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_HAMMING);
+    }
+
+    public EmbeddingCache(int capacity, int maxHamming) {
+        this.capacity = capacity;
+        this.maxHamming = maxHamming;
+        entries = new LinkedHashMap<>(capacity * 2, 0.75f, true);
+    }
+
+    //dHash of a size x size ARGB crop
+    public static long hash(int[] argb, int size) {
+        int[] gray = new int[HASH_WIDTH * HASH_HEIGHT];
+        for (int cy = 0; cy < HASH_HEIGHT; cy++) {
+            int y0 = cy * size / HASH_HEIGHT, y1 = (cy + 1) * size / HASH_HEIGHT;
+            for (int cx = 0; cx < HASH_WIDTH; cx++) {
+                int x0 = cx * size / HASH_WIDTH, x1 = (cx + 1) * size / HASH_WIDTH;
+                int sum = 0;
+                for (int y = y0; y < y1; y++) {
+                    for (int x = x0; x < x1; x++) {
+                        int p = argb[y * size + x];
+                        //BT.601 luma in fixed point: (77 R + 150 G + 29 B) / 256
+                        sum += (77 * ((p >> 16) & 0xFF) + 150 * ((p >> 8) & 0xFF) + 29 * (p & 0xFF)) >> 8;
+                    }
+                }
+                gray[cy * HASH_WIDTH + cx] = sum / Math.max(1, (y1 - y0) * (x1 - x0));
+            }
+        }
+        long hash = 0;
+        for (int cy = 0; cy < HASH_HEIGHT; cy++)
+            for (int cx = 0; cx < HASH_WIDTH - 1; cx++)
+                hash = (hash << 1) | (gray[cy * HASH_WIDTH + cx] < gray[cy * HASH_WIDTH + cx + 1] ? 1 : 0);
+        return hash;
+    }
+
+    //Embedding of the closest cached hash within maxHamming bits, null on a miss.
+    //The returned array is shared; copy it before changing it.
+    public synchronized float[] find(long hash) {
+        Long bestKey = null;
+        int best = maxHamming + 1;
+        for (Long key : entries.keySet()) {
+            int bits = Long.bitCount(key ^ hash);
+            if (bits < best) {
+                best = bits;
+                bestKey = key;
+                if (bits == 0)
+                    break;
+            }
+        }
+        if (bestKey == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entries.get(bestKey); //Marks it most recently used
+    }
+
+    //Keeps a copy of embedding
+    public synchronized void put(long hash, float[] embedding) {
+        entries.put(hash, embedding.clone());
+        if (entries.size() > capacity) {
+            Iterator<Long> eldest = entries.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+    }
+
+    //After the model changed
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized long hits() {
+        return hits;
+    }
+
+    public synchronized long misses() {
+        return misses;
+    }
+
+    public synchronized String describe() {
+        long total = hits + misses;
+        return hits + "/" + total + " hits" + (total > 0 ? " (" + (100 * hits / total) + "%)" : "");
+    }
+}
@@ -0,0 +1,113 @@
+package com.mihir.alzheimerscaregiver.face_core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+//Compact binary form of one identity's prototypes for syncing between devices: an 8-byte
+//header (format, prototype count, dimension, model tag) and every value as an IEEE
+//half-precision float, little-endian. A 192-d view is 392 bytes, against several KB as a
+//JSON array of doubles. Half precision keeps about 3 decimal digits, far below the
+//differences between faces; decoded prototypes are normalized again.
+public class FaceBlob {
+
+    public static final int FORMAT = 1;
+    static final int HEADER = 8;
+
+    public final int count;
+    public final int dim;
+    public final int modelTag;    //FaceModel.galleryTag of the model that made the embeddings
+    public final float[] prototypes; //count x dim, unit length
+
+    private FaceBlob(int count, int dim, int modelTag, float[] prototypes) {
+        this.count = count;
+        this.dim = dim;
+        this.modelTag = modelTag;
+        this.prototypes = prototypes;
+    }
+
+    public static int size(int count, int dim) {
+        return HEADER + count * dim * 2;
+    }
+
+    public static byte[] encode(float[] prototypes, int count, int dim, int modelTag) {
+        ByteBuffer out = ByteBuffer.allocate(size(count, dim)).order(ByteOrder.LITTLE_ENDIAN);
+        out.put((byte) FORMAT);
+        out.put((byte) count);
+        out.putShort((short) dim);
+        out.putInt(modelTag);
+        for (int i = 0; i < count * dim; i++)
+            out.putShort(toHalf(prototypes[i]));
+        return out.array();
+    }
+
+    public static FaceBlob decode(byte[] blob) {
+        ByteBuffer in = ByteBuffer.wrap(blob).order(ByteOrder.LITTLE_ENDIAN);
+        if (blob.length < HEADER || in.get() != FORMAT)
+            throw new IllegalArgumentException("Not a face blob");
+        int count = in.get() & 0xFF;
+        int dim = in.getShort() & 0xFFFF;
+        int modelTag = in.getInt();
+        if (blob.length != size(count, dim))
+            throw new IllegalArgumentException("Face blob of " + blob.length + " bytes, expected " + size(count, dim));
+        float[] prototypes = new float[count * dim];
+        for (int p = 0; p < count; p++) {
+            double norm = 0;
+            for (int k = 0; k < dim; k++) {
+                float value = fromHalf(in.getShort());
+                prototypes[p * dim + k] = value;
+                norm += value * value;
+            }
+            float scale = norm > 0 ? (float) (1 / Math.sqrt(norm)) : 0;
+            for (int k = 0; k < dim; k++)
+                prototypes[p * dim + k] *= scale;
+        }
+        return new FaceBlob(count, dim, modelTag, prototypes);
+    }
+
+    //Round to nearest even; overflow becomes infinity, tiny values become subnormal or zero
+    static short toHalf(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = (bits >>> 23) & 0xFF;
+        int mantissa = bits & 0x7FFFFF;
+        if (exponent == 0xFF) //NaN or infinity
+            return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 : 0));
+        int halfExponent = exponent - 127 + 15;
+        if (halfExponent >= 0x1F)
+            return (short) (sign | 0x7C00);
+        if (halfExponent <= 0) {
+            if (halfExponent < -10)
+                return (short) sign;
+            mantissa |= 0x800000; //Implicit leading one
+            int shift = 14 - halfExponent;
+            int half = mantissa >> shift;
+            int rest = mantissa & ((1 << shift) - 1);
+            int halfway = 1 << (shift - 1);
+            if (rest > halfway || (rest == halfway && (half & 1) != 0))
+                half++;
+            return (short) (sign | half);
+        }
+        int half = (halfExponent << 10) | (mantissa >> 13);
+        int rest = mantissa & 0x1FFF;
+        if (rest > 0x1000 || (rest == 0x1000 && (half & 1) != 0))
+            half++; //May carry into the exponent, which is still correct
+        return (short) (sign | half);
+    }
+
+    static float fromHalf(short half) {
+        int bits = half & 0xFFFF;
+        int sign = (bits & 0x8000) << 16;
+        int exponent = (bits >>> 10) & 0x1F;
+        int mantissa = bits & 0x3FF;
+        if (exponent == 0x1F)
+            return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+        if (exponent == 0) {
+            if (mantissa == 0)
+                return Float.intBitsToFloat(sign);
+            //Subnormal: mantissa * 2^-24
+            float value = mantissa * 5.9604645e-8f;
+            return sign != 0 ? -value : value;
+        }
+        return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+    }
+}
@@ -0,0 +1,152 @@
+package com.mihir.alzheimerscaregiver.face_core;
+
+import java.nio.ByteBuffer;
+
+//Samples a face crop straight from an ARGB camera frame into the model input tensor.
+//Crop, rotation, mirroring and resizing are folded into one affine mapping from output
+//pixel to source pixel, so no intermediate Bitmaps are created.
+//Float models get (value - mean) / std per channel. Quantized models get the same value
+//quantized with the input tensor's scale and zero point, through a 256-entry table.
+public class FaceCropSampler {
+
+    private static final int BACKGROUND = 0xFFFFFFFF; //Area outside the frame is white, as before
+
+    private final int size;
+    private final boolean quantized;
+    private final float mean;
+    private final float invStd;
+    private final byte[] quantizedValues; //Input byte for each channel value 0..255
+
+    //Float input
+    public FaceCropSampler(int size, float mean, float std) {
+        this.size = size;
+        this.quantized = false;
+        this.mean = mean;
+        this.invStd = 1.0f / std;
+        this.quantizedValues = null;
+    }
+
+    //uint8 (signed = false) or int8 input with the tensor's quantization parameters.
+    //A scale of 0 means the model has none and takes raw channel values.
+    public FaceCropSampler(int size, float mean, float std, float scale, int zeroPoint, boolean signed) {
+        this.size = size;
+        this.quantized = true;
+        this.mean = mean;
+        this.invStd = 1.0f / std;
+        quantizedValues = new byte[256];
+        int min = signed ? -128 : 0;
+        int max = signed ? 127 : 255;
+        for (int value = 0; value < 256; value++) {
+            int q = scale == 0 ? value + min : Math.round((value - mean) * invStd / scale) + zeroPoint;
+            quantizedValues[value] = (byte) Math.max(min, Math.min(max, q));
+        }
+    }
+
+    //src:             ARGB frame in sensor orientation (srcWidth*srcHeight)
+    //left..bottom:    face box in upright (rotated) coordinates, as reported by ML Kit
+    //rotationDegrees: clockwise rotation that turns the sensor frame upright
+    //mirror:          flip the crop horizontally (front camera)
+    //input:           tensor buffer, written from its current position
+    //pixelsOut:       optional size*size ARGB copy of the crop for the face preview
+    public void sample(int[] src, int srcWidth, int srcHeight,
+                       float left, float top, float right, float bottom,
+                       int rotationDegrees, boolean mirror,
+                       ByteBuffer input, int[] pixelsOut) {
+
+        float sx = (right - left) / size;
+        float sy = (bottom - top) / size;
+
+        //Upright coordinate of output pixel (ox, oy): u = uA*ox + u0, v = vB*oy + v0
+        float uA = mirror ? -sx : sx;
+        float u0 = mirror ? right - 0.5f * sx - 0.5f : left + 0.5f * sx - 0.5f;
+        float vB = sy;
+        float v0 = top + 0.5f * sy - 0.5f;
+
+        //Source coordinate: x = xa*ox + xb*oy + xc, y = ya*ox + yb*oy + yc
+        float xa, xb, xc, ya, yb, yc;
+        switch (((rotationDegrees % 360) + 360) % 360) {
+            case 90:
+                xa = 0;    xb = vB;  xc = v0;
+                ya = -uA;  yb = 0;   yc = srcHeight - 1 - u0;
+                break;
+            case 180:
+                xa = -uA;  xb = 0;   xc = srcWidth - 1 - u0;
+                ya = 0;    yb = -vB; yc = srcHeight - 1 - v0;
+                break;
+            case 270:
+                xa = 0;    xb = -vB; xc = srcWidth - 1 - v0;
+                ya = uA;   yb = 0;   yc = u0;
+                break;
+            default:
+                xa = uA;   xb = 0;   xc = u0;
+                ya = 0;    yb = vB;  yc = v0;
+                break;
+        }
+
+        int out = 0;
+        for (int oy = 0; oy < size; oy++) {
+            float x = xb * oy + xc;
+            float y = yb * oy + yc;
+            for (int ox = 0; ox < size; ox++, x += xa, y += ya) {
+                int pixel = bilinear(src, srcWidth, srcHeight, x, y);
+                if (pixelsOut != null)
+                    pixelsOut[out++] = pixel;
+                put(input, pixel);
+            }
+        }
+    }
+
+    private static int bilinear(int[] src, int w, int h, float x, float y) {
+        if (x <= -1 || y <= -1 || x >= w || y >= h)
+            return BACKGROUND;
+        if (x < 0) x = 0;
+        if (y < 0) y = 0;
+        if (x > w - 1) x = w - 1;
+        if (y > h - 1) y = h - 1;
+
+        int x0 = (int) x;
+        int y0 = (int) y;
+        int x1 = x0 + 1 < w ? x0 + 1 : x0;
+        int y1 = y0 + 1 < h ? y0 + 1 : y0;
+        int fx = (int) ((x - x0) * 256);
+        int fy = (int) ((y - y0) * 256);
+
+        int p00 = src[y0 * w + x0];
+        int p01 = src[y0 * w + x1];
+        int p10 = src[y1 * w + x0];
+        int p11 = src[y1 * w + x1];
+
+        int r = lerp2(p00 >> 16, p01 >> 16, p10 >> 16, p11 >> 16, fx, fy);
+        int g = lerp2(p00 >> 8, p01 >> 8, p10 >> 8, p11 >> 8, fx, fy);
+        int b = lerp2(p00, p01, p10, p11, fx, fy);
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private static int lerp2(int c00, int c01, int c10, int c11, int fx, int fy) {
+        c00 &= 0xFF; c01 &= 0xFF; c10 &= 0xFF; c11 &= 0xFF;
+        int top = (c00 << 8) + (c01 - c00) * fx;
+        int bottom = (c10 << 8) + (c11 - c10) * fx;
+        return ((top << 8) + (bottom - top) * fy + (1 << 15)) >> 16;
+    }
+
+    //Writes count ARGB pixels that are already at model size (imported photos)
+    public void pack(int[] pixels, int count, ByteBuffer input) {
+        for (int i = 0; i < count; i++)
+            put(input, pixels[i]);
+    }
+
+    private void put(ByteBuffer input, int pixel) {
+        int r = (pixel >> 16) & 0xFF;
+        int g = (pixel >> 8) & 0xFF;
+        int b = pixel & 0xFF;
+        if (quantized) {
+            input.put(quantizedValues[r]);
+            input.put(quantizedValues[g]);
+            input.put(quantizedValues[b]);
+        } else {
+            input.putFloat((r - mean) * invStd);
+            input.putFloat((g - mean) * invStd);
+            input.putFloat((b - mean) * invStd);
+        }
+    }
+}
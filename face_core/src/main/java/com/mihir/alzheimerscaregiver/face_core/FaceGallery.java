@@ -0,0 +1,513 @@
+package com.mihir.alzheimerscaregiver.face_core;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+//Enrolled identities. Each name holds up to maxPrototypes L2-normalized embeddings
+//(prototypes: the same person under different light or angles) and their normalized
+//mean, the centroid. The centroids form one row-major matrix with a parallel name index.
+//For unit vectors |a-b|^2 = 2 - 2*a.b, so ranking by squared distance is the same as
+//ranking by dot product, and the squared sum can stop early once a row can no longer
+//beat the current worst candidate.
+//Matching is two-step: the centroids pick the closest candidates identities, then only
+//their prototypes are scored, so a search costs one centroid scan plus at most
+//candidates x maxPrototypes distances however many views were enrolled.
+//Galleries of bruteForceLimit identities or more are searched through an HNSW graph of
+//the centroids instead.
+//Public methods are synchronized: the camera pipeline searches on its own thread while
+//the dialogs edit the gallery on the main thread.
+public class FaceGallery {
+
+    private static final int BLOCK = 16; //Dimensions between early-exit checks
+
+    //Approximate search parameters. efSearch trades recall for latency.
+    public static final int DEFAULT_M = 16;
+    public static final int DEFAULT_EF_CONSTRUCTION = 100;
+    public static final int DEFAULT_EF_SEARCH = 24;
+    public static final int DEFAULT_BRUTE_FORCE_LIMIT = 1024; //Below this the early-exit scan is faster
+
+    //Prototype parameters. A new view is only kept if it is at least novelty away from
+    //every prototype of that identity (Euclidean, 0..2).
+    public static final int DEFAULT_MAX_PROTOTYPES = 5;
+    public static final int DEFAULT_CANDIDATES = 4;
+    public static final float DEFAULT_NOVELTY = 0.4f;
+
+    //Two closest identities of a query. Reused between calls to avoid allocation.
+    public static class Match {
+        public String name;
+        public float distance = Float.MAX_VALUE;
+        public String secondName;
+        public float secondDistance = Float.MAX_VALUE;
+
+        public boolean found() {
+            return name != null;
+        }
+
+        void reset() {
+            name = null;
+            secondName = null;
+            distance = Float.MAX_VALUE;
+            secondDistance = Float.MAX_VALUE;
+        }
+    }
+
+    //What enroll() did with a new view
+    public enum Enrollment {
+        NEW,        //First view of this name
+        ADDED,      //Novel view, kept as another prototype
+        REPLACED,   //Novel view, replaced the most redundant prototype
+        REDUNDANT   //Too close to the prototypes already kept, nothing changed
+    }
+
+    private final int dim;
+    private float[] data;          //Centroids
+    private String[] names;
+    private float[][] prototypes;  //Per row, maxPrototypes x dim
+    private int[] prototypeCounts;
+    private int size;
+    private final HashMap<String, Integer> rows = new HashMap<>();
+    private final float[] query;
+    private final float[] sum;     //Centroid scratch
+
+    private int maxPrototypes = DEFAULT_MAX_PROTOTYPES;
+    private int candidates = DEFAULT_CANDIDATES;
+    private float novelty = DEFAULT_NOVELTY;
+    private int[] candidateRows = new int[DEFAULT_CANDIDATES];
+    private float[] candidateDist = new float[DEFAULT_CANDIDATES];
+    private String[] candidateLabels = new String[DEFAULT_CANDIDATES];
+    private final float[] nearestScratch = new float[DEFAULT_MAX_PROTOTYPES + 1];
+
+    private HnswIndex ann;
+    private int annM = DEFAULT_M;
+    private int annEfConstruction = DEFAULT_EF_CONSTRUCTION;
+    private int annEfSearch = DEFAULT_EF_SEARCH;
+    private int bruteForceLimit = DEFAULT_BRUTE_FORCE_LIMIT;
+
+    public FaceGallery(int dim) {
+        this.dim = dim;
+        this.data = new float[dim * 16];
+        this.names = new String[16];
+        this.prototypes = new float[16][];
+        this.prototypeCounts = new int[16];
+        this.query = new float[dim];
+        this.sum = new float[dim];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized void setAnnParameters(int m, int efConstruction, int efSearch, int bruteForceLimit) {
+        this.annM = m;
+        this.annEfConstruction = efConstruction;
+        this.annEfSearch = efSearch;
+        this.bruteForceLimit = bruteForceLimit;
+        ann = null;
+        updateAnn();
+    }
+
+    public synchronized void setEfSearch(int efSearch) {
+        annEfSearch = efSearch;
+        if (ann != null)
+            ann.setEfSearch(efSearch);
+    }
+
+    //Candidates is how many identities the centroid step passes on to prototype scoring
+    public synchronized void setCandidates(int candidates) {
+        this.candidates = Math.max(2, candidates);
+        candidateRows = new int[this.candidates];
+        candidateDist = new float[this.candidates];
+        candidateLabels = new String[this.candidates];
+    }
+
+    public synchronized void setNovelty(float novelty) {
+        this.novelty = novelty;
+    }
+
+    public synchronized int maxPrototypes() {
+        return maxPrototypes;
+    }
+
+    public synchronized boolean usesAnn() {
+        return ann != null && size >= bruteForceLimit;
+    }
+
+    public synchronized int dim() {
+        return dim;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    public synchronized boolean contains(String name) {
+        return rows.containsKey(name);
+    }
+
+    public synchronized String[] names() {
+        return Arrays.copyOf(names, size);
+    }
+
+    //Normalized centroid of an identity, copied into out
+    public synchronized void getEmbedding(String name, float[] out) {
+        Integer row = rows.get(name);
+        if (row != null)
+            System.arraycopy(data, row * dim, out, 0, dim);
+    }
+
+    public synchronized int prototypeCount(String name) {
+        Integer row = rows.get(name);
+        return row != null ? prototypeCounts[row] : 0;
+    }
+
+    //Copy of the prototypes of an identity, prototypeCount(name) x dim, empty if unknown
+    public synchronized float[] getPrototypes(String name) {
+        Integer row = rows.get(name);
+        if (row == null)
+            return new float[0];
+        return Arrays.copyOf(prototypes[row], prototypeCounts[row] * dim);
+    }
+
+    //Replaces the identity with this single view
+    public synchronized void put(String name, float[] embedding) {
+        int row = rowFor(name);
+        normalize(embedding, prototypes[row], 0, dim);
+        prototypeCounts[row] = 1;
+        rowChanged(name, row);
+    }
+
+    //Same as put for an embedding that is already normalized (stored galleries)
+    public synchronized void putNormalized(String name, float[] embedding) {
+        putPrototypes(name, embedding, 1);
+    }
+
+    //Replaces the identity with count already normalized prototypes (stored galleries)
+    public synchronized void putPrototypes(String name, float[] embeddings, int count) {
+        count = Math.min(count, maxPrototypes);
+        if (count <= 0)
+            return;
+        int row = rowFor(name);
+        System.arraycopy(embeddings, 0, prototypes[row], 0, count * dim);
+        prototypeCounts[row] = count;
+        rowChanged(name, row);
+    }
+
+    //Adds a view of name. It is kept only if it differs from every prototype by at least
+    //novelty; once maxPrototypes are kept, the prototype closest to the others makes room.
+    public synchronized Enrollment enroll(String name, float[] embedding) {
+        Integer existing = rows.get(name);
+        if (existing == null) {
+            put(name, embedding);
+            return Enrollment.NEW;
+        }
+        int row = existing;
+        normalize(embedding, query, 0, dim);
+        float[] kept = prototypes[row];
+        int count = prototypeCounts[row];
+        float limit = novelty * novelty;
+        for (int p = 0; p < count; p++)
+            if (squaredDistance(query, 0, kept, p * dim, limit) < limit)
+                return Enrollment.REDUNDANT;
+
+        if (count < maxPrototypes) {
+            System.arraycopy(query, 0, kept, count * dim, dim);
+            prototypeCounts[row] = count + 1;
+            rowChanged(name, row);
+            return Enrollment.ADDED;
+        }
+
+        //Nearest-neighbour distance of every prototype and of the new view (index count)
+        float[] nearest = nearestScratch;
+        Arrays.fill(nearest, 0, count + 1, Float.MAX_VALUE);
+        for (int a = 0; a < count; a++) {
+            for (int b = a + 1; b < count; b++) {
+                float d = squaredDistance(kept, a * dim, kept, b * dim, Float.MAX_VALUE);
+                nearest[a] = Math.min(nearest[a], d);
+                nearest[b] = Math.min(nearest[b], d);
+            }
+            float d = squaredDistance(kept, a * dim, query, 0, Float.MAX_VALUE);
+            nearest[a] = Math.min(nearest[a], d);
+            nearest[count] = Math.min(nearest[count], d);
+        }
+        int redundant = count;
+        for (int p = 0; p < count; p++)
+            if (nearest[p] < nearest[redundant])
+                redundant = p;
+        if (redundant == count)
+            return Enrollment.REDUNDANT; //Kept prototypes are already more spread out
+        System.arraycopy(query, 0, kept, redundant * dim, dim);
+        rowChanged(name, row);
+        return Enrollment.REPLACED;
+    }
+
+    //Enrolls several views of name as one change: searches see either none or all of them.
+    //Returns how many were kept as prototypes (new, added or replacing one).
+    public synchronized int enrollAll(String name, Iterable<float[]> embeddings) {
+        int kept = 0;
+        for (float[] embedding : embeddings)
+            if (enroll(name, embedding) != Enrollment.REDUNDANT)
+                kept++;
+        return kept;
+    }
+
+    private int rowFor(String name) {
+        Integer row = rows.get(name);
+        if (row == null) {
+            ensureCapacity(size + 1);
+            row = size++;
+            rows.put(name, row);
+            names[row] = name;
+            if (prototypes[row] == null)
+                prototypes[row] = new float[maxPrototypes * dim];
+            prototypeCounts[row] = 0;
+        }
+        return row;
+    }
+
+    private void rowChanged(String name, int row) {
+        updateCentroid(row);
+        if (ann != null)
+            ann.add(name, data, row * dim);
+        updateAnn();
+    }
+
+    //Normalized mean of the prototypes of a row
+    private void updateCentroid(int row) {
+        float[] kept = prototypes[row];
+        int count = prototypeCounts[row];
+        int base = row * dim;
+        if (count == 1) {
+            System.arraycopy(kept, 0, data, base, dim);
+            return;
+        }
+        Arrays.fill(sum, 0);
+        for (int p = 0, offset = 0; p < count; p++, offset += dim)
+            for (int i = 0; i < dim; i++)
+                sum[i] += kept[offset + i];
+        normalize(sum, data, base, dim);
+    }
+
+    //Bulk load of already normalized single-view identities (version 1 gallery files)
+    public synchronized void addAllNormalized(String[] newNames, FloatBuffer rowsIn) {
+        int[] counts = new int[newNames.length];
+        Arrays.fill(counts, 1);
+        addAllNormalized(newNames, counts, rowsIn);
+    }
+
+    //Bulk load of already normalized prototypes (e.g. a mapped gallery file): counts[i]
+    //rows for newNames[i], copied without re-normalizing. Existing names are replaced.
+    public synchronized void addAllNormalized(String[] newNames, int[] counts, FloatBuffer rowsIn) {
+        ensureCapacity(size + newNames.length);
+        for (int n = 0; n < newNames.length; n++) {
+            String name = newNames[n];
+            int row = rowFor(name);
+            int count = Math.min(counts[n], maxPrototypes);
+            rowsIn.get(prototypes[row], 0, count * dim);
+            rowsIn.position(rowsIn.position() + (counts[n] - count) * dim); //Skip views beyond maxPrototypes
+            prototypeCounts[row] = count;
+            updateCentroid(row);
+            if (ann != null)
+                ann.add(name, data, row * dim);
+        }
+        updateAnn();
+    }
+
+    //Writes every identity's prototypes in row (names()) order; counts receives
+    //prototypeCount per row. Caller holds the gallery lock.
+    public void writePrototypes(FloatBuffer out, int[] counts) {
+        for (int row = 0; row < size; row++) {
+            counts[row] = prototypeCounts[row];
+            out.put(prototypes[row], 0, prototypeCounts[row] * dim);
+        }
+    }
+
+    //Total prototypes over all identities. Caller holds the gallery lock.
+    public int prototypeTotal() {
+        int total = 0;
+        for (int row = 0; row < size; row++)
+            total += prototypeCounts[row];
+        return total;
+    }
+
+    public synchronized boolean remove(String name) {
+        Integer row = rows.remove(name);
+        if (row == null)
+            return false;
+        int last = --size;
+        if (row != last) {
+            //Keep rows contiguous by moving the last row into the hole
+            System.arraycopy(data, last * dim, data, row * dim, dim);
+            names[row] = names[last];
+            rows.put(names[row], row);
+            float[] freed = prototypes[row];
+            prototypes[row] = prototypes[last];
+            prototypes[last] = freed; //Reused by the next new identity
+            prototypeCounts[row] = prototypeCounts[last];
+        }
+        names[last] = null;
+        prototypeCounts[last] = 0;
+        if (ann != null)
+            ann.remove(name);
+        updateAnn();
+        return true;
+    }
+
+    //Moves an identity to a new name, replacing any face already saved under it
+    public synchronized boolean rename(String oldName, String newName) {
+        if (!rows.containsKey(oldName) || oldName.equals(newName))
+            return false;
+        remove(newName);
+        Integer row = rows.remove(oldName);
+        rows.put(newName, row);
+        names[row] = newName;
+        if (ann != null) {
+            ann.remove(oldName);
+            ann.add(newName, data, row * dim);
+        }
+        return true;
+    }
+
+    public synchronized void clear() {
+        ann = null;
+        rows.clear();
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(prototypeCounts, 0, size, 0);
+        size = 0;
+    }
+
+    //Finds the two closest identities. Distances are Euclidean between unit vectors (0..2),
+    //to the closest prototype of each identity.
+    public synchronized void findNearest(float[] embedding, Match out) {
+        out.reset();
+        if (size == 0)
+            return;
+        normalize(embedding, query, 0, dim);
+        int found = usesAnn() ? annCandidates() : scanCandidates();
+        if (found == 0)
+            return;
+
+        //Score the candidates by their closest prototype
+        float best = Float.MAX_VALUE, second = Float.MAX_VALUE;
+        int bestRow = -1, secondRow = -1;
+        for (int c = 0; c < found; c++) {
+            int row = candidateRows[c];
+            float[] kept = prototypes[row];
+            float closest = Float.MAX_VALUE;
+            for (int p = 0, count = prototypeCounts[row]; p < count; p++)
+                closest = Math.min(closest, squaredDistance(query, 0, kept, p * dim, Math.min(closest, second)));
+            if (closest < best) {
+                second = best;
+                secondRow = bestRow;
+                best = closest;
+                bestRow = row;
+            } else if (closest < second) {
+                second = closest;
+                secondRow = row;
+            }
+        }
+
+        out.name = names[bestRow];
+        out.distance = (float) Math.sqrt(best);
+        if (secondRow < 0) {
+            //Single enrollment: report it as both neighbours, as before
+            out.secondName = out.name;
+            out.secondDistance = out.distance;
+        } else {
+            out.secondName = names[secondRow];
+            out.secondDistance = (float) Math.sqrt(second);
+        }
+    }
+
+    //Early-exit scan of the centroids, keeping the closest candidates rows sorted by distance
+    private int scanCandidates() {
+        final int k = Math.min(candidates, size);
+        final int[] ids = candidateRows;
+        final float[] dist = candidateDist;
+        int found = 0;
+        float worst = Float.MAX_VALUE; //Distance a row has to beat once k rows are kept
+
+        for (int row = 0, base = 0; row < size; row++, base += dim) {
+            float sum = squaredDistance(query, 0, data, base, worst);
+            if (sum >= worst)
+                continue;
+            int i = found < k ? found++ : k - 1;
+            while (i > 0 && dist[i - 1] > sum) {
+                dist[i] = dist[i - 1];
+                ids[i] = ids[i - 1];
+                i--;
+            }
+            dist[i] = sum;
+            ids[i] = row;
+            if (found == k)
+                worst = dist[k - 1];
+        }
+        return found;
+    }
+
+    private int annCandidates() {
+        int found = ann.search(query, candidates, candidateLabels, candidateDist);
+        int kept = 0;
+        for (int c = 0; c < found; c++) {
+            Integer row = rows.get(candidateLabels[c]);
+            if (row != null)
+                candidateRows[kept++] = row;
+            candidateLabels[c] = null;
+        }
+        return kept;
+    }
+
+    //Squared Euclidean distance, stopping early once it reaches limit
+    private float squaredDistance(float[] a, int aOffset, float[] b, int bOffset, float limit) {
+        float sum = 0;
+        int i = 0;
+        while (i < dim) {
+            int end = Math.min(i + BLOCK, dim);
+            for (; i < end; i++) {
+                float diff = a[aOffset + i] - b[bOffset + i];
+                sum += diff * diff;
+            }
+            if (sum >= limit)
+                break; //Partial distance already too far
+        }
+        return sum;
+    }
+
+    //Builds the graph once the gallery is large enough, drops it again when it shrinks
+    //well below the limit, and rebuilds it when tombstones pile up.
+    private void updateAnn() {
+        if (ann == null) {
+            if (size >= bruteForceLimit)
+                rebuildAnn();
+        } else if (size < bruteForceLimit / 2) {
+            ann = null;
+        } else if (ann.deletedCount() > size / 4) {
+            rebuildAnn();
+        }
+    }
+
+    private void rebuildAnn() {
+        ann = new HnswIndex(dim, annM, annEfConstruction, annEfSearch);
+        for (int row = 0; row < size; row++)
+            ann.add(names[row], data, row * dim);
+    }
+
+    private void ensureCapacity(int rowsNeeded) {
+        if (rowsNeeded <= names.length)
+            return;
+        int capacity = Math.max(rowsNeeded, names.length * 2);
+        data = Arrays.copyOf(data, capacity * dim);
+        names = Arrays.copyOf(names, capacity);
+        prototypes = Arrays.copyOf(prototypes, capacity);
+        prototypeCounts = Arrays.copyOf(prototypeCounts, capacity);
+    }
+
+    static void normalize(float[] src, float[] dst, int offset, int dim) {
+        float norm = 0;
+        for (int i = 0; i < dim; i++)
+            norm += src[i] * src[i];
+        float scale = norm > 0 ? (float) (1.0 / Math.sqrt(norm)) : 0;
+        for (int i = 0; i < dim; i++)
+            dst[offset + i] = src[i] * scale;
+    }
+}
@@ -0,0 +1,368 @@
+package com.mihir.alzheimerscaregiver.face_core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+//Hierarchical Navigable Small World graph over L2-normalized embeddings
+//(Malkov & Yashunin). Used by FaceGallery for large galleries instead of the
+//brute-force scan. Deletes are tombstones: deleted nodes still route searches but are
+//never returned; the owner rebuilds the graph when too many accumulate.
+//Not thread safe; search reuses internal heaps and visit marks.
+public class HnswIndex {
+
+    private final int dim;
+    private final int m;       //Links per node on upper levels
+    private final int maxM0;   //Links per node on level 0
+    private final double levelMult;
+    private final int efConstruction;
+    private int efSearch;
+
+    private float[] vectors;
+    private String[] labels;
+    private int[][][] links;   //links[node][level][0] = count, then neighbour ids
+    private boolean[] deleted;
+    private int count, deletedCount;
+    private int entryPoint = -1, maxLevel = -1;
+    private final HashMap<String, Integer> nodes = new HashMap<>();
+    private final Random random = new Random(42);
+
+    private int[] visited;
+    private int visitTag;
+    private final Heap candidates = new Heap(false);
+    private final Heap results = new Heap(true);
+    private float[] sortedDist = new float[0];
+    private int[] sortedIds = new int[0];
+    private final int[] selected;
+    private final float[] pruneDist;
+    private final int[] pruneIds;
+
+    public HnswIndex(int dim, int m, int efConstruction, int efSearch) {
+        this.dim = dim;
+        this.m = m;
+        this.maxM0 = 2 * m;
+        this.levelMult = 1 / Math.log(m);
+        this.efConstruction = Math.max(efConstruction, m);
+        this.efSearch = efSearch;
+        this.selected = new int[maxM0];
+        this.pruneDist = new float[maxM0 + 1];
+        this.pruneIds = new int[maxM0 + 1];
+        allocate(64);
+    }
+
+    public void setEfSearch(int efSearch) {
+        this.efSearch = efSearch;
+    }
+
+    public int size() {
+        return count - deletedCount;
+    }
+
+    public int deletedCount() {
+        return deletedCount;
+    }
+
+    //vector must already be L2-normalized; it is read from vector[offset .. offset+dim)
+    public void add(String label, float[] vector, int offset) {
+        remove(label);
+        if (count == labels.length)
+            allocate(count * 2);
+
+        int id = count++;
+        System.arraycopy(vector, offset, vectors, id * dim, dim);
+        labels[id] = label;
+        nodes.put(label, id);
+        int level = (int) (-Math.log(1 - random.nextDouble()) * levelMult);
+        links[id] = new int[level + 1][];
+        for (int l = 0; l <= level; l++)
+            links[id][l] = new int[(l == 0 ? maxM0 : m) + 1];
+
+        if (entryPoint < 0) {
+            entryPoint = id;
+            maxLevel = level;
+            return;
+        }
+
+        int cur = entryPoint;
+        for (int l = maxLevel; l > level; l--)
+            cur = greedy(vectors, id * dim, cur, l);
+
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            searchLayer(vectors, id * dim, cur, efConstruction, l);
+            int n = drainSorted();
+            int cap = l == 0 ? maxM0 : m;
+            int kept = selectNeighbours(n, Math.min(m, cap));
+            int[] own = links[id][l];
+            for (int i = 0; i < kept; i++) {
+                own[++own[0]] = selected[i];
+                link(selected[i], id, l);
+            }
+            cur = sortedIds[0];
+        }
+
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = id;
+        }
+    }
+
+    public boolean remove(String label) {
+        Integer id = nodes.remove(label);
+        if (id == null)
+            return false;
+        deleted[id] = true;
+        deletedCount++;
+        if (size() == 0)
+            reset();
+        return true;
+    }
+
+    //Up to k closest live nodes to a normalized query, closest first. Their labels and
+    //Euclidean distances go to labels and distances; returns how many were found.
+    public int search(float[] query, int k, String[] labels, float[] distances) {
+        if (size() == 0)
+            return 0;
+        int cur = entryPoint;
+        for (int l = maxLevel; l > 0; l--)
+            cur = greedy(query, 0, cur, l);
+        searchLayer(query, 0, cur, Math.max(efSearch, k), 0);
+        int n = drainSorted();
+        int found = 0;
+        for (int i = 0; i < n && found < k; i++) {
+            int id = sortedIds[i];
+            if (deleted[id])
+                continue;
+            labels[found] = this.labels[id];
+            //1 - dot for unit vectors equals half the squared Euclidean distance
+            distances[found++] = (float) Math.sqrt(Math.max(0f, 2 * sortedDist[i]));
+        }
+        return found;
+    }
+
+    private float distance(float[] q, int qOffset, int node) {
+        final float[] v = vectors;
+        int base = node * dim;
+        float d0 = 0, d1 = 0, d2 = 0, d3 = 0;
+        int i = 0;
+        for (; i + 3 < dim; i += 4) {
+            d0 += q[qOffset + i] * v[base + i];
+            d1 += q[qOffset + i + 1] * v[base + i + 1];
+            d2 += q[qOffset + i + 2] * v[base + i + 2];
+            d3 += q[qOffset + i + 3] * v[base + i + 3];
+        }
+        for (; i < dim; i++)
+            d0 += q[qOffset + i] * v[base + i];
+        return 1 - (d0 + d1 + d2 + d3);
+    }
+
+    private int greedy(float[] q, int qOffset, int cur, int level) {
+        float curDist = distance(q, qOffset, cur);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int[] list = links[cur][level];
+            for (int i = 1; i <= list[0]; i++) {
+                float d = distance(q, qOffset, list[i]);
+                if (d < curDist) {
+                    curDist = d;
+                    cur = list[i];
+                    changed = true;
+                }
+            }
+        }
+        return cur;
+    }
+
+    //Leaves the ef closest nodes found on this level in the results heap
+    private void searchLayer(float[] q, int qOffset, int entry, int ef, int level) {
+        if (++visitTag == Integer.MAX_VALUE) {
+            Arrays.fill(visited, 0);
+            visitTag = 1;
+        }
+        candidates.clear();
+        results.clear();
+        float d = distance(q, qOffset, entry);
+        candidates.push(d, entry);
+        results.push(d, entry);
+        visited[entry] = visitTag;
+
+        while (candidates.size() > 0) {
+            if (results.size() >= ef && candidates.peekDist() > results.peekDist())
+                break;
+            int c = candidates.peekId();
+            candidates.pop();
+            int[] list = links[c][level];
+            for (int i = 1; i <= list[0]; i++) {
+                int e = list[i];
+                if (visited[e] == visitTag)
+                    continue;
+                visited[e] = visitTag;
+                float de = distance(q, qOffset, e);
+                if (results.size() < ef || de < results.peekDist()) {
+                    candidates.push(de, e);
+                    results.push(de, e);
+                    if (results.size() > ef)
+                        results.pop();
+                }
+            }
+        }
+    }
+
+    //Moves the results heap into sortedIds/sortedDist, closest first
+    private int drainSorted() {
+        int n = results.size();
+        if (sortedIds.length < n) {
+            sortedIds = new int[n * 2];
+            sortedDist = new float[n * 2];
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            sortedIds[i] = results.peekId();
+            sortedDist[i] = results.peekDist();
+            results.pop();
+        }
+        return n;
+    }
+
+    //Neighbour selection heuristic: keep a candidate only if it is closer to the new node
+    //than to any already selected neighbour, then top up with the closest leftovers.
+    private int selectNeighbours(int n, int limit) {
+        int kept = 0;
+        for (int i = 0; i < n && kept < limit; i++) {
+            int c = sortedIds[i];
+            boolean good = true;
+            for (int j = 0; j < kept; j++) {
+                if (distance(vectors, selected[j] * dim, c) < sortedDist[i]) {
+                    good = false;
+                    break;
+                }
+            }
+            if (good)
+                selected[kept++] = c;
+        }
+        for (int i = 0; i < n && kept < limit; i++) {
+            int c = sortedIds[i];
+            boolean present = false;
+            for (int j = 0; j < kept; j++)
+                present |= selected[j] == c;
+            if (!present)
+                selected[kept++] = c;
+        }
+        return kept;
+    }
+
+    //Adds a back link from node to id, dropping the farthest link when the list is full
+    private void link(int node, int id, int level) {
+        int[] list = links[node][level];
+        int cap = list.length - 1;
+        if (list[0] < cap) {
+            list[++list[0]] = id;
+            return;
+        }
+        int n = 0;
+        for (int i = 1; i <= cap; i++) {
+            pruneIds[n] = list[i];
+            pruneDist[n++] = distance(vectors, node * dim, list[i]);
+        }
+        pruneIds[n] = id;
+        pruneDist[n++] = distance(vectors, node * dim, id);
+        int worst = 0;
+        for (int i = 1; i < n; i++)
+            if (pruneDist[i] > pruneDist[worst])
+                worst = i;
+        if (pruneIds[worst] == id)
+            return;
+        for (int i = 1; i <= cap; i++)
+            if (list[i] == pruneIds[worst]) {
+                list[i] = id;
+                return;
+            }
+    }
+
+    private void reset() {
+        count = 0;
+        deletedCount = 0;
+        entryPoint = -1;
+        maxLevel = -1;
+        Arrays.fill(labels, null);
+        Arrays.fill(deleted, false);
+        Arrays.fill(links, null);
+    }
+
+    private void allocate(int capacity) {
+        vectors = vectors == null ? new float[capacity * dim] : Arrays.copyOf(vectors, capacity * dim);
+        labels = labels == null ? new String[capacity] : Arrays.copyOf(labels, capacity);
+        links = links == null ? new int[capacity][][] : Arrays.copyOf(links, capacity);
+        deleted = deleted == null ? new boolean[capacity] : Arrays.copyOf(deleted, capacity);
+        visited = visited == null ? new int[capacity] : Arrays.copyOf(visited, capacity);
+    }
+
+    //Binary heap of (distance, id); max-heap when max is true
+    private static class Heap {
+        private final boolean max;
+        private float[] dist = new float[64];
+        private int[] ids = new int[64];
+        private int size;
+
+        Heap(boolean max) {
+            this.max = max;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        float peekDist() {
+            return dist[0];
+        }
+
+        int peekId() {
+            return ids[0];
+        }
+
+        void push(float d, int id) {
+            if (size == dist.length) {
+                dist = Arrays.copyOf(dist, size * 2);
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (!before(d, dist[parent]))
+                    break;
+                dist[i] = dist[parent];
+                ids[i] = ids[parent];
+                i = parent;
+            }
+            dist[i] = d;
+            ids[i] = id;
+        }
+
+        void pop() {
+            float d = dist[--size];
+            int id = ids[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && before(dist[child + 1], dist[child]))
+                    child++;
+                if (!before(dist[child], d))
+                    break;
+                dist[i] = dist[child];
+                ids[i] = ids[child];
+                i = child;
+            }
+            dist[i] = d;
+            ids[i] = id;
+        }
+
+        private boolean before(float a, float b) {
+            return max ? a > b : a < b;
+        }
+    }
+}
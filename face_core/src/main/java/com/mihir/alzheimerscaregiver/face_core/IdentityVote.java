@@ -0,0 +1,96 @@
+package com.mihir.alzheimerscaregiver.face_core;
+
+//Decides the identity of one tracked face from its last WINDOW gallery matches instead of
+//the latest one alone, so a distance hovering around the threshold does not flip the
+//label between a name and "Unknown".
+//Every match gives a distance to its nearest and second nearest identity; any other
+//identity is at least the second distance away. An identity's score is the exponentially
+//weighted mean of those distances over the window, newest match weighing most.
+//Hysteresis around the threshold: a name is adopted once its score is below
+//threshold - margin and kept until it rises above threshold + margin or another name
+//scores better by more than margin. The first match decides on the plain threshold.
+//Not thread safe; FaceTracker updates it under its own lock.
+public class IdentityVote {
+
+    public static final String UNKNOWN = "Unknown";
+    public static final int WINDOW = 8;
+    public static final float DECAY = 0.7f;    //Weight of a match relative to the next newer one
+    public static final float MARGIN = 0.05f;  //Hysteresis half-width, in distance units
+    private static final float NO_MATCH = 2f;  //Largest distance between unit vectors
+
+    private final String[] names = new String[WINDOW];
+    private final float[] distances = new float[WINDOW];
+    private final String[] secondNames = new String[WINDOW];
+    private final float[] secondDistances = new float[WINDOW];
+    private int count, head; //head: slot of the newest match
+    private String decided;  //null until the first match, then a name or UNKNOWN
+    private String best;     //Best scoring identity of the window, scratch for add()
+    private float bestScore;
+
+    //Adds a match (name null when the gallery was empty) and returns the decided label
+    public String add(FaceGallery.Match match, float threshold) {
+        head = (head + 1) % WINDOW;
+        names[head] = match.name;
+        distances[head] = match.found() ? match.distance : NO_MATCH;
+        secondNames[head] = match.secondName;
+        secondDistances[head] = match.found() ? match.secondDistance : NO_MATCH;
+        if (count < WINDOW)
+            count++;
+
+        if (!match.found()) {
+            decided = null; //Nothing enrolled, no label at all
+            return null;
+        }
+
+        best = null;
+        bestScore = Float.MAX_VALUE;
+        for (int k = 0, slot = head; k < count; k++, slot = (slot + WINDOW - 1) % WINDOW) {
+            consider(names[slot]);
+            consider(secondNames[slot]);
+        }
+
+        if (decided == null) {
+            decided = best != null && bestScore < threshold ? best : UNKNOWN;
+        } else if (decided.equals(UNKNOWN)) {
+            if (best != null && bestScore < threshold - MARGIN)
+                decided = best;
+        } else {
+            float current = score(decided);
+            if (current > threshold + MARGIN)
+                decided = best != null && bestScore < threshold - MARGIN ? best : UNKNOWN;
+            else if (best != null && !best.equals(decided) && bestScore < current - MARGIN)
+                decided = best;
+        }
+        return decided;
+    }
+
+    public String decided() {
+        return decided;
+    }
+
+    private void consider(String candidate) {
+        if (candidate == null || candidate.equals(best))
+            return;
+        float score = score(candidate);
+        if (score < bestScore) {
+            bestScore = score;
+            best = candidate;
+        }
+    }
+
+    //Exponentially weighted mean distance of an identity over the window
+    private float score(String name) {
+        float sum = 0, weights = 0, weight = 1;
+        for (int k = 0, slot = head; k < count; k++, slot = (slot + WINDOW - 1) % WINDOW) {
+            float d;
+            if (name.equals(names[slot]))
+                d = distances[slot];
+            else
+                d = secondDistances[slot]; //Exact for the second nearest, a lower bound for the rest
+            sum += weight * d;
+            weights += weight;
+            weight *= DECAY;
+        }
+        return sum / weights;
+    }
+}
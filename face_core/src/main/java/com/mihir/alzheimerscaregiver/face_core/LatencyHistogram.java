@@ -0,0 +1,104 @@
+package com.mihir.alzheimerscaregiver.face_core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//Lock-free histogram of durations in microseconds with fixed buckets: exact below
+//32 us, then 8 buckets per power of two, so a percentile is off by at most 1/16 of its
+//value. Recording is a few atomic increments and never allocates, so any pipeline
+//thread can record while the main thread reads. Reads are not a consistent snapshot;
+//a percentile may miss values recorded while it is computed.
+public class LatencyHistogram {
+
+    private static final int LINEAR = 32;       //Buckets of one microsecond
+    private static final int SUB_BITS = 3;      //8 buckets per power of two above that
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int LINEAR_BITS = 5;   //log2(LINEAR)
+    private static final int MAX_BIT = 30;      //~18 minutes; longer values land in the last bucket
+    public static final int BUCKETS = LINEAR + (MAX_BIT - LINEAR_BITS + 1) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void recordNanos(long nanos) {
+        record(Math.max(0, nanos / 1000));
+    }
+
+    public void record(long micros) {
+        counts.incrementAndGet(bucket(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        max.getAndAccumulate(micros, Math::max);
+    }
+
+    public long count() {
+        return count.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public long mean() {
+        long n = count.get();
+        return n > 0 ? sum.get() / n : 0;
+    }
+
+    //Middle of the bucket holding the p-th fraction (0..1) of recorded values, 0 if empty
+    public long percentile(double p) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += counts.get(i);
+        if (total == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return (lowerBound(i) + upperBound(i) - 1) / 2;
+        }
+        return max.get();
+    }
+
+    public long bucketCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    static int bucket(long micros) {
+        if (micros < LINEAR)
+            return (int) micros;
+        int msb = 63 - Long.numberOfLeadingZeros(micros);
+        if (msb > MAX_BIT)
+            return BUCKETS - 1;
+        int sub = (int) (micros >>> (msb - SUB_BITS)) & (SUB - 1);
+        return LINEAR + (msb - LINEAR_BITS) * SUB + sub;
+    }
+
+    //Smallest value of a bucket, in microseconds
+    public static long lowerBound(int bucket) {
+        if (bucket < LINEAR)
+            return bucket;
+        int msb = LINEAR_BITS + (bucket - LINEAR) / SUB;
+        int sub = (bucket - LINEAR) % SUB;
+        return (long) (SUB + sub) << (msb - SUB_BITS);
+    }
+
+    //First value past a bucket, in microseconds
+    public static long upperBound(int bucket) {
+        if (bucket < LINEAR)
+            return bucket + 1;
+        int msb = LINEAR_BITS + (bucket - LINEAR) / SUB;
+        return lowerBound(bucket) + (1L << (msb - SUB_BITS));
+    }
+}
@@ -0,0 +1,181 @@
+package com.mihir.alzheimerscaregiver.face_core;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Distance distributions of every pair of enrolled prototypes: genuine pairs (two views of
+//the same person) and impostor pairs (two different people), from which the false-accept
+//and false-reject rates of any recognition threshold follow.
+//All n*(n-1)/2 pairs are computed, in BLOCK x BLOCK tiles so both tiles stay in cache,
+//spread over threads that take tiles from a shared counter. Only histograms of the
+//distances are kept (BINS bins over 0..2, the range of unit vectors), never the matrix.
+//A face is accepted when its distance is below the threshold.
+public class ThresholdCalibration {
+
+    public static final int BINS = 2000;
+    public static final float MAX_DISTANCE = 2f;
+    static final int BLOCK = 64;
+
+    private final long[] genuine = new long[BINS];
+    private final long[] impostor = new long[BINS];
+    private final long genuineTotal, impostorTotal;
+    private final long[] genuineBelow = new long[BINS + 1];  //Pairs in bins [0, k)
+    private final long[] impostorBelow = new long[BINS + 1];
+
+    private ThresholdCalibration(long[][][] partials) {
+        for (long[][] partial : partials) {
+            for (int b = 0; b < BINS; b++) {
+                genuine[b] += partial[0][b];
+                impostor[b] += partial[1][b];
+            }
+        }
+        for (int b = 0; b < BINS; b++) {
+            genuineBelow[b + 1] = genuineBelow[b] + genuine[b];
+            impostorBelow[b + 1] = impostorBelow[b] + impostor[b];
+        }
+        genuineTotal = genuineBelow[BINS];
+        impostorTotal = impostorBelow[BINS];
+    }
+
+    //Every prototype of the gallery, labelled with its identity
+    public static ThresholdCalibration compute(FaceGallery gallery, int threads) {
+        float[] vectors;
+        int[] labels;
+        int dim = gallery.dim();
+        synchronized (gallery) {
+            int[] counts = new int[gallery.size()];
+            int total = gallery.prototypeTotal();
+            FloatBuffer buffer = FloatBuffer.allocate(total * dim);
+            gallery.writePrototypes(buffer, counts);
+            vectors = buffer.array();
+            labels = new int[total];
+            for (int row = 0, k = 0; row < counts.length; row++)
+                for (int p = 0; p < counts[row]; p++)
+                    labels[k++] = row;
+        }
+        return compute(vectors, labels, labels.length, dim, threads);
+    }
+
+    //vectors: count unit vectors of dim floats, one after another; labels: identity of each.
+    //The calling thread works as one of the threads.
+    public static ThresholdCalibration compute(float[] vectors, int[] labels, int count, int dim, int threads) {
+        int tiles = (count + BLOCK - 1) / BLOCK;
+        int tasks = tiles * (tiles + 1) / 2; //Upper triangle, diagonal included
+        AtomicInteger next = new AtomicInteger();
+        long[][][] partials = new long[Math.max(1, threads)][2][BINS];
+        Thread[] helpers = new Thread[partials.length - 1];
+        for (int t = 0; t < helpers.length; t++) {
+            long[][] partial = partials[t + 1];
+            helpers[t] = new Thread(() -> takeTiles(vectors, labels, count, dim, tiles, tasks, next, partial), "ThresholdCalibration");
+            helpers[t].start();
+        }
+        takeTiles(vectors, labels, count, dim, tiles, tasks, next, partials[0]);
+        for (Thread helper : helpers) {
+            try {
+                helper.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return new ThresholdCalibration(partials);
+    }
+
+    private static void takeTiles(float[] vectors, int[] labels, int count, int dim,
+                                  int tiles, int tasks, AtomicInteger next, long[][] partial) {
+        float[] packed = new float[dim * BLOCK];
+        float[] dots = new float[BLOCK];
+        for (int task; (task = next.getAndIncrement()) < tasks; ) {
+            //Task index to tile (bi, bj), bj >= bi, row by row
+            int bi = 0, rowTasks = tiles;
+            while (task >= rowTasks) {
+                task -= rowTasks;
+                bi++;
+                rowTasks--;
+            }
+            tile(vectors, labels, count, dim, bi * BLOCK, (bi + task) * BLOCK, packed, dots, partial);
+        }
+    }
+
+    //Pairs (i, j) with i in [rowStart, rowStart + BLOCK), j in [colStart, colStart + BLOCK), j > i.
+    //The column tile is packed transposed (dim x BLOCK) so a row's dot products with all
+    //columns are BLOCK-wide multiply-adds along contiguous memory, which the JIT vectorizes.
+    private static void tile(float[] v, int[] labels, int count, int dim, int rowStart, int colStart,
+                             float[] packed, float[] dots, long[][] partial) {
+        long[] genuine = partial[0], impostor = partial[1];
+        int rowEnd = Math.min(rowStart + BLOCK, count);
+        int cols = Math.min(colStart + BLOCK, count) - colStart;
+        for (int c = 0; c < cols; c++) {
+            int b = (colStart + c) * dim;
+            for (int k = 0; k < dim; k++)
+                packed[k * BLOCK + c] = v[b + k];
+        }
+        float scale = BINS / MAX_DISTANCE;
+        for (int i = rowStart; i < rowEnd; i++) {
+            int a = i * dim;
+            Arrays.fill(dots, 0f);
+            for (int k = 0; k < dim; k++) {
+                float x = v[a + k];
+                int base = k * BLOCK;
+                for (int c = 0; c < BLOCK; c++)
+                    dots[c] += x * packed[base + c];
+            }
+            for (int c = Math.max(0, i + 1 - colStart); c < cols; c++) {
+                //|a - b| of unit vectors
+                float distance = (float) Math.sqrt(Math.max(0f, 2f - 2f * dots[c]));
+                int bin = Math.min(BINS - 1, (int) (distance * scale));
+                if (labels[i] == labels[colStart + c])
+                    genuine[bin]++;
+                else
+                    impostor[bin]++;
+            }
+        }
+    }
+
+    public long genuinePairs() {
+        return genuineTotal;
+    }
+
+    public long impostorPairs() {
+        return impostorTotal;
+    }
+
+    //Share of impostor pairs closer than threshold (accepted as the wrong person)
+    public float falseAcceptRate(float threshold) {
+        return impostorTotal == 0 ? 0 : (float) impostorBelow[bin(threshold)] / impostorTotal;
+    }
+
+    //Share of genuine pairs at or beyond threshold (not recognized)
+    public float falseRejectRate(float threshold) {
+        return genuineTotal == 0 ? 0 : 1f - (float) genuineBelow[bin(threshold)] / genuineTotal;
+    }
+
+    //Largest threshold whose false-accept rate does not exceed targetFar
+    public float thresholdForFar(float targetFar) {
+        long allowed = (long) Math.floor(targetFar * impostorTotal);
+        int k = 0;
+        while (k < BINS && impostorBelow[k + 1] <= allowed)
+            k++;
+        return k * MAX_DISTANCE / BINS;
+    }
+
+    //Threshold where false accepts and false rejects are closest to equal
+    public float equalErrorThreshold() {
+        int best = 0;
+        float bestGap = Float.MAX_VALUE;
+        for (int k = 0; k <= BINS; k++) {
+            float threshold = k * MAX_DISTANCE / BINS;
+            float gap = Math.abs(falseAcceptRate(threshold) - falseRejectRate(threshold));
+            if (gap < bestGap) {
+                bestGap = gap;
+                best = k;
+            }
+        }
+        return best * MAX_DISTANCE / BINS;
+    }
+
+    //Bin edge at or below threshold, 0..BINS
+    private static int bin(float threshold) {
+        return Math.max(0, Math.min(BINS, (int) (threshold * BINS / MAX_DISTANCE)));
+    }
+}
@@ -0,0 +1,129 @@
+package com.mihir.alzheimerscaregiver.face_core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//Collapses per-frame recognitions into visits: one open visit per identity, extended by
+//every sighting and closed once the identity has not been seen for gapMs. A visit keeps
+//its first and last sighting, the best (smallest) distance and the number of sightings,
+//so an hour in front of the camera is one record instead of thousands of frames.
+//A visit running longer than MAX_VISIT_MS is closed and the next sighting begins a new
+//one; this bounds how long before it is written a visit can have started, which the
+//visit log's range queries rely on.
+//Not thread safe.
+public class VisitSessions {
+
+    public static final long DEFAULT_GAP_MS = 5 * 60 * 1000;
+    public static final long MAX_VISIT_MS = 6 * 60 * 60 * 1000;
+
+    public static class Visit {
+        public final String name;
+        public long firstSeen, lastSeen; //Epoch ms
+        public float bestDistance;
+        public int sightings;
+
+        public Visit(String name, long firstSeen, long lastSeen, float bestDistance, int sightings) {
+            this.name = name;
+            this.firstSeen = firstSeen;
+            this.lastSeen = lastSeen;
+            this.bestDistance = bestDistance;
+            this.sightings = sightings;
+        }
+
+        public long durationMs() {
+            return lastSeen - firstSeen;
+        }
+
+        //Time of this visit inside [from, to)
+        public long overlapMs(long from, long to) {
+            return Math.max(0, Math.min(lastSeen, to) - Math.max(firstSeen, from));
+        }
+    }
+
+    //One person's visits within a time range
+    public static class Total {
+        public final String name;
+        public int visits;
+        public long timeMs;   //Visit time inside the range
+        public long firstSeen = Long.MAX_VALUE, lastSeen = Long.MIN_VALUE;
+        public float bestDistance = Float.MAX_VALUE;
+
+        Total(String name) {
+            this.name = name;
+        }
+    }
+
+    private final long gapMs;
+    private final Map<String, Visit> open = new HashMap<>();
+
+    public VisitSessions() {
+        this(DEFAULT_GAP_MS);
+    }
+
+    public VisitSessions(long gapMs) {
+        this.gapMs = gapMs;
+    }
+
+    //A sighting of name at time now. A visit this ends (gap or length) is added to closed.
+    public void seen(String name, float distance, long now, List<Visit> closed) {
+        Visit visit = open.get(name);
+        if (visit != null && (now - visit.lastSeen > gapMs || now - visit.firstSeen > MAX_VISIT_MS)) {
+            open.remove(name);
+            closed.add(visit);
+            visit = null;
+        }
+        if (visit == null) {
+            open.put(name, new Visit(name, now, now, distance, 1));
+            return;
+        }
+        visit.lastSeen = Math.max(visit.lastSeen, now);
+        visit.bestDistance = Math.min(visit.bestDistance, distance);
+        visit.sightings++;
+    }
+
+    //Closes the visits whose identity has not been seen for gapMs
+    public void expire(long now, List<Visit> closed) {
+        Iterator<Visit> visits = open.values().iterator();
+        while (visits.hasNext()) {
+            Visit visit = visits.next();
+            if (now - visit.lastSeen > gapMs) {
+                visits.remove();
+                closed.add(visit);
+            }
+        }
+    }
+
+    //When recognition stops
+    public void closeAll(List<Visit> closed) {
+        closed.addAll(open.values());
+        open.clear();
+    }
+
+    public int openCount() {
+        return open.size();
+    }
+
+    //Per person totals of the visits overlapping [from, to), most time first
+    public static List<Total> totals(List<Visit> visits, long from, long to) {
+        Map<String, Total> byName = new LinkedHashMap<>();
+        for (Visit visit : visits) {
+            if (visit.lastSeen < from || visit.firstSeen >= to)
+                continue;
+            Total total = byName.get(visit.name);
+            if (total == null)
+                byName.put(visit.name, total = new Total(visit.name));
+            total.visits++;
+            total.timeMs += visit.overlapMs(from, to);
+            total.firstSeen = Math.min(total.firstSeen, visit.firstSeen);
+            total.lastSeen = Math.max(total.lastSeen, visit.lastSeen);
+            total.bestDistance = Math.min(total.bestDistance, visit.bestDistance);
+        }
+        List<Total> totals = new ArrayList<>(byName.values());
+        totals.sort((a, b) -> Long.compare(b.timeMs, a.timeMs));
+        return totals;
+    }
+}
@@ -0,0 +1,54 @@
+package com.mihir.alzheimerscaregiver.face_core;
+
+//YUV_420_888 to ARGB, straight from the three planes (no NV21/JPEG round trip).
+//BT.601 full range, the same coefficients as JPEG/YuvImage, in 16.16 fixed point.
+public class Yuv420 {
+
+    private static final int R_V = 91881;  //1.402
+    private static final int G_U = 22554;  //0.344136
+    private static final int G_V = 46802;  //0.714136
+    private static final int B_U = 116130; //1.772
+    private static final int ROUND = 1 << 15;
+
+    //Writes width*height ARGB pixels, row-major, to out
+    public static void toArgb(YuvPlane y, YuvPlane u, YuvPlane v, int width, int height, int[] out) {
+        final byte[] yData = y.data, uData = u.data, vData = v.data;
+        final int yRowStride = y.rowStride, yPixelStride = y.pixelStride;
+        final int uRowStride = u.rowStride, uPixelStride = u.pixelStride;
+        final int vRowStride = v.rowStride, vPixelStride = v.pixelStride;
+        int pos = 0;
+        for (int row = 0; row < height; row++) {
+            int yRow = row * yRowStride;
+            int uRow = (row >> 1) * uRowStride;
+            int vRow = (row >> 1) * vRowStride;
+            for (int col = 0; col < width; col += 2) {
+                int cb = (uData[uRow + (col >> 1) * uPixelStride] & 0xFF) - 128;
+                int cr = (vData[vRow + (col >> 1) * vPixelStride] & 0xFF) - 128;
+
+                //Chroma terms are shared by the two horizontal pixels of a 2x2 block
+                int dr = R_V * cr + ROUND;
+                int dg = -G_U * cb - G_V * cr + ROUND;
+                int db = B_U * cb + ROUND;
+
+                int lum = (yData[yRow + col * yPixelStride] & 0xFF) << 16;
+                out[pos++] = pack(lum + dr, lum + dg, lum + db);
+
+                if (col + 1 < width) {
+                    lum = (yData[yRow + (col + 1) * yPixelStride] & 0xFF) << 16;
+                    out[pos++] = pack(lum + dr, lum + dg, lum + db);
+                }
+            }
+        }
+    }
+
+    private static int pack(int r, int g, int b) {
+        r = clamp(r >> 16);
+        g = clamp(g >> 16);
+        b = clamp(b >> 16);
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private static int clamp(int c) {
+        return c < 0 ? 0 : (c > 255 ? 255 : c);
+    }
+}
@@ -0,0 +1,18 @@
+package com.mihir.alzheimerscaregiver.face_core;
+
+//One plane of a YUV_420_888 image without the Android types: its bytes, the distance
+//between rows and the distance between neighbouring samples of a row (1 for planar
+//layouts, 2 when U and V are interleaved as in NV21/NV12).
+public class YuvPlane {
+
+    public byte[] data = new byte[0];
+    public int rowStride;
+    public int pixelStride = 1;
+
+    public YuvPlane set(byte[] data, int rowStride, int pixelStride) {
+        this.data = data;
+        this.rowStride = rowStride;
+        this.pixelStride = pixelStride;
+        return this;
+    }
+}
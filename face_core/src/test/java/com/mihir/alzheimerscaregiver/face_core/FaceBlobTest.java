@@ -0,0 +1,59 @@
+package com.mihir.alzheimerscaregiver.face_core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FaceBlobTest {
+
+    @Test
+    public void encodeDecode_roundTrip() {
+        int count = 3, dim = 192, tag = 0x1234ABCD;
+        Random random = new Random(1);
+        float[] prototypes = new float[count * dim];
+        for (int p = 0; p < count; p++) {
+            float[] view = new float[dim];
+            for (int k = 0; k < dim; k++)
+                view[k] = (float) random.nextGaussian();
+            System.arraycopy(FaceGalleryTest.normalized(view), 0, prototypes, p * dim, dim);
+        }
+
+        byte[] blob = FaceBlob.encode(prototypes, count, dim, tag);
+        assertEquals(8 + count * dim * 2, blob.length); //Header, then 2 bytes a value
+        FaceBlob decoded = FaceBlob.decode(blob);
+        assertEquals(count, decoded.count);
+        assertEquals(dim, decoded.dim);
+        assertEquals(tag, decoded.modelTag);
+        //Unit vector components are below 1, where half precision is good to about 2^-11
+        assertArrayEquals(prototypes, decoded.prototypes, 1e-3f);
+        for (int p = 0; p < count; p++) {
+            double norm = 0;
+            for (int k = 0; k < dim; k++)
+                norm += decoded.prototypes[p * dim + k] * decoded.prototypes[p * dim + k];
+            assertEquals(1.0, norm, 1e-5);
+        }
+    }
+
+    @Test
+    public void half_exactValuesAndEdgeCases() {
+        float[] exact = {0f, -0f, 1f, -2f, 0.5f, 65504f, 6.1035156e-5f, 5.9604645e-8f};
+        for (float value : exact)
+            assertEquals(Float.floatToIntBits(value), Float.floatToIntBits(FaceBlob.fromHalf(FaceBlob.toHalf(value))));
+        assertEquals(Float.POSITIVE_INFINITY, FaceBlob.fromHalf(FaceBlob.toHalf(1e6f)), 0);
+        assertEquals(Float.NEGATIVE_INFINITY, FaceBlob.fromHalf(FaceBlob.toHalf(Float.NEGATIVE_INFINITY)), 0);
+        assertTrue(Float.isNaN(FaceBlob.fromHalf(FaceBlob.toHalf(Float.NaN))));
+        assertEquals(0f, FaceBlob.fromHalf(FaceBlob.toHalf(1e-9f)), 0);
+        //Halfway between 1 and the next half (1 + 2^-10) rounds to even
+        assertEquals(1f, FaceBlob.fromHalf(FaceBlob.toHalf(1f + 0x1p-11f)), 0);
+        assertEquals(1f + 0x1p-9f, FaceBlob.fromHalf(FaceBlob.toHalf(1f + 0x1.8p-10f)), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void decode_rejectsWrongLength() {
+        byte[] blob = FaceBlob.encode(new float[4], 1, 4, 0);
+        FaceBlob.decode(Arrays.copyOf(blob, blob.length - 1));
+    }
+}
@@ -0,0 +1,92 @@
+package com.mihir.alzheimerscaregiver.face_core;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class FaceCropSamplerTest {
+
+    //Upright frame; every pixel has its own color
+    private static final int WIDTH = 40, HEIGHT = 30;
+    private static final int LEFT = 8, TOP = 5, SIZE = 16; //Crop at 1:1 scale, so sampling is exact
+
+    @Test
+    public void sample_everyRotationGivesTheUprightCrop() {
+        for (int rotation = 0; rotation < 360; rotation += 90) {
+            assertArrayEquals("rotation " + rotation, expectedCrop(false), sample(rotation, false));
+            assertArrayEquals("mirrored rotation " + rotation, expectedCrop(true), sample(rotation, true));
+        }
+    }
+
+    @Test
+    public void sample_outsideTheFrameIsWhite() {
+        FaceCropSampler sampler = new FaceCropSampler(4, 128f, 128f);
+        int[] src = sensorFrame(0);
+        int[] pixels = new int[16];
+        sampler.sample(src, WIDTH, HEIGHT, -40, -40, -36, -36, 0, false, ByteBuffer.allocate(16 * 3 * 4), pixels);
+        for (int pixel : pixels)
+            assertEquals(0xFFFFFFFF, pixel);
+    }
+
+    @Test
+    public void sample_writesNormalizedFloatsAndQuantizedBytes() {
+        int[] src = sensorFrame(0);
+        ByteBuffer floats = ByteBuffer.allocate(SIZE * SIZE * 3 * 4).order(ByteOrder.nativeOrder());
+        int[] pixels = new int[SIZE * SIZE];
+        new FaceCropSampler(SIZE, 127.5f, 127.5f).sample(src, WIDTH, HEIGHT, LEFT, TOP, LEFT + SIZE, TOP + SIZE, 0, false, floats, pixels);
+        assertEquals(floats.capacity(), floats.position());
+        floats.flip();
+        assertEquals((((pixels[0] >> 16) & 0xFF) - 127.5f) / 127.5f, floats.getFloat(), 1e-6f);
+
+        //uint8 model without quantization parameters takes the raw channel values
+        ByteBuffer bytes = ByteBuffer.allocate(SIZE * SIZE * 3);
+        new FaceCropSampler(SIZE, 127.5f, 127.5f, 0, 0, false).sample(src, WIDTH, HEIGHT, LEFT, TOP, LEFT + SIZE, TOP + SIZE, 0, false, bytes, null);
+        for (int i = 0; i < SIZE * SIZE; i++) {
+            assertEquals((pixels[i] >> 16) & 0xFF, bytes.get(i * 3) & 0xFF);
+            assertEquals((pixels[i] >> 8) & 0xFF, bytes.get(i * 3 + 1) & 0xFF);
+            assertEquals(pixels[i] & 0xFF, bytes.get(i * 3 + 2) & 0xFF);
+        }
+    }
+
+    private static int[] sample(int rotation, boolean mirror) {
+        boolean sideways = rotation % 180 != 0;
+        int sensorWidth = sideways ? HEIGHT : WIDTH, sensorHeight = sideways ? WIDTH : HEIGHT;
+        int[] pixels = new int[SIZE * SIZE];
+        new FaceCropSampler(SIZE, 128f, 128f).sample(sensorFrame(rotation), sensorWidth, sensorHeight,
+                LEFT, TOP, LEFT + SIZE, TOP + SIZE, rotation, mirror, ByteBuffer.allocate(SIZE * SIZE * 3 * 4), pixels);
+        return pixels;
+    }
+
+    private static int[] expectedCrop(boolean mirror) {
+        int[] crop = new int[SIZE * SIZE];
+        for (int y = 0; y < SIZE; y++)
+            for (int x = 0; x < SIZE; x++)
+                crop[y * SIZE + x] = upright(LEFT + (mirror ? SIZE - 1 - x : x), TOP + y);
+        return crop;
+    }
+
+    //The sensor frame that turns into the upright frame when rotated clockwise by rotation
+    private static int[] sensorFrame(int rotation) {
+        int[] sensor = new int[WIDTH * HEIGHT];
+        for (int v = 0; v < HEIGHT; v++) {
+            for (int u = 0; u < WIDTH; u++) {
+                int x, y, stride;
+                switch (rotation) {
+                    case 90:  x = v;              y = WIDTH - 1 - u;  stride = HEIGHT; break;
+                    case 180: x = WIDTH - 1 - u;  y = HEIGHT - 1 - v; stride = WIDTH;  break;
+                    case 270: x = HEIGHT - 1 - v; y = u;              stride = HEIGHT; break;
+                    default:  x = u;              y = v;              stride = WIDTH;  break;
+                }
+                sensor[y * stride + x] = upright(u, v);
+            }
+        }
+        return sensor;
+    }
+
+    private static int upright(int u, int v) {
+        return 0xFF000000 | (u * 6 << 16) | (v * 8 << 8) | ((u + v) & 0xFF);
+    }
+}
@@ -0,0 +1,153 @@
+package com.mihir.alzheimerscaregiver.face_core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FaceGalleryTest {
+
+    private static final int DIM = 64;
+
+    @Test
+    public void enroll_keepsNovelViewsUpToMaxPrototypes() {
+        FaceGallery gallery = new FaceGallery(DIM);
+        Random random = new Random(1);
+        float[] first = randomVector(random);
+        assertEquals(FaceGallery.Enrollment.NEW, gallery.enroll("Ana", first));
+        assertEquals(FaceGallery.Enrollment.REDUNDANT, gallery.enroll("Ana", first.clone()));
+        assertEquals(1, gallery.prototypeCount("Ana"));
+
+        //Random 64-d vectors are about sqrt(2) apart, far beyond the novelty
+        for (int i = 1; i < gallery.maxPrototypes(); i++)
+            assertEquals(FaceGallery.Enrollment.ADDED, gallery.enroll("Ana", randomVector(random)));
+        assertEquals(gallery.maxPrototypes(), gallery.prototypeCount("Ana"));
+
+        //Full: a new view either replaces the most redundant prototype or is dropped
+        for (int i = 0; i < 20; i++) {
+            FaceGallery.Enrollment result = gallery.enroll("Ana", randomVector(random));
+            assertTrue(result == FaceGallery.Enrollment.REPLACED || result == FaceGallery.Enrollment.REDUNDANT);
+            assertEquals(gallery.maxPrototypes(), gallery.prototypeCount("Ana"));
+        }
+        assertEquals(1, gallery.size());
+    }
+
+    @Test
+    public void put_replacesEveryPrototype() {
+        FaceGallery gallery = new FaceGallery(DIM);
+        Random random = new Random(2);
+        gallery.enroll("Ana", randomVector(random));
+        gallery.enroll("Ana", randomVector(random));
+        assertEquals(2, gallery.prototypeCount("Ana"));
+
+        float[] view = randomVector(random);
+        gallery.put("Ana", view);
+        assertEquals(1, gallery.prototypeCount("Ana"));
+        assertArrayEquals(normalized(view), gallery.getPrototypes("Ana"), 1e-6f);
+    }
+
+    @Test
+    public void findNearest_singlePrototypes_matchesBruteForce() {
+        FaceGallery gallery = new FaceGallery(DIM);
+        Random random = new Random(3);
+        int count = 300;
+        float[][] faces = new float[count][];
+        for (int i = 0; i < count; i++) {
+            faces[i] = randomVector(random);
+            gallery.put("id" + i, faces[i]);
+        }
+
+        FaceGallery.Match match = new FaceGallery.Match();
+        for (int q = 0; q < 200; q++) {
+            float[] query = randomVector(random);
+            gallery.findNearest(query, match);
+
+            int best = -1, second = -1;
+            float bestDistance = Float.MAX_VALUE, secondDistance = Float.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                float d = distance(normalized(query), normalized(faces[i]));
+                if (d < bestDistance) {
+                    second = best;
+                    secondDistance = bestDistance;
+                    best = i;
+                    bestDistance = d;
+                } else if (d < secondDistance) {
+                    second = i;
+                    secondDistance = d;
+                }
+            }
+            assertEquals("id" + best, match.name);
+            assertEquals(bestDistance, match.distance, 1e-4f);
+            assertEquals("id" + second, match.secondName);
+            assertEquals(secondDistance, match.secondDistance, 1e-4f);
+        }
+    }
+
+    @Test
+    public void findNearest_scoresTheClosestPrototype() {
+        FaceGallery gallery = new FaceGallery(DIM);
+        Random random = new Random(4);
+        int count = 100, views = 3;
+        float[][][] faces = new float[count][views][];
+        for (int i = 0; i < count; i++)
+            for (int v = 0; v < views; v++)
+                gallery.enroll("id" + i, faces[i][v] = randomVector(random));
+
+        FaceGallery.Match match = new FaceGallery.Match();
+        for (int q = 0; q < 200; q++) {
+            int person = random.nextInt(count), view = random.nextInt(views);
+            float[] query = normalized(faces[person][view]);
+            for (int k = 0; k < DIM; k++)
+                query[k] += 0.02f * (float) random.nextGaussian();
+            gallery.findNearest(query, match);
+
+            float expected = Float.MAX_VALUE;
+            for (float[] face : faces[person])
+                expected = Math.min(expected, distance(normalized(query), normalized(face)));
+            assertEquals("id" + person, match.name);
+            assertEquals(expected, match.distance, 1e-4f);
+        }
+    }
+
+    @Test
+    public void findNearest_afterRemoveAndRename() {
+        FaceGallery gallery = new FaceGallery(DIM);
+        Random random = new Random(5);
+        float[] a = randomVector(random), b = randomVector(random);
+        gallery.put("A", a);
+        gallery.put("B", b);
+        assertTrue(gallery.rename("A", "C"));
+        assertTrue(gallery.remove("B"));
+
+        FaceGallery.Match match = new FaceGallery.Match();
+        gallery.findNearest(b, match);
+        assertEquals("C", match.name);
+        assertEquals(1, gallery.size());
+        assertFalse(gallery.contains("A"));
+    }
+
+    static float[] randomVector(Random random) {
+        float[] vector = new float[DIM];
+        for (int k = 0; k < DIM; k++)
+            vector[k] = (float) random.nextGaussian();
+        return vector;
+    }
+
+    static float[] normalized(float[] vector) {
+        double norm = 0;
+        for (float value : vector)
+            norm += value * value;
+        float[] out = new float[vector.length];
+        for (int k = 0; k < vector.length; k++)
+            out[k] = (float) (vector[k] / Math.sqrt(norm));
+        return out;
+    }
+
+    static float distance(float[] a, float[] b) {
+        double sum = 0;
+        for (int k = 0; k < a.length; k++)
+            sum += (a[k] - b[k]) * (a[k] - b[k]);
+        return (float) Math.sqrt(sum);
+    }
+}
@@ -0,0 +1,122 @@
+package com.mihir.alzheimerscaregiver.face_core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class HnswIndexTest {
+
+    private static final int DIM = 32;
+    private static final int COUNT = 2000;
+
+    @Test
+    public void search_recallAgainstBruteForce() {
+        Random random = new Random(1);
+        float[][] vectors = vectors(random, COUNT);
+        HnswIndex index = new HnswIndex(DIM, 16, 100, 64);
+        for (int i = 0; i < COUNT; i++)
+            index.add("n" + i, vectors[i], 0);
+        assertEquals(COUNT, index.size());
+
+        int k = 10, queries = 100, hits = 0;
+        String[] labels = new String[k];
+        float[] distances = new float[k];
+        for (int q = 0; q < queries; q++) {
+            float[] query = FaceGalleryTest.normalized(randomVector(random));
+            assertEquals(k, index.search(query, k, labels, distances));
+            for (int i = 1; i < k; i++)
+                assertTrue(distances[i - 1] <= distances[i]); //Closest first
+            Set<String> found = new HashSet<>();
+            for (String label : labels)
+                found.add(label);
+            for (int i : bruteForce(vectors, query, k, null))
+                if (found.contains("n" + i))
+                    hits++;
+        }
+        float recall = hits / (float) (queries * k);
+        assertTrue("recall@10 " + recall, recall >= 0.9f);
+    }
+
+    @Test
+    public void remove_tombstonesAreNeverReturned() {
+        Random random = new Random(2);
+        float[][] vectors = vectors(random, COUNT);
+        HnswIndex index = new HnswIndex(DIM, 16, 100, 64);
+        for (int i = 0; i < COUNT; i++)
+            index.add("n" + i, vectors[i], 0);
+        boolean[] removed = new boolean[COUNT];
+        for (int i = 0; i < COUNT; i += 2) {
+            assertTrue(index.remove("n" + i));
+            removed[i] = true;
+        }
+        assertFalse(index.remove("n0"));
+        assertEquals(COUNT / 2, index.size());
+        assertEquals(COUNT / 2, index.deletedCount());
+
+        int k = 5, hits = 0, queries = 100;
+        String[] labels = new String[k];
+        float[] distances = new float[k];
+        for (int q = 0; q < queries; q++) {
+            float[] query = FaceGalleryTest.normalized(randomVector(random));
+            int found = index.search(query, k, labels, distances);
+            assertEquals(k, found);
+            for (int i = 0; i < found; i++)
+                assertFalse(labels[i], removed[Integer.parseInt(labels[i].substring(1))]);
+            if (labels[0].equals("n" + bruteForce(vectors, query, 1, removed)[0]))
+                hits++;
+        }
+        assertTrue("recall@1 " + hits, hits >= 90); //Tombstones still route searches
+    }
+
+    @Test
+    public void remove_lastNodeEmptiesTheIndex() {
+        HnswIndex index = new HnswIndex(DIM, 16, 100, 64);
+        float[] vector = FaceGalleryTest.normalized(randomVector(new Random(3)));
+        index.add("only", vector, 0);
+        index.remove("only");
+        assertEquals(0, index.size());
+        assertEquals(0, index.search(vector, 1, new String[1], new float[1]));
+    }
+
+    private static float[][] vectors(Random random, int count) {
+        float[][] vectors = new float[count][];
+        for (int i = 0; i < count; i++)
+            vectors[i] = FaceGalleryTest.normalized(randomVector(random));
+        return vectors;
+    }
+
+    private static float[] randomVector(Random random) {
+        float[] vector = new float[DIM];
+        for (int k = 0; k < DIM; k++)
+            vector[k] = (float) random.nextGaussian();
+        return vector;
+    }
+
+    //Indices of the k closest vectors that are not skipped, closest first
+    private static int[] bruteForce(float[][] vectors, float[] query, int k, boolean[] skip) {
+        int[] best = new int[k];
+        float[] bestDistance = new float[k];
+        Arrays.fill(bestDistance, Float.MAX_VALUE);
+        for (int i = 0; i < vectors.length; i++) {
+            if (skip != null && skip[i])
+                continue;
+            float d = FaceGalleryTest.distance(query, vectors[i]);
+            int j = k - 1;
+            if (d >= bestDistance[j])
+                continue;
+            while (j > 0 && bestDistance[j - 1] > d) {
+                bestDistance[j] = bestDistance[j - 1];
+                best[j] = best[j - 1];
+                j--;
+            }
+            bestDistance[j] = d;
+            best[j] = i;
+        }
+        return best;
+    }
+}
@@ -0,0 +1,69 @@
+package com.mihir.alzheimerscaregiver.face_core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ThresholdCalibrationTest {
+
+    private static final int DIM = 64;
+
+    @Test
+    public void compute_threadsGiveTheSameHistograms() {
+        //Over a few tiles of BLOCK, and not a multiple of it
+        int people = 60, views = 5, count = people * views - 7;
+        float[] vectors = new float[count * DIM];
+        int[] labels = new int[count];
+        fill(new Random(1), vectors, labels, count, views);
+
+        ThresholdCalibration single = ThresholdCalibration.compute(vectors, labels, count, DIM, 1);
+        ThresholdCalibration multi = ThresholdCalibration.compute(vectors, labels, count, DIM, 4);
+
+        long genuine = 0;
+        for (int person = 0; person * views < count; person++) {
+            long n = Math.min(views, count - person * views);
+            genuine += n * (n - 1) / 2;
+        }
+        assertEquals(genuine, single.genuinePairs());
+        assertEquals(count * (count - 1L) / 2 - genuine, single.impostorPairs());
+        assertEquals(single.genuinePairs(), multi.genuinePairs());
+        assertEquals(single.impostorPairs(), multi.impostorPairs());
+        for (float threshold = 0; threshold <= ThresholdCalibration.MAX_DISTANCE; threshold += 0.01f) {
+            assertEquals(single.falseAcceptRate(threshold), multi.falseAcceptRate(threshold), 0);
+            assertEquals(single.falseRejectRate(threshold), multi.falseRejectRate(threshold), 0);
+        }
+        assertEquals(single.equalErrorThreshold(), multi.equalErrorThreshold(), 0);
+    }
+
+    @Test
+    public void compute_separatesGenuineFromImpostorPairs() {
+        int people = 40, views = 4, count = people * views;
+        float[] vectors = new float[count * DIM];
+        int[] labels = new int[count];
+        fill(new Random(2), vectors, labels, count, views);
+        ThresholdCalibration calibration = ThresholdCalibration.compute(vectors, labels, count, DIM, 2);
+
+        //Views sit about 0.45 apart, different people about sqrt(2)
+        float threshold = calibration.equalErrorThreshold();
+        assertTrue("threshold " + threshold, threshold > 0.5f && threshold < 1.3f);
+        assertEquals(0f, calibration.falseAcceptRate(threshold), 1e-3f);
+        assertEquals(0f, calibration.falseRejectRate(threshold), 1e-3f);
+        assertTrue(calibration.thresholdForFar(0f) <= 1.3f);
+    }
+
+    //Views of a person: one random direction plus a little noise, normalized
+    private static void fill(Random random, float[] vectors, int[] labels, int count, int views) {
+        float[] center = new float[DIM], view = new float[DIM];
+        for (int i = 0; i < count; i++) {
+            if (i % views == 0)
+                for (int k = 0; k < DIM; k++)
+                    center[k] = (float) random.nextGaussian();
+            for (int k = 0; k < DIM; k++)
+                view[k] = center[k] + 0.25f * (float) random.nextGaussian();
+            System.arraycopy(FaceGalleryTest.normalized(view), 0, vectors, i * DIM, DIM);
+            labels[i] = i / views;
+        }
+    }
+}
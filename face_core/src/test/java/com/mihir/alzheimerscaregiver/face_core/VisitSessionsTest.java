@@ -0,0 +1,96 @@
+package com.mihir.alzheimerscaregiver.face_core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VisitSessionsTest {
+
+    private static final long MINUTE = 60 * 1000;
+    private static final long GAP = VisitSessions.DEFAULT_GAP_MS;
+
+    @Test
+    public void seen_withinTheGapExtendsOneVisit() {
+        VisitSessions sessions = new VisitSessions();
+        List<VisitSessions.Visit> closed = new ArrayList<>();
+        for (long t = 0; t <= 30 * MINUTE; t += MINUTE)
+            sessions.seen("Ana", t == 10 * MINUTE ? 0.3f : 0.6f, t, closed);
+        assertTrue(closed.isEmpty());
+
+        sessions.closeAll(closed);
+        assertEquals(1, closed.size());
+        VisitSessions.Visit visit = closed.get(0);
+        assertEquals(0, visit.firstSeen);
+        assertEquals(30 * MINUTE, visit.lastSeen);
+        assertEquals(31, visit.sightings);
+        assertEquals(0.3f, visit.bestDistance, 0);
+        assertEquals(0, sessions.openCount());
+    }
+
+    @Test
+    public void seen_afterTheGapStartsANewVisit() {
+        VisitSessions sessions = new VisitSessions();
+        List<VisitSessions.Visit> closed = new ArrayList<>();
+        sessions.seen("Ana", 0.5f, 0, closed);
+        sessions.seen("Ana", 0.5f, GAP, closed); //Exactly the gap still counts
+        assertTrue(closed.isEmpty());
+        sessions.seen("Ana", 0.5f, 2 * GAP + 1, closed);
+        assertEquals(1, closed.size());
+        assertEquals(GAP, closed.get(0).lastSeen);
+        assertEquals(1, sessions.openCount());
+    }
+
+    @Test
+    public void expire_closesOnlyVisitsPastTheGap() {
+        VisitSessions sessions = new VisitSessions();
+        List<VisitSessions.Visit> closed = new ArrayList<>();
+        sessions.seen("Ana", 0.5f, 0, closed);
+        sessions.seen("Ben", 0.5f, 3 * MINUTE, closed);
+        sessions.expire(GAP + 1, closed);
+        assertEquals(1, closed.size());
+        assertEquals("Ana", closed.get(0).name);
+        assertEquals(1, sessions.openCount());
+    }
+
+    @Test
+    public void seen_splitsVisitsLongerThanTheMaximum() {
+        VisitSessions sessions = new VisitSessions();
+        List<VisitSessions.Visit> closed = new ArrayList<>();
+        long end = 2 * VisitSessions.MAX_VISIT_MS + 30 * MINUTE;
+        for (long t = 0; t <= end; t += MINUTE)
+            sessions.seen("Ana", 0.5f, t, closed);
+        sessions.closeAll(closed);
+
+        assertEquals(3, closed.size());
+        long expectedStart = 0;
+        for (VisitSessions.Visit visit : closed) {
+            assertEquals(expectedStart, visit.firstSeen);
+            assertTrue(visit.durationMs() <= VisitSessions.MAX_VISIT_MS);
+            expectedStart = visit.lastSeen + MINUTE; //No sighting lost between the pieces
+        }
+        assertEquals(end, closed.get(2).lastSeen);
+    }
+
+    @Test
+    public void totals_countOnlyTimeInsideTheRange() {
+        List<VisitSessions.Visit> visits = new ArrayList<>();
+        visits.add(new VisitSessions.Visit("Ana", 0, 60 * MINUTE, 0.4f, 10));
+        visits.add(new VisitSessions.Visit("Ben", 50 * MINUTE, 70 * MINUTE, 0.5f, 5));
+        visits.add(new VisitSessions.Visit("Ana", 90 * MINUTE, 100 * MINUTE, 0.3f, 3));
+        visits.add(new VisitSessions.Visit("Cy", 200 * MINUTE, 210 * MINUTE, 0.2f, 2)); //Outside
+
+        List<VisitSessions.Total> totals = VisitSessions.totals(visits, 30 * MINUTE, 120 * MINUTE);
+        assertEquals(2, totals.size());
+        VisitSessions.Total ana = totals.get(0); //Most time first
+        assertEquals("Ana", ana.name);
+        assertEquals(2, ana.visits);
+        assertEquals(40 * MINUTE, ana.timeMs);
+        assertEquals(0.3f, ana.bestDistance, 0);
+        assertEquals(100 * MINUTE, ana.lastSeen);
+        assertEquals("Ben", totals.get(1).name);
+        assertEquals(20 * MINUTE, totals.get(1).timeMs);
+    }
+}
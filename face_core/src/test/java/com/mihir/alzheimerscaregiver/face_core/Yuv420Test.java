@@ -0,0 +1,118 @@
+package com.mihir.alzheimerscaregiver.face_core;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class Yuv420Test {
+
+    private static final int WIDTH = 37, HEIGHT = 23; //Odd sizes, padded rows
+
+    @Test
+    public void toArgb_grayAndPrimaries() {
+        assertEquals(0xFF808080, convertOne(128, 128, 128));
+        assertEquals(0xFF000000, convertOne(0, 128, 128));
+        assertEquals(0xFFFFFFFF, convertOne(255, 128, 128));
+        assertEquals(0xFFFE0000, convertOne(76, 85, 255));  //Red, V clamps at 255
+        assertEquals(0xFF0000FE, convertOne(29, 255, 107)); //Blue
+    }
+
+    @Test
+    public void toArgb_planar_matchesBt601() {
+        Random random = new Random(1);
+        byte[] yData = new byte[WIDTH * HEIGHT], uData = new byte[chromaSize()], vData = new byte[chromaSize()];
+        random.nextBytes(yData);
+        random.nextBytes(uData);
+        random.nextBytes(vData);
+        int yRowStride = WIDTH + 11, chromaRowStride = chromaWidth() + 5;
+
+        YuvPlane y = new YuvPlane().set(pad(yData, WIDTH, HEIGHT, yRowStride, 1), yRowStride, 1);
+        YuvPlane u = new YuvPlane().set(pad(uData, chromaWidth(), chromaHeight(), chromaRowStride, 1), chromaRowStride, 1);
+        YuvPlane v = new YuvPlane().set(pad(vData, chromaWidth(), chromaHeight(), chromaRowStride, 1), chromaRowStride, 1);
+        int[] out = new int[WIDTH * HEIGHT];
+        Yuv420.toArgb(y, u, v, WIDTH, HEIGHT, out);
+        assertMatchesReference(yData, uData, vData, out);
+    }
+
+    @Test
+    public void toArgb_interleaved_matchesPlanar() {
+        Random random = new Random(2);
+        byte[] yData = new byte[WIDTH * HEIGHT], uData = new byte[chromaSize()], vData = new byte[chromaSize()];
+        random.nextBytes(yData);
+        random.nextBytes(uData);
+        random.nextBytes(vData);
+
+        //NV21 as CameraX hands it over: V and U share one buffer, pixel stride 2
+        int chromaRowStride = chromaWidth() * 2 + 4;
+        byte[] vu = new byte[chromaRowStride * chromaHeight()];
+        for (int row = 0; row < chromaHeight(); row++) {
+            for (int col = 0; col < chromaWidth(); col++) {
+                vu[row * chromaRowStride + col * 2] = vData[row * chromaWidth() + col];
+                vu[row * chromaRowStride + col * 2 + 1] = uData[row * chromaWidth() + col];
+            }
+        }
+        byte[] uv = new byte[vu.length];
+        System.arraycopy(vu, 1, uv, 0, vu.length - 1); //U plane starts one byte into the buffer
+
+        YuvPlane y = new YuvPlane().set(yData, WIDTH, 1);
+        int[] interleaved = new int[WIDTH * HEIGHT];
+        Yuv420.toArgb(y, new YuvPlane().set(uv, chromaRowStride, 2), new YuvPlane().set(vu, chromaRowStride, 2), WIDTH, HEIGHT, interleaved);
+
+        int[] planar = new int[WIDTH * HEIGHT];
+        Yuv420.toArgb(y, new YuvPlane().set(uData, chromaWidth(), 1), new YuvPlane().set(vData, chromaWidth(), 1), WIDTH, HEIGHT, planar);
+        assertArrayEquals(planar, interleaved);
+        assertMatchesReference(yData, uData, vData, interleaved);
+    }
+
+    private static int convertOne(int y, int u, int v) {
+        int[] out = new int[4];
+        byte[] luma = {(byte) y, (byte) y, (byte) y, (byte) y};
+        Yuv420.toArgb(new YuvPlane().set(luma, 2, 1), new YuvPlane().set(new byte[]{(byte) u}, 1, 1),
+                new YuvPlane().set(new byte[]{(byte) v}, 1, 1), 2, 2, out);
+        for (int pixel : out)
+            assertEquals(out[0], pixel);
+        return out[0];
+    }
+
+    //Floating point BT.601 full range; the fixed point version may differ by one step
+    private static void assertMatchesReference(byte[] yData, byte[] uData, byte[] vData, int[] out) {
+        for (int row = 0; row < HEIGHT; row++) {
+            for (int col = 0; col < WIDTH; col++) {
+                double lum = yData[row * WIDTH + col] & 0xFF;
+                double cb = (uData[(row / 2) * chromaWidth() + col / 2] & 0xFF) - 128;
+                double cr = (vData[(row / 2) * chromaWidth() + col / 2] & 0xFF) - 128;
+                int pixel = out[row * WIDTH + col];
+                assertEquals(0xFF, pixel >>> 24);
+                assertEquals(clamp(lum + 1.402 * cr), (pixel >> 16) & 0xFF, 1);
+                assertEquals(clamp(lum - 0.344136 * cb - 0.714136 * cr), (pixel >> 8) & 0xFF, 1);
+                assertEquals(clamp(lum + 1.772 * cb), pixel & 0xFF, 1);
+            }
+        }
+    }
+
+    private static byte[] pad(byte[] plane, int width, int height, int rowStride, int pixelStride) {
+        byte[] padded = new byte[rowStride * height];
+        for (int row = 0; row < height; row++)
+            for (int col = 0; col < width; col++)
+                padded[row * rowStride + col * pixelStride] = plane[row * width + col];
+        return padded;
+    }
+
+    private static int clamp(double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    private static int chromaWidth() {
+        return (WIDTH + 1) / 2;
+    }
+
+    private static int chromaHeight() {
+        return (HEIGHT + 1) / 2;
+    }
+
+    private static int chromaSize() {
+        return chromaWidth() * chromaHeight();
+    }
+}
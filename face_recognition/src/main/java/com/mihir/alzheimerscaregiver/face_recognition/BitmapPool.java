@@ -0,0 +1,109 @@
+package com.mihir.alzheimerscaregiver.face_recognition;
+
+import android.content.ContentResolver;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+//ARGB_8888 Bitmaps kept for reuse by size, up to a fixed number of bytes. Released Bitmaps
+//go to the back; when the budget is exceeded the least recently released are recycled.
+//Photos are decoded straight into pooled Bitmaps through inBitmap, so importing one photo
+//after another keeps native memory flat instead of growing until the next GC.
+public class BitmapPool {
+
+    private final long budget;
+    private final ArrayDeque<Bitmap> free = new ArrayDeque<>(); //Oldest first
+    private long bytes;
+    private int created, reused;
+
+    public BitmapPool(long budgetBytes) {
+        this.budget = budgetBytes;
+    }
+
+    //A mutable width x height Bitmap with undefined content
+    public synchronized Bitmap acquire(int width, int height) {
+        Iterator<Bitmap> it = free.descendingIterator(); //Most recently released first, still warm
+        while (it.hasNext()) {
+            Bitmap bitmap = it.next();
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                it.remove();
+                bytes -= bitmap.getAllocationByteCount();
+                reused++;
+                return bitmap;
+            }
+        }
+        created++;
+        return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    //Hands bitmap back; the caller must not touch it afterwards (nor show it)
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled())
+            return;
+        int size = bitmap.getAllocationByteCount();
+        if (!bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.ARGB_8888 || size > budget) {
+            bitmap.recycle();
+            return;
+        }
+        free.addLast(bitmap);
+        bytes += size;
+        while (bytes > budget) {
+            Bitmap oldest = free.removeFirst();
+            bytes -= oldest.getAllocationByteCount();
+            oldest.recycle();
+        }
+    }
+
+    public synchronized void clear() {
+        for (Bitmap bitmap : free)
+            bitmap.recycle();
+        free.clear();
+        bytes = 0;
+    }
+
+    //Bitmaps allocated and handed out again since the pool was created
+    public synchronized String describe() {
+        return created + " created, " + reused + " reused, " + (bytes >> 10) + " KB pooled";
+    }
+
+    //Decodes uri into a pooled Bitmap, subsampled like bulk enrollment (BulkEnroller.sampleSize).
+    //Release the result when done. Null if the image cannot be decoded.
+    public Bitmap decode(ContentResolver resolver, Uri uri) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = resolver.openInputStream(uri)) {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+        int sample = BulkEnroller.sampleSize(options.outWidth, options.outHeight);
+        //Output size as the decoder rounds it for power-of-two subsampling
+        int width = (options.outWidth + sample - 1) / sample;
+        int height = (options.outHeight + sample - 1) / sample;
+
+        Bitmap target = acquire(width, height);
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sample;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+        options.inBitmap = target;
+        try (InputStream in = resolver.openInputStream(uri)) {
+            Bitmap decoded = BitmapFactory.decodeStream(in, null, options);
+            if (decoded != target)
+                release(target); //The decoder chose another size (codec rounding) and allocated
+            return decoded;
+        } catch (IllegalArgumentException e) {
+            //inBitmap refused; decode into a fresh Bitmap that can join the pool later
+            options.inBitmap = null;
+            release(target);
+            try (InputStream in = resolver.openInputStream(uri)) {
+                return BitmapFactory.decodeStream(in, null, options);
+            }
+        }
+    }
+}
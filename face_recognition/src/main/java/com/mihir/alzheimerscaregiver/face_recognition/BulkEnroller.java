@@ -0,0 +1,329 @@
+package com.mihir.alzheimerscaregiver.face_recognition;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.DocumentsContract;
+
+import com.google.android.gms.tasks.Tasks;
+import com.google.mlkit.vision.common.InputImage;
+import com.google.mlkit.vision.face.Face;
+import com.google.mlkit.vision.face.FaceDetection;
+import com.google.mlkit.vision.face.FaceDetector;
+import com.google.mlkit.vision.face.FaceDetectorOptions;
+import com.mihir.alzheimerscaregiver.face_core.EmbeddingCache;
+import com.mihir.alzheimerscaregiver.face_core.FaceCropSampler;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+//Embeds many photos of one person for enrollment under a single name. Each photo is
+//decoded subsampled to roughly DECODE_SIDE pixels (faces stay well above the 112 px model
+//input), turned upright by its EXIF orientation, searched for faces, and its largest face
+//is embedded. Photos are handled by a small worker pool; decoding and detection run in
+//parallel, model runs take turns on a dedicated interpreter. Faces far from the group's
+//medoid (another person who happened to be the largest face) are left out.
+//The caller writes the result to the gallery in one step. Callbacks arrive on the main thread.
+public class BulkEnroller {
+
+    public interface Listener {
+        void onProgress(int done, int total);
+
+        void onFinished(Result result);
+    }
+
+    public static class Result {
+        public final String name;
+        public final List<float[]> embeddings = new ArrayList<>(); //Raw model outputs, ready for FaceGallery.enrollAll
+        public int photos, noFace, failed, outliers, duplicates;
+        public boolean cancelled;
+
+        Result(String name) {
+            this.name = name;
+        }
+    }
+
+    static final int DECODE_SIDE = 1024; //Longer side after subsampling, at least
+
+    private final ContentResolver resolver;
+    private final FaceModel model;
+    private final ByteBuffer modelBuffer;
+    private final InterpreterTuner.Config config;
+    private final float mean, std, threshold;
+    private final Listener listener;
+    private final Handler main = new Handler(Looper.getMainLooper());
+    private final ExecutorService coordinator = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "BulkEnroller"));
+    private final ThreadPoolExecutor workers;
+    private final List<Future<float[]>> pending = new ArrayList<>(); //Guarded by itself
+    private final EmbeddingCache cache = new EmbeddingCache();
+    private volatile boolean cancelled;
+
+    //threshold: recognition distance; faces farther than this from the group's medoid are outliers
+    public BulkEnroller(ContentResolver resolver, FaceModel model, ByteBuffer modelBuffer, InterpreterTuner.Config config,
+                        float mean, float std, float threshold, Listener listener) {
+        this.resolver = resolver;
+        this.model = model;
+        this.modelBuffer = modelBuffer;
+        this.config = config;
+        this.mean = mean;
+        this.std = std;
+        this.threshold = threshold;
+        this.listener = listener;
+        int threads = Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+        workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, "BulkEnroller-worker"));
+    }
+
+    public void start(String name, List<Uri> photos) {
+        coordinator.execute(() -> run(name, photos));
+    }
+
+    //Every image directly inside a folder picked with ACTION_OPEN_DOCUMENT_TREE
+    public void startFolder(String name, Uri tree) {
+        coordinator.execute(() -> run(name, listImages(tree)));
+    }
+
+    //Photos not yet started are skipped; nothing is returned for enrollment
+    public void cancel() {
+        cancelled = true;
+        synchronized (pending) {
+            for (Future<float[]> future : pending)
+                future.cancel(true);
+        }
+    }
+
+    private void run(String name, List<Uri> photos) {
+        Result result = new Result(name);
+        result.photos = photos.size();
+        FaceDetector detector = FaceDetection.getClient(new FaceDetectorOptions.Builder()
+                .setPerformanceMode(FaceDetectorOptions.PERFORMANCE_MODE_ACCURATE)
+                .build());
+        Interpreter interpreter = new Interpreter(modelBuffer, config.options());
+        ThreadLocal<InferenceContext> contexts = ThreadLocal.withInitial(() -> new InferenceContext(model, 1));
+        FaceCropSampler sampler = model.newSampler(mean, std);
+        try {
+            List<Future<float[]>> futures = new ArrayList<>();
+            synchronized (pending) {
+                for (Uri photo : photos) {
+                    if (cancelled)
+                        break;
+                    Future<float[]> future = workers.submit(() -> embed(photo, detector, interpreter, contexts.get(), sampler));
+                    pending.add(future);
+                    futures.add(future);
+                }
+            }
+
+            int done = 0;
+            for (Future<float[]> future : futures) {
+                if (cancelled)
+                    break;
+                try {
+                    float[] embedding = future.get();
+                    if (embedding != null)
+                        result.embeddings.add(embedding);
+                    else
+                        result.noFace++;
+                } catch (ExecutionException e) {
+                    e.printStackTrace();
+                    result.failed++;
+                } catch (CancellationException e) {
+                    break;
+                }
+                final int progress = ++done;
+                main.post(() -> listener.onProgress(progress, photos.size()));
+            }
+            result.outliers = dropOutliers(result.embeddings);
+            result.duplicates = (int) cache.hits();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            result.cancelled = cancelled;
+            workers.shutdownNow();
+            try {
+                workers.awaitTermination(10, TimeUnit.SECONDS); //A model run in flight finishes first
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (interpreter) {
+                interpreter.close();
+            }
+            detector.close();
+            coordinator.shutdown();
+        }
+        main.post(() -> listener.onFinished(result));
+    }
+
+    //Embedding of the largest face, null if the photo has none
+    private float[] embed(Uri photo, FaceDetector detector, Interpreter interpreter,
+                          InferenceContext context, FaceCropSampler sampler) throws Exception {
+        if (cancelled)
+            return null;
+        int rotation = rotation(photo);
+        Bitmap bitmap = decode(photo);
+        if (bitmap == null)
+            throw new IOException("Could not decode " + photo);
+        try {
+            List<Face> faces = Tasks.await(detector.process(InputImage.fromBitmap(bitmap, rotation)));
+            Face largest = null;
+            for (Face face : faces)
+                if (largest == null || area(face.getBoundingBox()) > area(largest.getBoundingBox()))
+                    largest = face;
+            if (largest == null)
+                return null;
+
+            int width = bitmap.getWidth(), height = bitmap.getHeight();
+            int[] argb = new int[width * height];
+            bitmap.getPixels(argb, 0, width, 0, 0, width, height);
+            Rect box = largest.getBoundingBox(); //Upright coordinates, as the sampler expects
+            sampler.sample(argb, width, height, box.left, box.top, box.right, box.bottom,
+                    rotation, false, context.input(), context.pixels());
+            long hash = EmbeddingCache.hash(context.pixels(), model.inputSize);
+            float[] cached = cache.find(hash); //Burst shots and copies of one photo
+            if (cached != null)
+                return cached.clone();
+            synchronized (interpreter) {
+                if (cancelled)
+                    return null;
+                context.run(interpreter, 1);
+                float[] embedding = context.embeddings(1)[0].clone();
+                cache.put(hash, embedding);
+                return embedding;
+            }
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    //Largest power-of-two subsampling that keeps the longer side at or above DECODE_SIDE,
+    //so a 12 MP photo costs a few MB instead of 48
+    static int sampleSize(int width, int height) {
+        int side = Math.max(width, height);
+        int sample = 1;
+        while (side / (sample * 2) >= DECODE_SIDE)
+            sample *= 2;
+        return sample;
+    }
+
+    private Bitmap decode(Uri photo) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream in = resolver.openInputStream(photo)) {
+            BitmapFactory.decodeStream(in, null, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+            return null;
+        int sample = sampleSize(options.outWidth, options.outHeight);
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sample;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        try (InputStream in = resolver.openInputStream(photo)) {
+            return BitmapFactory.decodeStream(in, null, options);
+        }
+    }
+
+    private int rotation(Uri photo) {
+        try (InputStream in = resolver.openInputStream(photo)) {
+            if (in == null)
+                return 0;
+            switch (new ExifInterface(in).getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL)) {
+                case ExifInterface.ORIENTATION_ROTATE_90:
+                    return 90;
+                case ExifInterface.ORIENTATION_ROTATE_180:
+                    return 180;
+                case ExifInterface.ORIENTATION_ROTATE_270:
+                    return 270;
+                default:
+                    return 0;
+            }
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static int area(Rect box) {
+        return box.width() * box.height();
+    }
+
+    //Removes faces farther than threshold from the medoid (the face closest to all others).
+    //Groups of one or two have no majority to judge by and are kept.
+    private int dropOutliers(List<float[]> embeddings) {
+        int n = embeddings.size();
+        if (n < 3)
+            return 0;
+        float[][] unit = new float[n][];
+        for (int i = 0; i < n; i++)
+            unit[i] = unit(embeddings.get(i));
+        int medoid = 0;
+        double bestSum = Double.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            double sum = 0;
+            for (int j = 0; j < n; j++)
+                sum += distance(unit[i], unit[j]);
+            if (sum < bestSum) {
+                bestSum = sum;
+                medoid = i;
+            }
+        }
+        int removed = 0;
+        for (int i = n - 1; i >= 0; i--) {
+            if (distance(unit[i], unit[medoid]) > threshold) {
+                embeddings.remove(i);
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private static float[] unit(float[] v) {
+        double norm = 0;
+        for (float x : v)
+            norm += x * x;
+        float scale = norm > 0 ? (float) (1 / Math.sqrt(norm)) : 0;
+        float[] out = new float[v.length];
+        for (int i = 0; i < v.length; i++)
+            out[i] = v[i] * scale;
+        return out;
+    }
+
+    private static float distance(float[] a, float[] b) {
+        float sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            float d = a[i] - b[i];
+            sum += d * d;
+        }
+        return (float) Math.sqrt(sum);
+    }
+
+    private List<Uri> listImages(Uri tree) {
+        List<Uri> images = new ArrayList<>();
+        Uri children = DocumentsContract.buildChildDocumentsUriUsingTree(tree, DocumentsContract.getTreeDocumentId(tree));
+        String[] columns = {DocumentsContract.Document.COLUMN_DOCUMENT_ID, DocumentsContract.Document.COLUMN_MIME_TYPE};
+        try (Cursor cursor = resolver.query(children, columns, null, null, null)) {
+            while (cursor != null && cursor.moveToNext()) {
+                String mime = cursor.getString(1);
+                if (mime != null && mime.startsWith("image/"))
+                    images.add(DocumentsContract.buildDocumentUriUsingTree(tree, cursor.getString(0)));
+            }
+        }
+        return images;
+    }
+}
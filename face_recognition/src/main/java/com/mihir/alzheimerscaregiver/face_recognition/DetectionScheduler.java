@@ -0,0 +1,142 @@
+package com.mihir.alzheimerscaregiver.face_recognition;
+
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import com.google.mlkit.vision.face.FaceDetection;
+import com.google.mlkit.vision.face.FaceDetector;
+import com.google.mlkit.vision.face.FaceDetectorOptions;
+
+//Decides where the next camera frame is searched for faces. Once faces are found, the
+//frames after it are only searched in a region of interest: the faces found, padded by
+//PADDING face sizes on every side. Detection cost follows the pixels searched, so while
+//people hold still in front of the camera (most of a long session) each frame costs a
+//fraction of a full-frame detection. The whole frame is searched again
+//  - every FULL_INTERVAL_MS, so someone walking in is noticed,
+//  - as soon as the region finds fewer faces than the detection before it,
+//  - when the region would cover more than MAX_REGION_AREA of the frame anyway.
+//Regions are in upright image coordinates and aligned to ALIGN pixels, so their crops
+//mostly keep the same size and the crop buffer is reused.
+//Used from the detect thread; the counters are read from the main thread.
+//The detector clients for each mode under Hyperparameters > Face Detection are made here too.
+public class DetectionScheduler {
+
+    public static final int MODE_LOW_POWER = 0, MODE_FAST = 1, MODE_ACCURATE = 2; //"detection_mode"
+    public static final float DEFAULT_MIN_FACE_SIZE = 0.15f; //Of the image width; ML Kit's own default is 0.1
+
+    static final float PADDING = 0.5f;
+    static final long FULL_INTERVAL_MS = 1000;
+    static final float MAX_REGION_AREA = 0.5f;
+    static final int ALIGN = 16;
+    static final int MIN_REGION = 96;
+
+    private final Rect region = new Rect();
+    private boolean hasRegion, enabled = true;
+    private int lastCount, regionWidth, regionHeight; //Frame size the region belongs to
+    private long lastFull = Long.MIN_VALUE / 2;
+    private long fullDetections, regionDetections, regionsLost;
+
+    public synchronized void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        hasRegion = false;
+    }
+
+    public synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    //Detect thread: true and the region in out to search only there, false for the whole
+    //width x height upright frame
+    public synchronized boolean next(long now, int width, int height, Rect out) {
+        if (!enabled || !hasRegion || width != regionWidth || height != regionHeight //Resolution changed
+                || now - lastFull >= FULL_INTERVAL_MS) {
+            lastFull = now;
+            fullDetections++;
+            return false;
+        }
+        out.set(region);
+        regionDetections++;
+        return true;
+    }
+
+    //Detect thread: the faces found (full image coordinates) in a width x height upright frame
+    public synchronized void detected(boolean inRegion, RectF[] boxes, int count, int width, int height) {
+        if (inRegion && count < lastCount) {
+            regionsLost++;
+            lastFull = Long.MIN_VALUE / 2; //Next frame searches everything
+        }
+        lastCount = count;
+        regionWidth = width;
+        regionHeight = height;
+        hasRegion = enabled && count > 0 && pad(boxes, count, width, height);
+    }
+
+    //Region around the faces; false when it is not worth it
+    private boolean pad(RectF[] boxes, int count, int width, int height) {
+        float left = Float.MAX_VALUE, top = Float.MAX_VALUE, right = -Float.MAX_VALUE, bottom = -Float.MAX_VALUE;
+        float size = 0;
+        for (int i = 0; i < count; i++) {
+            RectF box = boxes[i];
+            left = Math.min(left, box.left);
+            top = Math.min(top, box.top);
+            right = Math.max(right, box.right);
+            bottom = Math.max(bottom, box.bottom);
+            size = Math.max(size, Math.max(box.width(), box.height()));
+        }
+        float pad = Math.max(PADDING * size, (MIN_REGION - Math.min(right - left, bottom - top)) / 2);
+        //Outwards to ALIGN, inside the frame, even so chroma rows and columns line up
+        region.left = Math.max(0, (int) Math.floor((left - pad) / ALIGN) * ALIGN);
+        region.top = Math.max(0, (int) Math.floor((top - pad) / ALIGN) * ALIGN);
+        region.right = Math.min(width & ~1, (int) Math.ceil((right + pad) / ALIGN) * ALIGN);
+        region.bottom = Math.min(height & ~1, (int) Math.ceil((bottom + pad) / ALIGN) * ALIGN);
+        return region.width() > 0 && region.height() > 0
+                && region.width() * (long) region.height() <= MAX_REGION_AREA * width * height;
+    }
+
+    //Whole-frame detector: FAST unless ACCURATE was chosen, tracking on
+    public static FaceDetector frameDetector(int mode, float minFaceSize) {
+        return FaceDetection.getClient(new FaceDetectorOptions.Builder()
+                .setPerformanceMode(mode == MODE_ACCURATE ? FaceDetectorOptions.PERFORMANCE_MODE_ACCURATE : FaceDetectorOptions.PERFORMANCE_MODE_FAST)
+                .setMinFaceSize(minFaceSize) //Smaller faces are too far away to recognize anyway
+                .enableTracking() //Tracking ids let FaceTracker skip faces it already knows
+                .build());
+    }
+
+    //Region detector for MODE_LOW_POWER, null in the whole-frame modes. A region is about
+    //twice the face size, so faces fill a good part of it; no tracking, as its images move.
+    public static FaceDetector regionDetector(int mode, float minFaceSize) {
+        if (mode != MODE_LOW_POWER)
+            return null;
+        return FaceDetection.getClient(new FaceDetectorOptions.Builder()
+                .setPerformanceMode(FaceDetectorOptions.PERFORMANCE_MODE_FAST)
+                .setMinFaceSize(Math.max(minFaceSize, 0.2f))
+                .build());
+    }
+
+    //The sensor-oriented rectangle that becomes upright after rotating the sensor frame
+    //(sensorWidth x sensorHeight) clockwise by rotationDegrees, as FaceCropSampler does
+    static void toSensor(Rect upright, int rotationDegrees, int sensorWidth, int sensorHeight, Rect out) {
+        switch (((rotationDegrees % 360) + 360) % 360) {
+            case 90:
+                out.set(upright.top, sensorHeight - upright.right, upright.bottom, sensorHeight - upright.left);
+                break;
+            case 180:
+                out.set(sensorWidth - upright.right, sensorHeight - upright.bottom, sensorWidth - upright.left, sensorHeight - upright.top);
+                break;
+            case 270:
+                out.set(sensorWidth - upright.bottom, upright.left, sensorWidth - upright.top, upright.right);
+                break;
+            default:
+                out.set(upright);
+        }
+    }
+
+    //Developer mode summary
+    public synchronized String describe() {
+        long total = fullDetections + regionDetections;
+        if (!enabled)
+            return "Full frame";
+        return "Region " + regionDetections + "/" + total + (total > 0 ? " (" + (100 * regionDetections / total) + "%)" : "")
+                + ", lost " + regionsLost;
+    }
+}
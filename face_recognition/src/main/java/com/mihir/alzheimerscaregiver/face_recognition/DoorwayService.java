@@ -0,0 +1,279 @@
+package com.mihir.alzheimerscaregiver.face_recognition;
+
+import android.Manifest;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
+import android.os.Build;
+import android.os.SystemClock;
+import android.speech.tts.TextToSpeech;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.camera.core.CameraSelector;
+import androidx.camera.core.ImageAnalysis;
+import androidx.camera.lifecycle.ProcessCameraProvider;
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.NotificationManagerCompat;
+import androidx.core.content.ContextCompat;
+import androidx.lifecycle.LifecycleService;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.mlkit.vision.face.FaceDetector;
+
+import com.mihir.alzheimerscaregiver.face_core.FaceGallery;
+import com.mihir.alzheimerscaregiver.face_core.IdentityVote;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+//Doorway mode: recognition with the screen off. A foreground service binds only an
+//ImageAnalysis use case (no Preview) at the governor's low resolution and feeds the same
+//FacePipeline as FaceRecognitionActivity, with one interpreter thread and the frame
+//governor held to CPU_BUDGET of one core. When a face settles on an enrolled name
+//(IdentityVote), the visitor is announced out loud and in a notification, at most once
+//per ANNOUNCE_INTERVAL_MS for each person.
+//FaceRecognitionActivity starts it and stops it again when it opens, since only one of
+//them can use the camera. Sightings also go to a VisitRecorder, like the activity's.
+public class DoorwayService extends LifecycleService implements FacePipeline.Listener {
+
+    private static final String TAG = "DoorwayService";
+
+    static final String EXTRA_LENS_FACING = "lensFacing";
+    static final String EXTRA_PATIENT_ID = "patientId";
+    private static final String ACTION_STOP = "com.mihir.alzheimerscaregiver.face_recognition.STOP_DOORWAY";
+
+    static final float CPU_BUDGET = 0.05f;                 //5% of one core
+    static final long ANNOUNCE_INTERVAL_MS = 10 * 60 * 1000; //Per person
+    private static final int MAX_FACES = 2;               //A doorway rarely shows more at once
+    private static final float IMAGE_MEAN = 128.0f, IMAGE_STD = 128.0f;
+    private static final int OUTPUT_SIZE = 192;
+
+    private static final String SERVICE_CHANNEL = "doorway_mode";
+    private static final String VISITOR_CHANNEL = "visitors";
+    private static final int SERVICE_NOTIFICATION = 1;
+
+    private static volatile boolean running;
+
+    private final FaceGallery gallery = new FaceGallery(OUTPUT_SIZE);
+    private final Map<String, Long> announcedAt = new HashMap<>(); //Main thread
+    private Interpreter interpreter;
+    private FaceDetector detector, regionDetector;
+    private FacePipeline pipeline;
+    private VisitRecorder visitRecorder;
+    private TextToSpeech speech;
+    private boolean speechReady, cameraBound;
+    private int nextNotification = SERVICE_NOTIFICATION + 1;
+
+    //patientId: where visits are uploaded, null to keep them on the device
+    public static void start(Context context, int lensFacing, String patientId) {
+        Intent intent = new Intent(context, DoorwayService.class);
+        intent.putExtra(EXTRA_LENS_FACING, lensFacing);
+        intent.putExtra(EXTRA_PATIENT_ID, patientId);
+        ContextCompat.startForegroundService(context, intent);
+    }
+
+    public static void stop(Context context) {
+        context.stopService(new Intent(context, DoorwayService.class));
+    }
+
+    public static boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        running = true;
+        createChannels();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            startForeground(SERVICE_NOTIFICATION, serviceNotification(), ServiceInfo.FOREGROUND_SERVICE_TYPE_CAMERA);
+        else
+            startForeground(SERVICE_NOTIFICATION, serviceNotification());
+
+        speech = new TextToSpeech(this, status -> speechReady = status == TextToSpeech.SUCCESS);
+        if (!createPipeline())
+            stopSelf();
+    }
+
+    @Override
+    public int onStartCommand(@Nullable Intent intent, int flags, int startId) {
+        super.onStartCommand(intent, flags, startId);
+        if (intent != null && ACTION_STOP.equals(intent.getAction())) {
+            stopSelf();
+        } else if (pipeline != null && !cameraBound) {
+            int lensFacing = intent != null ? intent.getIntExtra(EXTRA_LENS_FACING, CameraSelector.LENS_FACING_BACK) : CameraSelector.LENS_FACING_BACK;
+            String patientId = intent != null ? intent.getStringExtra(EXTRA_PATIENT_ID) : null;
+            if (patientId != null) {
+                try {
+                    visitRecorder.setPatient(FirebaseFirestore.getInstance(), patientId);
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, "Firebase is not set up, visits stay on the device", e);
+                }
+            }
+            bindCamera(lensFacing);
+        }
+        return START_NOT_STICKY; //A camera service may not be restarted from the background
+    }
+
+    @Override
+    public void onDestroy() {
+        running = false;
+        super.onDestroy(); //Lifecycle destroyed: CameraX unbinds the analysis
+        if (pipeline != null) {
+            visitRecorder.close(); //Visits still open end now
+            pipeline.close();
+            synchronized (interpreter) {
+                interpreter.close();
+            }
+            detector.close();
+            if (regionDetector != null)
+                regionDetector.close();
+        }
+        speech.shutdown();
+    }
+
+    //Model, gallery and detectors as the activity uses them, tuned for low power
+    private boolean createPipeline() {
+        SharedPreferences sharedPref = getSharedPreferences("Distance", Context.MODE_PRIVATE);
+        String file = sharedPref.getBoolean("quantized_model", false) ? FaceModel.QUANTIZED_FILE : FaceModel.FLOAT_FILE;
+        FaceModel model;
+        try {
+            //One thread: the budget is counted against one core, and a doorway needs no speed
+            interpreter = new Interpreter(FaceRecognitionActivity.loadModelFile(this, file),
+                    new InterpreterTuner.Config(1, true, false).options());
+            model = FaceModel.describe(file, interpreter);
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Could not load " + file, e);
+            if (interpreter != null)
+                interpreter.close();
+            interpreter = null;
+            return false;
+        }
+        if (model.outputSize != OUTPUT_SIZE) {
+            Log.e(TAG, file + " does not match saved Recognitions");
+            interpreter.close();
+            interpreter = null;
+            return false;
+        }
+
+        GalleryStore store = GalleryStore.shared(this); //The activity's, so their writes stay in order
+        store.setModelTag(FaceModel.galleryTag(OUTPUT_SIZE));
+        try {
+            store.read(gallery);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not load Recognitions", e);
+        }
+        gallery.setEfSearch(sharedPref.getInt("ef_search", FaceGallery.DEFAULT_EF_SEARCH));
+
+        int detectionMode = sharedPref.getInt("detection_mode", DetectionScheduler.MODE_LOW_POWER);
+        float minFaceSize = sharedPref.getFloat("min_face_size", DetectionScheduler.DEFAULT_MIN_FACE_SIZE);
+        detector = DetectionScheduler.frameDetector(detectionMode, minFaceSize);
+        regionDetector = DetectionScheduler.regionDetector(detectionMode, minFaceSize);
+
+        pipeline = new FacePipeline(detector, regionDetector, interpreter, gallery, model,
+                IMAGE_MEAN, IMAGE_STD, MAX_FACES, this);
+        pipeline.setThreshold(sharedPref.getFloat("distance", 1.00f));
+        pipeline.governor().setCpuBudget(CPU_BUDGET);
+        visitRecorder = new VisitRecorder(this);
+        pipeline.governor().setIdleTimeout(sharedPref.getLong("idle_seconds", FrameGovernor.DEFAULT_IDLE_MS / 1000) * 1000);
+        return true;
+    }
+
+    //Analysis only, at the low resolution for the whole run (no rebinding)
+    private void bindCamera(int lensFacing) {
+        cameraBound = true;
+        ListenableFuture<ProcessCameraProvider> future = ProcessCameraProvider.getInstance(this);
+        future.addListener(() -> {
+            try {
+                ProcessCameraProvider cameraProvider = future.get();
+                CameraSelector cameraSelector = new CameraSelector.Builder()
+                        .requireLensFacing(lensFacing)
+                        .build();
+                ImageAnalysis imageAnalysis = new ImageAnalysis.Builder()
+                        .setTargetResolution(FrameGovernor.LOW)
+                        .setBackpressureStrategy(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST)
+                        .build();
+                imageAnalysis.setAnalyzer(pipeline.analyzerExecutor(), pipeline);
+                pipeline.setMirror(lensFacing == CameraSelector.LENS_FACING_FRONT);
+                cameraProvider.bindToLifecycle(this, cameraSelector, imageAnalysis);
+            } catch (ExecutionException | InterruptedException | IllegalArgumentException e) {
+                Log.e(TAG, "Could not open the camera", e);
+                stopSelf();
+            }
+        }, ContextCompat.getMainExecutor(this));
+    }
+
+    //Main thread: announce every enrolled face not announced recently
+    @Override
+    public void onFrame(FacePipeline.Frame frame) {
+        visitRecorder.record(frame);
+        long now = SystemClock.elapsedRealtime();
+        for (int i = 0; i < frame.count; i++) {
+            String name = frame.labels[i];
+            if (name == null || name.equals(IdentityVote.UNKNOWN))
+                continue;
+            Long last = announcedAt.get(name);
+            if (last != null && now - last < ANNOUNCE_INTERVAL_MS)
+                continue;
+            announcedAt.put(name, now);
+            announce(name);
+        }
+    }
+
+    private void announce(String name) {
+        String text = String.format(Locale.getDefault(), "%s is here", name);
+        if (speechReady)
+            speech.speak(text, TextToSpeech.QUEUE_ADD, null, name);
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+                && ContextCompat.checkSelfPermission(this, Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED)
+            return;
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, VISITOR_CHANNEL)
+                .setSmallIcon(R.drawable.ic_launcher_foreground)
+                .setContentTitle(text)
+                .setContentText("Seen at the door")
+                .setPriority(NotificationCompat.PRIORITY_HIGH)
+                .setCategory(NotificationCompat.CATEGORY_EVENT)
+                .setAutoCancel(true);
+        NotificationManagerCompat.from(this).notify(nextNotification++, builder.build());
+    }
+
+    private Notification serviceNotification() {
+        PendingIntent stop = PendingIntent.getService(this, 0,
+                new Intent(this, DoorwayService.class).setAction(ACTION_STOP), PendingIntent.FLAG_IMMUTABLE);
+        PendingIntent open = PendingIntent.getActivity(this, 0,
+                new Intent(this, FaceRecognitionActivity.class), PendingIntent.FLAG_IMMUTABLE);
+        return new NotificationCompat.Builder(this, SERVICE_CHANNEL)
+                .setSmallIcon(R.drawable.ic_launcher_foreground)
+                .setContentTitle("Doorway Mode")
+                .setContentText("Watching the door for visitors")
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .setOngoing(true)
+                .setContentIntent(open)
+                .addAction(0, "Stop", stop)
+                .build();
+    }
+
+    private void createChannels() {
+        NotificationManager manager = getSystemService(NotificationManager.class);
+        NotificationChannel service = new NotificationChannel(SERVICE_CHANNEL, "Doorway Mode", NotificationManager.IMPORTANCE_LOW);
+        service.setDescription("Shown while the camera watches the door");
+        manager.createNotificationChannel(service);
+        NotificationChannel visitors = new NotificationChannel(VISITOR_CHANNEL, "Visitors", NotificationManager.IMPORTANCE_HIGH);
+        visitors.setDescription("A known visitor was recognized at the door");
+        manager.createNotificationChannel(visitors);
+    }
+}
@@ -0,0 +1,54 @@
+package com.mihir.alzheimerscaregiver.face_recognition;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+//Crops, mirrors and resizes a face out of an imported photo in one draw, into a small ring
+//of size x size Bitmaps. The Canvas, Matrix and Paint are created once. A crop stays valid
+//(and may be shown) until RING more crops have been made. Main thread only.
+public class FaceCropper {
+
+    static final int RING = 2; //One on screen, one being drawn
+
+    private final int size;
+    private final Bitmap[] ring;
+    private final Canvas canvas = new Canvas();
+    private final Matrix matrix = new Matrix();
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private int next;
+
+    public FaceCropper(int size, BitmapPool pool) {
+        this.size = size;
+        ring = new Bitmap[RING];
+        for (int i = 0; i < RING; i++)
+            ring[i] = pool.acquire(size, size);
+    }
+
+    //box in source pixels; area outside the source is white, as before
+    public Bitmap crop(Bitmap source, RectF box, boolean mirror) {
+        Bitmap out = ring[next];
+        next = (next + 1) % RING;
+
+        matrix.setTranslate(-box.left, -box.top);
+        matrix.postScale(size / box.width(), size / box.height());
+        if (mirror)
+            matrix.postScale(-1, 1, size / 2f, size / 2f);
+
+        canvas.setBitmap(out);
+        canvas.drawColor(Color.WHITE);
+        canvas.drawBitmap(source, matrix, paint);
+        canvas.setBitmap(null); //Do not keep the ring Bitmap pinned to the Canvas
+        return out;
+    }
+
+    public void release(BitmapPool pool) {
+        for (int i = 0; i < RING; i++) {
+            pool.release(ring[i]);
+            ring[i] = null;
+        }
+    }
+}
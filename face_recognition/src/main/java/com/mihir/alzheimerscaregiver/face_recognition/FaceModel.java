@@ -0,0 +1,94 @@
+package com.mihir.alzheimerscaregiver.face_recognition;
+
+import com.mihir.alzheimerscaregiver.face_core.FaceCropSampler;
+
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+
+//What the rest of the recognition code needs to know about the loaded embedding model,
+//read from its tensors rather than assumed: input size and type, output size and type,
+//and the quantization parameters used to pack the input and dequantize the output.
+//Both bundled variants are MobileFaceNet; the quantized one is the float network after
+//post-training quantization, so their embeddings share one space and one gallery.
+public class FaceModel {
+
+    public static final String FLOAT_FILE = "mobile_face_net.tflite";
+    public static final String QUANTIZED_FILE = "mobile_face_net_int8.tflite";
+    static final String FAMILY = "mobile_face_net"; //Galleries are compatible within a family
+
+    public final String file;
+    public final int inputSize;
+    public final int outputSize;
+    public final DataType inputType;
+    public final float inputScale;
+    public final int inputZeroPoint;
+    public final DataType outputType;
+    public final float outputScale;
+    public final int outputZeroPoint;
+
+    private FaceModel(String file, Tensor input, Tensor output) {
+        this.file = file;
+        int[] inputShape = input.shape();   //[batch, size, size, 3]
+        int[] outputShape = output.shape(); //[batch, dim]
+        inputSize = inputShape[1];
+        outputSize = outputShape[outputShape.length - 1];
+        inputType = input.dataType();
+        inputScale = input.quantizationParams().getScale();
+        inputZeroPoint = input.quantizationParams().getZeroPoint();
+        outputType = output.dataType();
+        outputScale = output.quantizationParams().getScale();
+        outputZeroPoint = output.quantizationParams().getZeroPoint();
+    }
+
+    public static FaceModel describe(String file, Interpreter interpreter) {
+        FaceModel model = new FaceModel(file, interpreter.getInputTensor(0), interpreter.getOutputTensor(0));
+        if (!model.isSupported(model.inputType) || !model.isSupported(model.outputType))
+            throw new IllegalArgumentException(file + ": unsupported tensor type " + model.inputType + "/" + model.outputType);
+        return model;
+    }
+
+    private boolean isSupported(DataType type) {
+        return type == DataType.FLOAT32 || type == DataType.UINT8 || type == DataType.INT8;
+    }
+
+    public boolean quantizedInput() {
+        return inputType != DataType.FLOAT32;
+    }
+
+    public boolean quantizedOutput() {
+        return outputType != DataType.FLOAT32;
+    }
+
+    public boolean isQuantized() {
+        return quantizedInput() || quantizedOutput();
+    }
+
+    public int inputBytesPerFace() {
+        return inputSize * inputSize * 3 * (quantizedInput() ? 1 : 4);
+    }
+
+    public int outputBytesPerFace() {
+        return outputSize * (quantizedOutput() ? 1 : 4);
+    }
+
+    public FaceCropSampler newSampler(float mean, float std) {
+        if (!quantizedInput())
+            return new FaceCropSampler(inputSize, mean, std);
+        return new FaceCropSampler(inputSize, mean, std, inputScale, inputZeroPoint, inputType == DataType.INT8);
+    }
+
+    //Stored with the gallery: embeddings of another family or size cannot be compared
+    public int galleryTag() {
+        return galleryTag(outputSize);
+    }
+
+    public static int galleryTag(int outputSize) {
+        return 31 * FAMILY.hashCode() + outputSize;
+    }
+
+    @Override
+    public String toString() {
+        return file + " (" + inputType + " in, " + outputType + " out)";
+    }
+}
@@ -0,0 +1,119 @@
+package com.mihir.alzheimerscaregiver.face_recognition;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.graphics.Typeface;
+import android.util.AttributeSet;
+import android.view.View;
+
+//Draws a box and a name for every recognized face on top of the camera preview.
+//Boxes are in upright analysis-image coordinates and are mapped the same way
+//PreviewView's default FILL_CENTER scale type maps the camera image.
+//In developer mode it also shows the pipeline statistics in the top left corner.
+public class FaceOverlayView extends View {
+
+    private final Paint boxPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint textPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint statsPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint statsBackground = new Paint();
+    private final RectF drawRect = new RectF();
+    private String[] statsLines;
+
+    private RectF[] boxes = new RectF[0];
+    private String[] labels = new String[0];
+    private int count;
+    private int imageWidth, imageHeight;
+    private boolean mirror;
+
+    public FaceOverlayView(Context context) {
+        this(context, null);
+    }
+
+    public FaceOverlayView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        float density = getResources().getDisplayMetrics().density;
+        boxPaint.setStyle(Paint.Style.STROKE);
+        boxPaint.setStrokeWidth(2 * density);
+        boxPaint.setColor(Color.GREEN);
+        textPaint.setColor(Color.GREEN);
+        textPaint.setTextSize(14 * density);
+        textPaint.setShadowLayer(2 * density, 0, 0, Color.BLACK);
+        statsPaint.setColor(Color.WHITE);
+        statsPaint.setTextSize(10 * density);
+        statsPaint.setTypeface(Typeface.MONOSPACE);
+        statsBackground.setColor(0x99000000);
+    }
+
+    //Multi-line text, null to hide it
+    public void setStats(String stats) {
+        statsLines = stats != null ? stats.split("\n") : null;
+        invalidate();
+    }
+
+    //Copies the first count boxes and labels; safe to reuse the arrays afterwards
+    public void setFaces(int imageWidth, int imageHeight, boolean mirror, RectF[] faceBoxes, String[] faceLabels, int count) {
+        if (boxes.length < count) {
+            boxes = new RectF[count];
+            labels = new String[count];
+            for (int i = 0; i < count; i++)
+                boxes[i] = new RectF();
+        }
+        for (int i = 0; i < count; i++) {
+            boxes[i].set(faceBoxes[i]);
+            labels[i] = faceLabels[i];
+        }
+        this.count = count;
+        this.imageWidth = imageWidth;
+        this.imageHeight = imageHeight;
+        this.mirror = mirror;
+        invalidate();
+    }
+
+    public void clear() {
+        if (count != 0) {
+            count = 0;
+            invalidate();
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (statsLines != null)
+            drawStats(canvas);
+        if (count == 0 || imageWidth == 0 || imageHeight == 0)
+            return;
+        float scale = Math.max(getWidth() / (float) imageWidth, getHeight() / (float) imageHeight);
+        float dx = (getWidth() - imageWidth * scale) / 2;
+        float dy = (getHeight() - imageHeight * scale) / 2;
+
+        for (int i = 0; i < count; i++) {
+            RectF box = boxes[i];
+            float left = box.left * scale + dx;
+            float right = box.right * scale + dx;
+            if (mirror) {
+                float mirroredLeft = getWidth() - right;
+                right = getWidth() - left;
+                left = mirroredLeft;
+            }
+            drawRect.set(left, box.top * scale + dy, right, box.bottom * scale + dy);
+            canvas.drawRect(drawRect, boxPaint);
+            if (labels[i] != null)
+                canvas.drawText(labels[i], drawRect.left, drawRect.top - textPaint.getTextSize() / 4, textPaint);
+        }
+    }
+
+    private void drawStats(Canvas canvas) {
+        float lineHeight = statsPaint.getFontSpacing();
+        float width = 0;
+        for (String line : statsLines)
+            width = Math.max(width, statsPaint.measureText(line));
+        float padding = lineHeight / 2;
+        canvas.drawRect(0, 0, width + 2 * padding, statsLines.length * lineHeight + 2 * padding, statsBackground);
+        for (int i = 0; i < statsLines.length; i++)
+            canvas.drawText(statsLines[i], padding, padding + (i + 1) * lineHeight - statsPaint.descent(), statsPaint);
+    }
+}
@@ -0,0 +1,489 @@
+package com.mihir.alzheimerscaregiver.face_recognition;
+
+import android.annotation.SuppressLint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.media.Image;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+import androidx.camera.core.ImageAnalysis;
+import androidx.camera.core.ImageProxy;
+
+import com.google.android.gms.tasks.OnCompleteListener;
+import com.google.android.gms.tasks.Task;
+import com.google.mlkit.vision.common.InputImage;
+import com.google.mlkit.vision.face.Face;
+import com.google.mlkit.vision.face.FaceDetector;
+
+import com.mihir.alzheimerscaregiver.face_core.FaceCropSampler;
+import com.mihir.alzheimerscaregiver.face_core.FaceGallery;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+//Camera frames go through four stages, each on its own thread:
+//  detect      ML Kit face detection, of the whole frame or only of the region where the
+//              DetectionScheduler expects the faces, then YUV to ARGB; the camera image
+//              is closed here
+//  preprocess  face tracking, and cropping of the faces that need an embedding
+//  inference   one batched model run
+//  match       gallery search and track identities
+//Stages hand frames on through queues that hold one frame; when a stage falls behind,
+//the frame already waiting is dropped for the newer one. Only the finished result is
+//posted to the main thread, again keeping only the latest. Every buffer a frame needs
+//lives in a Frame from a fixed pool, so several frames can be in flight without the
+//steady state allocating. A FrameGovernor decides which camera frames are analyzed at
+//all, and at which resolution the camera should deliver them. The executors live as
+//long as the pipeline; close() them when the owner is destroyed.
+//Every stage records its duration into PipelineStats for developer mode. With allocation
+//counting on (developer mode), every stage also adds the objects its thread allocated for
+//the frame, as the runtime counts them, to Frame.allocations. ML Kit's own detection
+//threads are not counted.
+public class FacePipeline implements ImageAnalysis.Analyzer, OnCompleteListener<List<Face>> {
+
+    public interface Listener {
+        //Main thread. The frame goes back to the pool when this returns.
+        void onFrame(Frame frame);
+    }
+
+    private static final int FRAMES = 5;       //Detect + one waiting and one running per stage, roughly
+    private static final int QUEUE_FRAMES = 1; //Frames waiting in front of a stage
+
+    public static class Frame {
+        final YuvConverter converter = new YuvConverter();
+        final InferenceContext inference;
+        final RectF[] boxes;                   //Upright full-frame coordinates
+        final int[] trackingIds;               //ML Kit tracking id of each box, -1 for none
+        final FaceTracker.Track[] tracks;
+        final int[] batchFaces;                //Face index of each row in the model batch
+        final String[] labels;
+        final float[] embedding;               //First face, valid when firstEmbedded
+        final FaceGallery.Match match = new FaceGallery.Match(); //First face, valid when firstEmbedded
+        int count, batch, rotation;
+        boolean mirror, firstEmbedded;
+        long time, admitted;
+        long admittedNanos, postedNanos;
+        long workNanos;                        //Time the stages spent on this frame
+        float motion;
+        int allocations;                       //Objects the stage threads allocated, while counting
+
+        final Runnable preprocessTask, inferenceTask, matchTask;
+
+        Frame(FacePipeline pipeline, InferenceContext inference, int outputSize) {
+            this.inference = inference;
+            int maxBatch = inference.maxBatch();
+            boxes = new RectF[maxBatch];
+            for (int i = 0; i < maxBatch; i++)
+                boxes[i] = new RectF();
+            trackingIds = new int[maxBatch];
+            tracks = new FaceTracker.Track[maxBatch];
+            batchFaces = new int[maxBatch];
+            labels = new String[maxBatch];
+            embedding = new float[outputSize];
+            preprocessTask = new StageTask(this, pipeline::preprocess);
+            inferenceTask = new StageTask(this, pipeline::infer);
+            matchTask = new StageTask(this, pipeline::match);
+        }
+
+        //Size of the upright image the boxes refer to
+        public int imageWidth() {
+            return rotation % 180 != 0 ? converter.getHeight() : converter.getWidth();
+        }
+
+        public int imageHeight() {
+            return rotation % 180 != 0 ? converter.getWidth() : converter.getHeight();
+        }
+
+        //Model input crop of the first face, valid when firstEmbedded
+        public int[] facePixels() {
+            return inference.pixels();
+        }
+    }
+
+    private interface Stage {
+        void run(Frame frame);
+    }
+
+    private static class StageTask implements Runnable {
+        final Frame frame;
+        final Stage stage;
+
+        StageTask(Frame frame, Stage stage) {
+            this.frame = frame;
+            this.stage = stage;
+        }
+
+        @Override
+        public void run() {
+            stage.run(frame);
+        }
+    }
+
+    private final FaceDetector detector, regionDetector;
+    private volatile Interpreter interpreter;
+    private final FaceGallery gallery;
+    private final FaceCropSampler sampler;
+    private final FaceTracker tracker = new FaceTracker();
+    private final FrameGovernor governor = new FrameGovernor();
+    private final DetectionScheduler scheduler = new DetectionScheduler();
+    private final Listener listener;
+    private final int maxBatch;
+
+    private final ArrayBlockingQueue<Frame> free = new ArrayBlockingQueue<>(FRAMES);
+    private final ThreadPoolExecutor detectExecutor, preprocessExecutor, inferenceExecutor, matchExecutor;
+    private final Handler main = new Handler(Looper.getMainLooper());
+    private final AtomicReference<Frame> result = new AtomicReference<>();
+    private final PipelineStats stats = new PipelineStats();
+    private final FaceGallery.Match nearest = new FaceGallery.Match(); //Match stage scratch
+    private ImageProxy detecting; //Image whose detection is running, detect thread only
+    private long detectingSince, detectingNanos;
+    private long detectingAllocations; //Allocated by analyze() for the image being detected
+    private boolean detectingRegion;
+    private final Rect region = new Rect(), sensorRegion = new Rect(); //Detect thread
+    private final YuvConverter regionConverter = new YuvConverter();   //Detect thread
+
+    private volatile boolean running = true, closed, countAllocations;
+    private volatile boolean mirror, enrolling;
+    private volatile int maxFaces;
+    private volatile float threshold = 1.0f;
+
+    //regionDetector searches the regions of interest, without tracking (its images move
+    //and change size); null to always search the whole frame with detector
+    public FacePipeline(FaceDetector detector, FaceDetector regionDetector, Interpreter interpreter, FaceGallery gallery,
+                        FaceModel model, float mean, float std, int maxBatch, Listener listener) {
+        this.detector = detector;
+        this.regionDetector = regionDetector;
+        scheduler.setEnabled(regionDetector != null);
+        this.interpreter = interpreter;
+        this.gallery = gallery;
+        this.listener = listener;
+        this.maxBatch = maxBatch;
+        this.maxFaces = maxBatch;
+        sampler = model.newSampler(mean, std);
+        for (int i = 0; i < FRAMES; i++)
+            free.add(new Frame(this, new InferenceContext(model, maxBatch), model.outputSize));
+
+        //Detection results are delivered here by ML Kit; after close() they are ignored
+        detectExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, "FacePipeline-detect"), new ThreadPoolExecutor.DiscardPolicy());
+        preprocessExecutor = stage("FacePipeline-preprocess");
+        inferenceExecutor = stage("FacePipeline-inference");
+        matchExecutor = stage("FacePipeline-match");
+    }
+
+    //Executor to pass to ImageAnalysis.setAnalyzer together with this pipeline
+    public Executor analyzerExecutor() {
+        return detectExecutor;
+    }
+
+    //Replacing the interpreter while frames run is safe if the caller swaps it while holding
+    //the old interpreter's lock
+    public void setInterpreter(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    public FaceTracker tracker() {
+        return tracker;
+    }
+
+    public FrameGovernor governor() {
+        return governor;
+    }
+
+    public DetectionScheduler scheduler() {
+        return scheduler;
+    }
+
+    //Frames thrown away because a stage or the main thread was still busy
+    public long getDroppedFrames() {
+        return stats.getDroppedFrames();
+    }
+
+    public PipelineStats stats() {
+        return stats;
+    }
+
+    //Camera frames are closed without detection while not running
+    public void setRunning(boolean running) {
+        this.running = running;
+    }
+
+    public void setMirror(boolean mirror) {
+        this.mirror = mirror;
+    }
+
+    //While enrolling, the first face is embedded every frame so "Add" saves what is previewed
+    public void setEnrolling(boolean enrolling) {
+        this.enrolling = enrolling;
+    }
+
+    public void setMaxFaces(int maxFaces) {
+        this.maxFaces = Math.max(1, Math.min(maxBatch, maxFaces));
+    }
+
+    public void setThreshold(float threshold) {
+        this.threshold = threshold;
+    }
+
+    //Developer mode: count the allocations of every frame. Counting is process wide and
+    //slows allocation down, so it is only on while the numbers are shown.
+    @SuppressWarnings("deprecation") //Still implemented by ART; the only per-thread count there is
+    public void setAllocationCounting(boolean on) {
+        if (on == countAllocations)
+            return;
+        if (on) {
+            Debug.resetAllocCount(Debug.SHOW_FULL_DETAIL);
+            Debug.startAllocCounting();
+        } else {
+            Debug.stopAllocCounting();
+        }
+        countAllocations = on;
+    }
+
+    //Objects allocated by the calling thread so far, 0 while not counting
+    @SuppressWarnings("deprecation")
+    private long allocations() {
+        return countAllocations ? Debug.getThreadAllocCount() : 0;
+    }
+
+    //Stops every stage. Frames still queued are dropped; a run already inside the
+    //interpreter finishes first, so the interpreter can be closed under its lock afterwards.
+    public void close() {
+        closed = true;
+        detectExecutor.shutdownNow();
+        preprocessExecutor.shutdownNow();
+        inferenceExecutor.shutdownNow();
+        matchExecutor.shutdownNow();
+        main.removeCallbacks(deliver);
+    }
+
+    //Detect stage: ImageAnalysis runs this on detectExecutor
+    @Override
+    public void analyze(@NonNull ImageProxy imageProxy) {
+        @SuppressLint("UnsafeExperimentalUsageError")
+        Image mediaImage = imageProxy.getImage();
+        long now = SystemClock.uptimeMillis();
+        if (!running || closed || mediaImage == null || !governor.admit(now)) {
+            imageProxy.close();
+            return;
+        }
+        detecting = imageProxy;
+        detectingSince = now; //Closed once detection completes, nothing else is delivered before that
+        detectingNanos = SystemClock.elapsedRealtimeNanos();
+        long allocated = allocations();
+        int rotation = imageProxy.getImageInfo().getRotationDegrees();
+        detectingRegion = scheduler.next(now, uprightWidth(imageProxy), uprightHeight(imageProxy), region);
+        if (detectingRegion) {
+            DetectionScheduler.toSensor(region, rotation, mediaImage.getWidth(), mediaImage.getHeight(), sensorRegion);
+            InputImage image = InputImage.fromByteArray(regionConverter.cropNv21(mediaImage, sensorRegion),
+                    sensorRegion.width(), sensorRegion.height(), rotation, InputImage.IMAGE_FORMAT_NV21);
+            detectingAllocations = allocations() - allocated;
+            regionDetector.process(image).addOnCompleteListener(detectExecutor, this);
+        } else {
+            InputImage image = InputImage.fromMediaImage(mediaImage, rotation);
+            detectingAllocations = allocations() - allocated;
+            detector.process(image).addOnCompleteListener(detectExecutor, this);
+        }
+    }
+
+    //Detect stage, continued with the detection result
+    @Override
+    public void onComplete(@NonNull Task<List<Face>> task) {
+        ImageProxy imageProxy = detecting;
+        detecting = null;
+        long allocated = allocations();
+        try {
+            if (!task.isSuccessful() || closed)
+                return;
+            long detected = SystemClock.elapsedRealtimeNanos();
+            stats.record(PipelineStats.DETECT, detected - detectingNanos);
+            Frame frame = free.poll();
+            if (frame == null) { //Every frame is still in flight
+                stats.frameDropped();
+                return;
+            }
+            frame.admitted = detectingSince;
+            frame.admittedNanos = detectingNanos;
+            List<Face> faces = task.getResult();
+            frame.count = Math.min(faces.size(), maxFaces);
+            for (int i = 0; i < frame.count; i++) {
+                Face face = faces.get(i);
+                frame.boxes[i].set(face.getBoundingBox());
+                if (detectingRegion)
+                    frame.boxes[i].offset(region.left, region.top); //Upright region to upright frame
+                Integer trackingId = face.getTrackingId();
+                frame.trackingIds[i] = trackingId != null ? trackingId : -1;
+            }
+            scheduler.detected(detectingRegion, frame.boxes, frame.count, uprightWidth(imageProxy), uprightHeight(imageProxy));
+            frame.rotation = imageProxy.getImageInfo().getRotationDegrees();
+            frame.mirror = mirror;
+            if (frame.count > 0) {
+                @SuppressLint("UnsafeExperimentalUsageError")
+                Image mediaImage = imageProxy.getImage();
+                frame.converter.convert(mediaImage); //mediaImage to ARGB pixels, owned by the frame
+                stats.record(PipelineStats.YUV, SystemClock.elapsedRealtimeNanos() - detected);
+            }
+            frame.workNanos = SystemClock.elapsedRealtimeNanos() - detectingNanos;
+            frame.allocations = (int) (detectingAllocations + allocations() - allocated);
+            hand(preprocessExecutor, frame.preprocessTask);
+        } finally {
+            imageProxy.close(); //v.important to acquire next frame for analysis
+        }
+    }
+
+    //Crop, orient, mirror and scale the faces that need a fresh identity to 112*112,
+    //straight into the frame's model input
+    private void preprocess(Frame frame) {
+        long allocated = allocations();
+        frame.time = SystemClock.uptimeMillis();
+        tracker.update(frame.boxes, frame.trackingIds, frame.count, frame.tracks);
+        frame.motion = tracker.getMotion();
+
+        ByteBuffer input = frame.inference.input();
+        int[] pixels = frame.inference.pixels();
+        int[] argb = frame.converter.getPixels();
+        int width = frame.converter.getWidth();
+        int height = frame.converter.getHeight();
+        boolean enrolling = this.enrolling;
+        int batch = 0;
+        long cropNanos = 0;
+
+        for (int i = 0; i < frame.count; i++) {
+            RectF box = frame.boxes[i];
+            if (tracker.needsEmbedding(frame.tracks[i], frame.time) || (i == 0 && enrolling)) {
+                long start = SystemClock.elapsedRealtimeNanos();
+                sampler.sample(argb, width, height, box.left, box.top, box.right, box.bottom,
+                        frame.rotation, frame.mirror, input, i == 0 ? pixels : null);
+                cropNanos += SystemClock.elapsedRealtimeNanos() - start;
+                frame.batchFaces[batch++] = i;
+            }
+        }
+        if (batch > 0)
+            stats.record(PipelineStats.CROP, cropNanos);
+        frame.workNanos += cropNanos;
+        frame.batch = batch;
+        frame.firstEmbedded = batch > 0 && frame.batchFaces[0] == 0;
+        frame.allocations += (int) (allocations() - allocated);
+        hand(inferenceExecutor, frame.inferenceTask);
+    }
+
+    private void infer(Frame frame) {
+        long allocated = allocations();
+        while (frame.batch > 0) {
+            Interpreter interpreter = this.interpreter;
+            synchronized (interpreter) { //Shared with the photo import on the main thread
+                if (interpreter != this.interpreter)
+                    continue; //Swapped while waiting for the lock
+                if (closed) {
+                    release(frame);
+                    return;
+                }
+                frame.inference.run(interpreter, frame.batch); //Run model once for all faces
+                stats.record(PipelineStats.TENSOR, frame.inference.getTensorNanos());
+                stats.record(PipelineStats.RUN, frame.inference.getRunNanos());
+                frame.workNanos += frame.inference.getTensorNanos() + frame.inference.getRunNanos();
+                break;
+            }
+        }
+        frame.allocations += (int) (allocations() - allocated);
+        hand(matchExecutor, frame.matchTask);
+    }
+
+    private void match(Frame frame) {
+        long allocated = allocations();
+        float threshold = this.threshold;
+        if (frame.batch > 0) {
+            float[][] embeddings = frame.inference.embeddings(frame.batch);
+            long matchNanos = 0;
+            for (int b = 0; b < frame.batch; b++) {
+                int i = frame.batchFaces[b];
+                FaceGallery.Match match = i == 0 ? frame.match : nearest;
+                long start = SystemClock.elapsedRealtimeNanos();
+                gallery.findNearest(embeddings[b], match); //Find 2 closest matching faces
+                matchNanos += SystemClock.elapsedRealtimeNanos() - start;
+                tracker.identified(frame.tracks[i], match, threshold, frame.time); //Voted label
+                if (i == 0)
+                    System.arraycopy(embeddings[b], 0, frame.embedding, 0, frame.embedding.length); //Saved by addFace()
+            }
+            stats.record(PipelineStats.MATCH, matchNanos);
+            frame.workNanos += matchNanos;
+        }
+        for (int i = 0; i < frame.count; i++)
+            frame.labels[i] = frame.tracks[i].name();
+
+        frame.allocations += (int) (allocations() - allocated);
+
+        frame.postedNanos = SystemClock.elapsedRealtimeNanos();
+        Frame older = result.getAndSet(frame);
+        if (older != null) { //The main thread has not picked up the previous result yet
+            stats.frameDropped();
+            release(older);
+        } else {
+            main.post(deliver);
+        }
+    }
+
+    private final Runnable deliver = () -> {
+        Frame frame = result.getAndSet(null);
+        if (frame == null)
+            return;
+        long now = SystemClock.uptimeMillis();
+        governor.frameDone(now, frame.count, now - frame.admitted, frame.workNanos / 1e6f, frame.motion);
+        if (!closed)
+            listener.onFrame(frame);
+        long shown = SystemClock.elapsedRealtimeNanos();
+        stats.record(PipelineStats.UI, shown - frame.postedNanos);
+        stats.record(PipelineStats.TOTAL, shown - frame.admittedNanos);
+        stats.frameDelivered(shown);
+        release(frame);
+    };
+
+    private void hand(ThreadPoolExecutor stage, Runnable task) {
+        stage.execute(task); //Full queue: dropOldest makes room
+    }
+
+    private void release(Frame frame) {
+        free.offer(frame);
+    }
+
+    private static int uprightWidth(ImageProxy image) {
+        return image.getImageInfo().getRotationDegrees() % 180 != 0 ? image.getHeight() : image.getWidth();
+    }
+
+    private static int uprightHeight(ImageProxy image) {
+        return image.getImageInfo().getRotationDegrees() % 180 != 0 ? image.getWidth() : image.getHeight();
+    }
+
+    private ThreadPoolExecutor stage(String name) {
+        return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE_FRAMES),
+                runnable -> new Thread(runnable, name), dropOldest);
+    }
+
+    //Each stage has a single producer, so once the waiting frame is removed the retry fits.
+    //After close() the new frame is simply returned to the pool.
+    private final RejectedExecutionHandler dropOldest = (task, executor) -> {
+        if (executor.isShutdown()) {
+            release(((StageTask) task).frame);
+            return;
+        }
+        Runnable oldest = executor.getQueue().poll();
+        if (oldest != null) {
+            stats.frameDropped();
+            release(((StageTask) oldest).frame);
+        }
+        executor.execute(task);
+    };
+}
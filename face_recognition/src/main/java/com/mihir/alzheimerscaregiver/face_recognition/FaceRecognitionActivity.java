@@ -1,8 +1,7 @@
 package com.mihir.alzheimerscaregiver.face_recognition;
 
 import android.Manifest;
-import android.annotation.SuppressLint;
-import android.app.Activity;
+import android.content.ClipData;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -10,19 +9,11 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.res.AssetFileDescriptor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.ImageFormat;
-import android.graphics.Matrix;
-import android.graphics.Paint;
-import android.graphics.Rect;
 import android.graphics.RectF;
-import android.graphics.YuvImage;
-import android.media.Image;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 
 import androidx.annotation.NonNull;
 
@@ -30,33 +21,28 @@ import androidx.annotation.RequiresApi;
 import androidx.appcompat.app.AlertDialog;
 import androidx.camera.core.CameraSelector;
 import androidx.camera.core.ImageAnalysis;
-import androidx.camera.core.ImageProxy;
 import androidx.camera.core.Preview;
 import androidx.camera.lifecycle.ProcessCameraProvider;
 
-import com.google.android.gms.tasks.OnCompleteListener;
 import com.google.android.gms.tasks.OnFailureListener;
 import com.google.android.gms.tasks.OnSuccessListener;
-import com.google.android.gms.tasks.Task;
 import com.google.common.util.concurrent.ListenableFuture;
 
 
+import com.google.firebase.auth.FirebaseAuth;
+import com.google.firebase.firestore.FirebaseFirestore;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 import com.google.mlkit.vision.common.InputImage;
 import com.google.mlkit.vision.face.Face;
-import com.google.mlkit.vision.face.FaceDetection;
 import com.google.mlkit.vision.face.FaceDetector;
-import com.google.mlkit.vision.face.FaceDetectorOptions;
 
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.camera.view.PreviewView;
 import androidx.core.content.ContextCompat;
 import androidx.lifecycle.LifecycleOwner;
 
-import android.os.ParcelFileDescriptor;
 import android.text.InputType;
-import android.util.Pair;
 import android.util.Size;
 import android.view.View;
 
@@ -69,37 +55,52 @@ import android.widget.Toast;
 
 import org.tensorflow.lite.Interpreter;
 
-import java.io.ByteArrayOutputStream;
-import java.io.FileDescriptor;
+import com.mihir.alzheimerscaregiver.face_core.EmbeddingCache;
+import com.mihir.alzheimerscaregiver.face_core.FaceBlob;
+import com.mihir.alzheimerscaregiver.face_core.FaceCropSampler;
+import com.mihir.alzheimerscaregiver.face_core.FaceGallery;
+import com.mihir.alzheimerscaregiver.face_core.ThresholdCalibration;
+import com.mihir.alzheimerscaregiver.face_core.VisitSessions;
+
+import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
-import java.nio.ReadOnlyBufferException;
 import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 
 public class FaceRecognitionActivity extends AppCompatActivity {
     FaceDetector detector;
+    FaceDetector regionDetector; //Regions of interest around known faces, null in the full-frame modes
 
     private ListenableFuture<ProcessCameraProvider> cameraProviderFuture;
     PreviewView previewView;
     ImageView face_preview;
     Interpreter tfLite;
+    MappedByteBuffer modelBuffer;
+    InterpreterTuner.Config interpreterConfig; //Threads and delegates tfLite was created with
     TextView reco_name,preview_info,textAbove_preview;
+    String shownName; //Text of reco_name outside developer mode
+    static final long STATS_INTERVAL_MS = 500;
+    long statsShownAt; //Last developer overlay update
     Button recognize,camera_switch, actions;
     ImageButton add_face;
     CameraSelector cameraSelector;
     boolean developerMode=false;
     float distance= 1.0f;
-    boolean start=true,flipX=false;
+    boolean flipX=false;
     Context context= FaceRecognitionActivity.this;
     int cam_face=CameraSelector.LENS_FACING_BACK; //Default Back Camera
 
@@ -111,19 +112,57 @@ public class FaceRecognitionActivity extends AppCompatActivity {
     float IMAGE_STD = 128.0f;
     int OUTPUT_SIZE=192; //Output size of model
     private static int SELECT_PICTURE = 1;
+    private static final int SELECT_PHOTOS = 2;
+    private static final int SELECT_FOLDER = 3;
+    String bulkName; //Name the photos being picked for bulk enrollment belong to
+    BulkEnroller bulkEnroller; //Running bulk enrollment, null if none
+    AlertDialog bulkProgress;
     ProcessCameraProvider cameraProvider;
     private static final int MY_CAMERA_REQUEST_CODE = 100;
-
-    String modelFile="mobile_face_net.tflite"; //model name
-
-    private HashMap<String, SimilarityClassifier.Recognition> registered = new HashMap<>(); //saved Faces
+    private static final int NOTIFICATION_REQUEST_CODE = 101;
+
+    String modelFile=FaceModel.FLOAT_FILE; //model name, FaceModel.QUANTIZED_FILE when selected under Hyperparameters
+    FaceModel faceModel; //Tensor types and quantization of the loaded model
+    boolean modelTuned; //interpreterConfig was calibrated on this device
+    FaceCropSampler photoSampler; //Packs imported photos for the loaded model
+    static final int RECENT_CROPS = 8;
+    int[][] recentCrops = new int[RECENT_CROPS][]; //Last camera face crops, for "Compare Models"
+    int recentCropCount;
+
+    FacePipeline pipeline; //Camera frames: detection, crops, model and matching off the main thread
+    InferenceContext inferenceContext; //Model input/output buffers for imported photos
+    static final int MAX_BATCH = 8; //Upper bound for the "Maximum Faces" hyperparameter
+    int maxFaces = 4; //Faces recognized per frame
+    float[] primaryEmbedding = new float[OUTPUT_SIZE]; //Latest embedding of the first face, used by addFace()
+    FaceOverlayView faceOverlay;
+    ImageAnalysis imageAnalysis;
+    Size analysisSize; //Resolution imageAnalysis was bound with
+    Bitmap previewBitmap; //Face preview, overwritten every frame
+    static final long BITMAP_POOL_BYTES = 16L << 20; //A few decoded photos
+    BitmapPool bitmapPool = new BitmapPool(BITMAP_POOL_BYTES); //Imported photos and their crops
+    FaceCropper faceCropper;
+    EmbeddingCache embeddingCache = new EmbeddingCache(); //Imported photo crops, by dHash
+
+    private FaceGallery gallery = new FaceGallery(OUTPUT_SIZE); //saved Faces (normalized embeddings)
+    private GalleryStore galleryStore;
+    GallerySync gallerySync; //Mirror in Firestore, null when signed out or Firebase is missing
+    String syncPatientId; //Patient the gallery and visits sync to, handed on to DoorwayService
+    VisitRecorder visitRecorder; //Visits of recognized people, on device and per day in Firestore
+    Uri bulkVisitor; //Caretaker's visitor photo being enrolled, null for the caregiver's own photos
+    final Map<Uri, String> visitors = new LinkedHashMap<>(); //Visitor photos waiting for the enroller
     @RequiresApi(api = Build.VERSION_CODES.M)
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        registered=readFromSP(); //Load saved faces from memory when app starts
+        galleryStore = GalleryStore.shared(this); //Also DoorwayService's
+        galleryStore.setModelTag(FaceModel.galleryTag(OUTPUT_SIZE)); //Float and quantized MobileFaceNet share the gallery
+        migrateFromSP(); //One-time move of faces saved by older versions
+        loadGallery(); //Load saved faces from memory when app starts
+        if (DoorwayService.isRunning())
+            DoorwayService.stop(this); //The camera comes back to this screen
         setContentView(R.layout.activity_face_recognition);
         face_preview =findViewById(R.id.imageView);
+        faceOverlay =findViewById(R.id.faceOverlay);
         reco_name =findViewById(R.id.textView);
         preview_info =findViewById(R.id.textView2);
         textAbove_preview =findViewById(R.id.textAbovePreview);
@@ -132,6 +171,9 @@ public class FaceRecognitionActivity extends AppCompatActivity {
 
         SharedPreferences sharedPref = getSharedPreferences("Distance",Context.MODE_PRIVATE);
         distance = sharedPref.getFloat("distance",1.00f);
+        gallery.setEfSearch(sharedPref.getInt("ef_search",FaceGallery.DEFAULT_EF_SEARCH));
+        maxFaces = sharedPref.getInt("max_faces",maxFaces);
+        long idleSeconds = sharedPref.getLong("idle_seconds",FrameGovernor.DEFAULT_IDLE_MS/1000);
 
         face_preview.setVisibility(View.INVISIBLE);
         recognize=findViewById(R.id.button3);
@@ -151,7 +193,7 @@ public class FaceRecognitionActivity extends AppCompatActivity {
                 builder.setTitle("Select Action:");
 
                 // add a checkbox list
-                String[] names= {"View Recognition List","Update Recognition List","Save Recognitions","Load Recognitions","Clear All Recognitions","Import Photo (Beta)","Hyperparameters","Developer Mode"};
+                String[] names= {"View Recognition List","Update Recognition List","Rename Recognition","Save Recognitions","Load Recognitions","Clear All Recognitions","Import Photo (Beta)","Hyperparameters","Developer Mode","Compare Models (Developer)","Export Pipeline Stats (Developer)","Bulk Enroll Photos","Doorway Mode (Screen Off)","Visit Log (This Week)"};
 
                 builder.setItems(names, new DialogInterface.OnClickListener() {
                     @Override
@@ -166,23 +208,41 @@ public class FaceRecognitionActivity extends AppCompatActivity {
                                 updatenameListview();
                                 break;
                             case 2:
-                                insertToSP(registered,0); //mode: 0:save all, 1:clear all, 2:update all
+                                renameListview();
                                 break;
                             case 3:
-                                registered.putAll(readFromSP());
+                                saveGallery();
                                 break;
                             case 4:
-                                clearnameList();
+                                loadGallery();
                                 break;
                             case 5:
-                                loadphoto();
+                                clearnameList();
                                 break;
                             case 6:
-                                testHyperparameter();
+                                loadphoto();
                                 break;
                             case 7:
+                                testHyperparameter();
+                                break;
+                            case 8:
                                 developerMode();
                                 break;
+                            case 9:
+                                compareModels();
+                                break;
+                            case 10:
+                                exportStats();
+                                break;
+                            case 11:
+                                bulkEnroll();
+                                break;
+                            case 12:
+                                doorwayMode();
+                                break;
+                            case 13:
+                                visitLog();
+                                break;
                         }
 
                     }
@@ -216,6 +276,7 @@ public class FaceRecognitionActivity extends AppCompatActivity {
                     flipX=false;
                 }
                 cameraProvider.unbindAll();
+                pipeline.tracker().clear();
                 cameraBind();
             }
         });
@@ -234,7 +295,8 @@ public class FaceRecognitionActivity extends AppCompatActivity {
             public void onClick(View v) {
                 if(recognize.getText().toString().equals("Recognize"))
                 {
-                 start=true;
+                 pipeline.setRunning(true);
+                 pipeline.setEnrolling(false);
                  textAbove_preview.setText("Recognized Face:");
                 recognize.setText("Add Face");
                 add_face.setVisibility(View.INVISIBLE);
@@ -245,6 +307,7 @@ public class FaceRecognitionActivity extends AppCompatActivity {
                 }
                 else
                 {
+                    pipeline.setEnrolling(true);
                     textAbove_preview.setText("Face Preview: ");
                     recognize.setText("Recognize");
                     add_face.setVisibility(View.VISIBLE);
@@ -258,24 +321,124 @@ public class FaceRecognitionActivity extends AppCompatActivity {
             }
         });
 
-        //Load model
-        try {
-            tfLite=new Interpreter(loadModelFile(FaceRecognitionActivity.this,modelFile));
-        } catch (IOException e) {
-            e.printStackTrace();
+        //Load model: float or quantized MobileFaceNet, as selected under Hyperparameters
+        String selectedModel = sharedPref.getBoolean("quantized_model",false) ? FaceModel.QUANTIZED_FILE : FaceModel.FLOAT_FILE;
+        if (!loadModel(selectedModel) && !selectedModel.equals(FaceModel.FLOAT_FILE)) {
+            Toast.makeText(context, "Quantized model unavailable, using float model", Toast.LENGTH_LONG).show();
+            loadModel(FaceModel.FLOAT_FILE);
         }
-        //Initialize Face Detector
-        FaceDetectorOptions highAccuracyOpts =
-                new FaceDetectorOptions.Builder()
-                        .setPerformanceMode(FaceDetectorOptions.PERFORMANCE_MODE_ACCURATE)
-                        .build();
-        detector = FaceDetection.getClient(highAccuracyOpts);
+        if (faceModel == null) {
+            Toast.makeText(context, "Could not load "+modelFile, Toast.LENGTH_LONG).show();
+            finish();
+            return;
+        }
+        inferenceContext = new InferenceContext(faceModel, 1);
+        photoSampler = faceModel.newSampler(IMAGE_MEAN, IMAGE_STD);
+        faceCropper = new FaceCropper(inputSize, bitmapPool);
+        //Initialize Face Detector: FAST searches of the whole frame and, in low power mode,
+        //of regions of interest between them (DetectionScheduler); ACCURATE as selected under Hyperparameters
+        int detectionMode = sharedPref.getInt("detection_mode",DetectionScheduler.MODE_LOW_POWER);
+        float minFaceSize = sharedPref.getFloat("min_face_size",DetectionScheduler.DEFAULT_MIN_FACE_SIZE);
+        detector = DetectionScheduler.frameDetector(detectionMode, minFaceSize);
+        regionDetector = DetectionScheduler.regionDetector(detectionMode, minFaceSize);
+
+        pipeline = new FacePipeline(detector, regionDetector, tfLite, gallery, faceModel,
+                IMAGE_MEAN, IMAGE_STD, MAX_BATCH, this::showFrame);
+        pipeline.setThreshold(distance);
+        pipeline.setMaxFaces(maxFaces);
+        visitRecorder = new VisitRecorder(this);
+        pipeline.governor().setIdleTimeout(idleSeconds*1000);
+
+        if (!modelTuned && modelBuffer != null)
+            calibrateModel(); //First start on this device or version, camera starts afterwards
+        else
+            cameraBind();
 
-        cameraBind();
+        startSync();
 
 
 
     }
+    //Loads a model file with the interpreter configuration calibrated for it on this device,
+    //if there is one. Returns false if the file is missing or its embeddings do not fit the gallery.
+    private boolean loadModel(String file) {
+        InterpreterTuner.Config tuned = InterpreterTuner.load(context, file);
+        InterpreterTuner.Config config = tuned != null ? tuned : InterpreterTuner.defaultConfig();
+        Interpreter interpreter = null;
+        try {
+            MappedByteBuffer buffer = loadModelFile(FaceRecognitionActivity.this, file);
+            interpreter = new Interpreter(buffer, config.options());
+            FaceModel model = FaceModel.describe(file, interpreter);
+            if (model.outputSize != OUTPUT_SIZE || model.inputSize != inputSize) {
+                Toast.makeText(context, file + " does not match saved Recognitions", Toast.LENGTH_LONG).show();
+                interpreter.close();
+                return false;
+            }
+            modelBuffer = buffer;
+            tfLite = interpreter;
+            faceModel = model;
+            modelFile = file;
+            modelTuned = tuned != null;
+            interpreterConfig = config;
+            isModelQuantized = model.quantizedInput();
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            e.printStackTrace();
+            if (interpreter != null)
+                interpreter.close();
+            return false;
+        }
+    }
+
+    //Times the model configurations on a background thread while the camera is still off,
+    //so the measurements are not disturbed by recognition, then swaps in the winner
+    private void calibrateModel() {
+        showName("Calibrating...");
+        new Thread(() -> {
+            InterpreterTuner.Config config = InterpreterTuner.tune(modelBuffer);
+            InterpreterTuner.save(context, modelFile, config);
+            Interpreter interpreter = new Interpreter(modelBuffer, config.options());
+            runOnUiThread(() -> {
+                if (isDestroyed()) {
+                    interpreter.close();
+                    return;
+                }
+                Interpreter old = tfLite;
+                synchronized (old) {
+                    pipeline.setInterpreter(interpreter);
+                    tfLite = interpreter;
+                    interpreterConfig = config;
+                    old.close();
+                }
+                showName("");
+                if (cameraProvider == null)
+                    cameraBind();
+            });
+        }, "InterpreterTuner").start();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (pipeline == null)
+            return; //No model could be loaded, nothing was started
+        if (bulkEnroller != null)
+            bulkEnroller.cancel(); //Its own interpreter and detector are closed by its thread
+        if (gallerySync != null)
+            gallerySync.stop();
+        visitRecorder.close(); //Visits still open end now
+        pipeline.setAllocationCounting(false); //Process wide, it would outlive the screen
+        pipeline.close(); //Stops the pipeline threads before the model and detector go away
+        synchronized (tfLite) {
+            tfLite.close();
+        }
+        detector.close();
+        if (regionDetector != null)
+            regionDetector.close();
+        faceCropper.release(bitmapPool);
+        bitmapPool.clear();
+    }
+
     private void testHyperparameter()
     {
 
@@ -283,7 +446,7 @@ public class FaceRecognitionActivity extends AppCompatActivity {
         builder.setTitle("Select Hyperparameter:");
 
         // add a checkbox list
-        String[] names= {"Maximum Nearest Neighbour Distance"};
+        String[] names= {"Maximum Nearest Neighbour Distance","Search Breadth (Large Galleries)","Maximum Faces per Frame","Pause After (No Face)","Recognition Model","Calibrate Distance","Face Detection","Minimum Face Size"};
 
         builder.setItems(names, new DialogInterface.OnClickListener() {
             @Override
@@ -295,6 +458,27 @@ public class FaceRecognitionActivity extends AppCompatActivity {
 //                        Toast.makeText(context, "Clicked", Toast.LENGTH_SHORT).show();
                         hyperparameters();
                         break;
+                    case 1:
+                        searchBreadth();
+                        break;
+                    case 2:
+                        maximumFaces();
+                        break;
+                    case 3:
+                        idleTimeout();
+                        break;
+                    case 4:
+                        recognitionModel();
+                        break;
+                    case 5:
+                        calibrateDistance();
+                        break;
+                    case 6:
+                        faceDetection();
+                        break;
+                    case 7:
+                        minimumFaceSize();
+                        break;
 
                 }
 
@@ -317,10 +501,15 @@ public class FaceRecognitionActivity extends AppCompatActivity {
     {
         if (developerMode) {
             developerMode = false;
+            pipeline.setAllocationCounting(false);
+            faceOverlay.setStats(null);
             Toast.makeText(context, "Developer Mode OFF", Toast.LENGTH_SHORT).show();
         }
         else {
             developerMode = true;
+            pipeline.stats().reset(); //Statistics of this session only
+            pipeline.setAllocationCounting(true);
+            statsShownAt = 0;
             Toast.makeText(context, "Developer Mode ON", Toast.LENGTH_SHORT).show();
         }
     }
@@ -328,7 +517,7 @@ public class FaceRecognitionActivity extends AppCompatActivity {
     {
         {
 
-            start=false;
+            pipeline.setRunning(false);
             AlertDialog.Builder builder = new AlertDialog.Builder(context);
             builder.setTitle("Enter Name");
 
@@ -344,20 +533,27 @@ public class FaceRecognitionActivity extends AppCompatActivity {
                 public void onClick(DialogInterface dialog, int which) {
                     //Toast.makeText(context, input.getText().toString(), Toast.LENGTH_SHORT).show();
 
-                    //Create and Initialize new object with Face embeddings and Name.
-                    SimilarityClassifier.Recognition result = new SimilarityClassifier.Recognition(
-                            "0", "", -1f);
-                    result.setExtra(embeedings);
-
-                    registered.put( input.getText().toString(),result);
-                    start=true;
+                    //Save Face embeddings under Name (the gallery keeps its own normalized copy).
+                    //Adding an existing name again saves another view of that person.
+                    String name = input.getText().toString();
+                    FaceGallery.Enrollment result = gallery.enroll(name, primaryEmbedding);
+                    if (result != FaceGallery.Enrollment.REDUNDANT) {
+                        galleryStore.recordAdd(gallery, name); //Appended to the journal, no full rewrite
+                        if (gallerySync != null)
+                            gallerySync.push(gallery, name);
+                    }
+                    if (result == FaceGallery.Enrollment.REDUNDANT)
+                        Toast.makeText(context, "Similar view of "+name+" already saved", Toast.LENGTH_SHORT).show();
+                    else if (result != FaceGallery.Enrollment.NEW)
+                        Toast.makeText(context, "New view of "+name+" saved ("+gallery.prototypeCount(name)+"/"+gallery.maxPrototypes()+")", Toast.LENGTH_SHORT).show();
+                    pipeline.setRunning(true);
 
                 }
             });
             builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
                 @Override
                 public void onClick(DialogInterface dialog, int which) {
-                    start=true;
+                    pipeline.setRunning(true);
                     dialog.cancel();
                 }
             });
@@ -372,11 +568,14 @@ public class FaceRecognitionActivity extends AppCompatActivity {
         builder.setPositiveButton("Delete All", new DialogInterface.OnClickListener() {
             @Override
             public void onClick(DialogInterface dialog, int which) {
-                registered.clear();
+                if (gallerySync != null)
+                    for (String name : gallery.names())
+                        gallerySync.pushDelete(name);
+                gallery.clear();
+                galleryStore.recordClear(gallery);
                 Toast.makeText(context, "Recognitions Cleared", Toast.LENGTH_SHORT).show();
             }
         });
-        insertToSP(registered,1);
         builder.setNegativeButton("Cancel",null);
         AlertDialog dialog = builder.create();
         dialog.show();
@@ -384,7 +583,7 @@ public class FaceRecognitionActivity extends AppCompatActivity {
     private void updatenameListview()
     {
         AlertDialog.Builder builder = new AlertDialog.Builder(context);
-        if(registered.isEmpty()) {
+        if(gallery.isEmpty()) {
             builder.setTitle("No Faces Added!!");
             builder.setPositiveButton("OK",null);
         }
@@ -392,17 +591,8 @@ public class FaceRecognitionActivity extends AppCompatActivity {
             builder.setTitle("Select Recognition to delete:");
 
         // add a checkbox list
-        String[] names= new String[registered.size()];
-        boolean[] checkedItems = new boolean[registered.size()];
-         int i=0;
-                for (Map.Entry<String, SimilarityClassifier.Recognition> entry : registered.entrySet())
-                {
-                    //System.out.println("NAME"+entry.getKey());
-                    names[i]=entry.getKey();
-                    checkedItems[i]=false;
-                    i=i+1;
-
-                }
+        String[] names= gallery.names();
+        boolean[] checkedItems = new boolean[names.length];
 
                 builder.setMultiChoiceItems(names, checkedItems, new DialogInterface.OnMultiChoiceClickListener() {
                     @Override
@@ -420,17 +610,21 @@ public class FaceRecognitionActivity extends AppCompatActivity {
             public void onClick(DialogInterface dialog, int which) {
 
                        // System.out.println("status:"+ Arrays.toString(checkedItems));
+                        List<String> removed = new ArrayList<>();
                         for(int i=0;i<checkedItems.length;i++)
                         {
                             //System.out.println("status:"+checkedItems[i]);
                             if(checkedItems[i])
                             {
 //                                Toast.makeText(MainActivity.this, names[i], Toast.LENGTH_SHORT).show();
-                                registered.remove(names[i]);
+                                gallery.remove(names[i]);
+                                removed.add(names[i]);
+                                if (gallerySync != null)
+                                    gallerySync.pushDelete(names[i]);
                             }
 
                         }
-                insertToSP(registered,2); //mode: 0:save all, 1:clear all, 2:update all
+                galleryStore.recordDelete(gallery, removed.toArray(new String[0]));
                 Toast.makeText(context, "Recognitions Updated", Toast.LENGTH_SHORT).show();
             }
         });
@@ -441,11 +635,50 @@ public class FaceRecognitionActivity extends AppCompatActivity {
         dialog.show();
     }
     }
+    private void renameListview()
+    {
+        AlertDialog.Builder builder = new AlertDialog.Builder(context);
+        if(gallery.isEmpty()) {
+            builder.setTitle("No Faces Added!!");
+            builder.setPositiveButton("OK",null);
+            builder.show();
+            return;
+        }
+        builder.setTitle("Select Recognition to rename:");
+        String[] names= gallery.names();
+        builder.setItems(names, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                AlertDialog.Builder renameBuilder = new AlertDialog.Builder(context);
+                renameBuilder.setTitle("Enter New Name");
+                final EditText input = new EditText(context);
+                input.setInputType(InputType.TYPE_CLASS_TEXT);
+                input.setText(names[which]);
+                renameBuilder.setView(input);
+                renameBuilder.setPositiveButton("Rename", new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which2) {
+                        String newName = input.getText().toString();
+                        if (gallery.rename(names[which], newName)) {
+                            galleryStore.recordRename(gallery, names[which], newName);
+                            if (gallerySync != null)
+                                gallerySync.pushRename(gallery, names[which], newName);
+                            Toast.makeText(context, "Recognition Renamed", Toast.LENGTH_SHORT).show();
+                        }
+                    }
+                });
+                renameBuilder.setNegativeButton("Cancel", null);
+                renameBuilder.show();
+            }
+        });
+        builder.setNegativeButton("Cancel", null);
+        builder.show();
+    }
     private void hyperparameters()
     {
         AlertDialog.Builder builder = new AlertDialog.Builder(context);
         builder.setTitle("Euclidean Distance");
-        builder.setMessage("0.00 -> Perfect Match\n1.00 -> Default\nTurn On Developer Mode to find optimum value\n\nCurrent Value:");
+        builder.setMessage("0.00 -> Perfect Match\n1.00 -> Default\nUse Calibrate Distance to find optimum value\n\nCurrent Value:");
         // Set up the input
         final EditText input = new EditText(context);
 
@@ -461,6 +694,7 @@ public class FaceRecognitionActivity extends AppCompatActivity {
                 //Toast.makeText(context, input.getText().toString(), Toast.LENGTH_SHORT).show();
 
                distance= Float.parseFloat(input.getText().toString());
+               pipeline.setThreshold(distance);
 
 
                 SharedPreferences sharedPref = getSharedPreferences("Distance",Context.MODE_PRIVATE);
@@ -481,27 +715,360 @@ public class FaceRecognitionActivity extends AppCompatActivity {
         builder.show();
     }
 
+    //Candidate list size for the approximate search used once the gallery holds
+    //FaceGallery.DEFAULT_BRUTE_FORCE_LIMIT faces or more. Higher is more accurate but slower.
+    private void searchBreadth()
+    {
+        AlertDialog.Builder builder = new AlertDialog.Builder(context);
+        builder.setTitle("Search Breadth");
+        builder.setMessage("Used with "+FaceGallery.DEFAULT_BRUTE_FORCE_LIMIT+"+ saved faces\nHigher -> More accurate, slower\n"+FaceGallery.DEFAULT_EF_SEARCH+" -> Default\n\nCurrent Value:");
+        // Set up the input
+        final EditText input = new EditText(context);
+
+        input.setInputType(InputType.TYPE_CLASS_NUMBER);
+        builder.setView(input);
+        SharedPreferences sharedPref = getSharedPreferences("Distance",Context.MODE_PRIVATE);
+        input.setText(String.valueOf(sharedPref.getInt("ef_search",FaceGallery.DEFAULT_EF_SEARCH)));
+        // Set up the buttons
+        builder.setPositiveButton("Update", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+
+                int efSearch= Math.max(2, Integer.parseInt(input.getText().toString()));
+                gallery.setEfSearch(efSearch);
+
+                SharedPreferences.Editor editor = sharedPref.edit();
+                editor.putInt("ef_search", efSearch);
+                editor.apply();
+
+            }
+        });
+        builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+
+                dialog.cancel();
+            }
+        });
+
+        builder.show();
+    }
+
+    private void maximumFaces()
+    {
+        AlertDialog.Builder builder = new AlertDialog.Builder(context);
+        builder.setTitle("Maximum Faces per Frame");
+        builder.setMessage("Faces recognized together in one frame (1 - "+MAX_BATCH+")\n\nCurrent Value:");
+        // Set up the input
+        final EditText input = new EditText(context);
+
+        input.setInputType(InputType.TYPE_CLASS_NUMBER);
+        builder.setView(input);
+        input.setText(String.valueOf(maxFaces));
+        // Set up the buttons
+        builder.setPositiveButton("Update", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+
+                maxFaces= Math.max(1, Math.min(MAX_BATCH, Integer.parseInt(input.getText().toString())));
+                pipeline.setMaxFaces(maxFaces);
+
+                SharedPreferences sharedPref = getSharedPreferences("Distance",Context.MODE_PRIVATE);
+                SharedPreferences.Editor editor = sharedPref.edit();
+                editor.putInt("max_faces", maxFaces);
+                editor.apply();
+
+            }
+        });
+        builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+
+                dialog.cancel();
+            }
+        });
+
+        builder.show();
+    }
+
+
+    private void idleTimeout()
+    {
+        AlertDialog.Builder builder = new AlertDialog.Builder(context);
+        builder.setTitle("Pause After (No Face)");
+        builder.setMessage("Seconds without a face before recognition pauses to save battery. The first face seen resumes it.\n\nCurrent Value:");
+        // Set up the input
+        final EditText input = new EditText(context);
+
+        input.setInputType(InputType.TYPE_CLASS_NUMBER);
+        builder.setView(input);
+        input.setText(String.valueOf(pipeline.governor().getIdleTimeout()/1000));
+        // Set up the buttons
+        builder.setPositiveButton("Update", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+
+                long idleSeconds= Math.max(1, Long.parseLong(input.getText().toString()));
+                pipeline.governor().setIdleTimeout(idleSeconds*1000);
+
+                SharedPreferences sharedPref = getSharedPreferences("Distance",Context.MODE_PRIVATE);
+                SharedPreferences.Editor editor = sharedPref.edit();
+                editor.putLong("idle_seconds", idleSeconds);
+                editor.apply();
+
+            }
+        });
+        builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+
+                dialog.cancel();
+            }
+        });
+
+        builder.show();
+    }
+
+    private void recognitionModel()
+    {
+        AlertDialog.Builder builder = new AlertDialog.Builder(context);
+        builder.setTitle("Recognition Model (Current: "+(faceModel.isQuantized() ? "Quantized" : "Float")+")");
+
+        String[] names= {"Float (Most Accurate)","Quantized (Smaller, Faster)"};
+
+        builder.setItems(names, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+
+                SharedPreferences sharedPref = getSharedPreferences("Distance",Context.MODE_PRIVATE);
+                SharedPreferences.Editor editor = sharedPref.edit();
+                editor.putBoolean("quantized_model", which == 1);
+                editor.apply();
+                Toast.makeText(context, "Restarting with "+names[which], Toast.LENGTH_SHORT).show();
+                recreate(); //Model is loaded once, in onCreate
+            }
+        });
+        builder.setNegativeButton("Cancel", null);
+
+        builder.show();
+    }
+
+    private void faceDetection()
+    {
+        SharedPreferences sharedPref = getSharedPreferences("Distance",Context.MODE_PRIVATE);
+        String[] names= {"Low Power (Fast, Around Known Faces)","Fast (Whole Frame)","Accurate (Whole Frame, Most Battery)"};
+        AlertDialog.Builder builder = new AlertDialog.Builder(context);
+        builder.setTitle("Face Detection (Current: "+names[sharedPref.getInt("detection_mode",DetectionScheduler.MODE_LOW_POWER)]+")");
+
+        builder.setItems(names, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+
+                SharedPreferences.Editor editor = sharedPref.edit();
+                editor.putInt("detection_mode", which);
+                editor.apply();
+                Toast.makeText(context, "Restarting with "+names[which], Toast.LENGTH_SHORT).show();
+                recreate(); //Detectors are created once, in onCreate
+            }
+        });
+        builder.setNegativeButton("Cancel", null);
+
+        builder.show();
+    }
+
+    private void minimumFaceSize()
+    {
+        SharedPreferences sharedPref = getSharedPreferences("Distance",Context.MODE_PRIVATE);
+        AlertDialog.Builder builder = new AlertDialog.Builder(context);
+        builder.setTitle("Minimum Face Size");
+        builder.setMessage("Smallest face detected, in percent of the image width (5 - 50). Larger values skip faces further from the camera and detect faster.\n\nCurrent Value:");
+        // Set up the input
+        final EditText input = new EditText(context);
+
+        input.setInputType(InputType.TYPE_CLASS_NUMBER);
+        builder.setView(input);
+        input.setText(String.valueOf(Math.round(sharedPref.getFloat("min_face_size",DetectionScheduler.DEFAULT_MIN_FACE_SIZE)*100)));
+        // Set up the buttons
+        builder.setPositiveButton("Update", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+
+                int percent= Math.max(5, Math.min(50, Integer.parseInt(input.getText().toString())));
+
+                SharedPreferences.Editor editor = sharedPref.edit();
+                editor.putFloat("min_face_size", percent/100f);
+                editor.apply();
+                recreate(); //Detectors are created once, in onCreate
+            }
+        });
+        builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+
+                dialog.cancel();
+            }
+        });
+
+        builder.show();
+    }
+
+    //Developer mode: float and quantized model side by side on the last camera face crops
+    private void compareModels()
+    {
+        if (!developerMode) {
+            Toast.makeText(context, "Turn On Developer Mode first", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        int count = Math.min(recentCropCount, RECENT_CROPS);
+        if (count == 0) {
+            Toast.makeText(context, "Bring a face in view of the Camera first", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        final MappedByteBuffer floatModel, quantizedModel;
+        try {
+            floatModel = loadModelFile(FaceRecognitionActivity.this, FaceModel.FLOAT_FILE);
+            quantizedModel = loadModelFile(FaceRecognitionActivity.this, FaceModel.QUANTIZED_FILE);
+        } catch (IOException e) {
+            Toast.makeText(context, "Both "+FaceModel.FLOAT_FILE+" and "+FaceModel.QUANTIZED_FILE+" are needed", Toast.LENGTH_LONG).show();
+            return;
+        }
+        final int[][] crops = new int[count][];
+        for (int i = 0; i < count; i++)
+            crops[i] = recentCrops[i].clone();
+        final InterpreterTuner.Config config = interpreterConfig;
+        final float threshold = distance;
+        Toast.makeText(context, "Comparing models...", Toast.LENGTH_SHORT).show();
+
+        new Thread(() -> {
+            String report;
+            try {
+                report = ModelComparison.compare(FaceModel.FLOAT_FILE, floatModel, FaceModel.QUANTIZED_FILE, quantizedModel,
+                        config, crops, crops.length, IMAGE_MEAN, IMAGE_STD, gallery, threshold);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                report = "Comparison failed: " + e.getMessage();
+            }
+            final String message = report;
+            runOnUiThread(() -> {
+                if (isDestroyed())
+                    return;
+                AlertDialog.Builder builder = new AlertDialog.Builder(context);
+                builder.setTitle("Float vs Quantized");
+                builder.setMessage(message);
+                builder.setPositiveButton("OK", null);
+                builder.show();
+            });
+        }, "ModelComparison").start();
+    }
+
+    //Suggests a distance from the enrolled faces themselves: every pair of saved views is
+    //either the same person (should match) or two people (should not), which gives the
+    //false-accept and false-reject rate of every distance (ThresholdCalibration)
+    private void calibrateDistance()
+    {
+        final String[] targets = {"0.1% False Accepts (Strict)","1% False Accepts","5% False Accepts (Lenient)"};
+        final float[] rates = {0.001f, 0.01f, 0.05f};
+        AlertDialog.Builder builder = new AlertDialog.Builder(context);
+        builder.setTitle("Calibrate Distance");
+        builder.setItems(targets, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                calibrateDistance(rates[which], targets[which]);
+            }
+        });
+        builder.setNegativeButton("Cancel", null);
+        builder.show();
+    }
+
+    private void calibrateDistance(final float targetFar, final String targetName)
+    {
+        Toast.makeText(context, "Comparing enrolled faces...", Toast.LENGTH_SHORT).show();
+        final int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1); //Camera keeps a core
+        new Thread(() -> {
+            long start = SystemClock.elapsedRealtime();
+            final ThresholdCalibration calibration = ThresholdCalibration.compute(gallery, threads);
+            final long took = SystemClock.elapsedRealtime() - start;
+            runOnUiThread(() -> {
+                if (isDestroyed())
+                    return;
+                if (calibration.genuinePairs() == 0 || calibration.impostorPairs() == 0) {
+                    Toast.makeText(context, "Save at least two views of two people first", Toast.LENGTH_LONG).show();
+                    return;
+                }
+                final float suggested = calibration.thresholdForFar(targetFar);
+                float equal = calibration.equalErrorThreshold();
+                RocView roc = new RocView(context);
+                roc.setCalibration(calibration, distance, suggested);
+
+                AlertDialog.Builder builder = new AlertDialog.Builder(context);
+                builder.setTitle(targetName);
+                builder.setMessage(String.format(Locale.US,
+                        "Red: wrong person accepted, Blue: right person missed\n\n"
+                        +"Current %.2f: %.2f%% false accepts, %.1f%% missed\n"
+                        +"Suggested %.2f: %.2f%% false accepts, %.1f%% missed\n"
+                        +"Equal error at %.2f\n\n%d same-person and %d different-person pairs in %d ms",
+                        distance, 100 * calibration.falseAcceptRate(distance), 100 * calibration.falseRejectRate(distance),
+                        suggested, 100 * calibration.falseAcceptRate(suggested), 100 * calibration.falseRejectRate(suggested),
+                        equal, calibration.genuinePairs(), calibration.impostorPairs(), took));
+                builder.setView(roc);
+                builder.setPositiveButton(String.format(Locale.US, "Use %.2f", suggested), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        distance = suggested;
+                        pipeline.setThreshold(distance);
+                        SharedPreferences sharedPref = getSharedPreferences("Distance",Context.MODE_PRIVATE);
+                        SharedPreferences.Editor editor = sharedPref.edit();
+                        editor.putFloat("distance", distance);
+                        editor.apply();
+                        Toast.makeText(context, "Distance set to "+String.format(Locale.US, "%.2f", distance), Toast.LENGTH_SHORT).show();
+                    }
+                });
+                builder.setNegativeButton("Keep Current", null);
+                builder.show();
+            });
+        }, "ThresholdCalibration").start();
+    }
+
+    //Developer mode: every stage's latency histogram as CSV in the app's external files directory
+    private void exportStats()
+    {
+        if (!developerMode) {
+            Toast.makeText(context, "Turn On Developer Mode first", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        File dir = getExternalFilesDir(null);
+        final File file = new File(dir != null ? dir : getFilesDir(),
+                "pipeline_stats_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + ".csv");
+        final PipelineStats stats = pipeline.stats();
+        final long skipped = pipeline.governor().getSkippedFrames();
+        new Thread(() -> {
+            String message;
+            try (Writer out = new BufferedWriter(new FileWriter(file))) {
+                stats.writeCsv(out, skipped);
+                message = "Saved " + file.getAbsolutePath();
+            } catch (IOException e) {
+                e.printStackTrace();
+                message = "Could not save pipeline stats";
+            }
+            final String toast = message;
+            runOnUiThread(() -> Toast.makeText(context, toast, Toast.LENGTH_LONG).show());
+        }, "StatsExport").start();
+    }
 
     private void displaynameListview()
     {
         AlertDialog.Builder builder = new AlertDialog.Builder(context);
-       // System.out.println("Registered"+registered);
-        if(registered.isEmpty())
+        if(gallery.isEmpty())
             builder.setTitle("No Faces Added!!");
         else
             builder.setTitle("Recognitions:");
 
         // add a checkbox list
-        String[] names= new String[registered.size()];
-        boolean[] checkedItems = new boolean[registered.size()];
-        int i=0;
-        for (Map.Entry<String, SimilarityClassifier.Recognition> entry : registered.entrySet())
-        {
-            //System.out.println("NAME"+entry.getKey());
-            names[i]=entry.getKey();
-            checkedItems[i]=false;
-            i=i+1;
-
+        String[] names= gallery.names();
+        for (int i = 0; i < names.length; i++) {
+            int views = gallery.prototypeCount(names[i]);
+            if (views > 1)
+                names[i] += " ("+views+" views)";
         }
         builder.setItems(names,null);
 
@@ -533,8 +1100,9 @@ public class FaceRecognitionActivity extends AppCompatActivity {
         }
     }
 
-    private MappedByteBuffer loadModelFile(Activity activity, String MODEL_FILE) throws IOException {
-        AssetFileDescriptor fileDescriptor = activity.getAssets().openFd(MODEL_FILE);
+    //Also used by DoorwayService
+    static MappedByteBuffer loadModelFile(Context context, String MODEL_FILE) throws IOException {
+        AssetFileDescriptor fileDescriptor = context.getAssets().openFd(MODEL_FILE);
         FileInputStream inputStream = new FileInputStream(fileDescriptor.getFileDescriptor());
         FileChannel fileChannel = inputStream.getChannel();
         long startOffset = fileDescriptor.getStartOffset();
@@ -568,109 +1136,37 @@ public class FaceRecognitionActivity extends AppCompatActivity {
                 .build();
 
         preview.setSurfaceProvider(previewView.getSurfaceProvider());
-        ImageAnalysis imageAnalysis =
-                new ImageAnalysis.Builder()
-                        .setTargetResolution(new Size(640, 480))
-                        .setBackpressureStrategy(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST) //Latest frame is shown
-                        .build();
-
-        Executor executor = Executors.newSingleThreadExecutor();
-        imageAnalysis.setAnalyzer(executor, new ImageAnalysis.Analyzer() {
-            @Override
-            public void analyze(@NonNull ImageProxy imageProxy) {
-                try {
-                    Thread.sleep(0);  //Camera preview refreshed every 10 millisec(adjust as required)
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-                InputImage image = null;
-
-
-                @SuppressLint("UnsafeExperimentalUsageError")
-                // Camera Feed-->Analyzer-->ImageProxy-->mediaImage-->InputImage(needed for ML kit face detection)
-
-                Image mediaImage = imageProxy.getImage();
-
-                if (mediaImage != null) {
-                    image = InputImage.fromMediaImage(mediaImage, imageProxy.getImageInfo().getRotationDegrees());
-//                    System.out.println("Rotation "+imageProxy.getImageInfo().getRotationDegrees());
-                }
-
-//                System.out.println("ANALYSIS");
-
-                //Process acquired image to detect faces
-                Task<List<Face>> result =
-                        detector.process(image)
-                                .addOnSuccessListener(
-                                        new OnSuccessListener<List<Face>>() {
-                                            @Override
-                                            public void onSuccess(List<Face> faces) {
-
-                                                if(faces.size()!=0) {
-
-                                                    Face face = faces.get(0); //Get first face from detected faces
-//                                                    System.out.println(face);
-
-                                                    //mediaImage to Bitmap
-                                                    Bitmap frame_bmp = toBitmap(mediaImage);
-
-                                                    int rot = imageProxy.getImageInfo().getRotationDegrees();
-
-                                                    //Adjust orientation of Face
-                                                    Bitmap frame_bmp1 = rotateBitmap(frame_bmp, rot, false, false);
-
-
-
-                                                    //Get bounding box of face
-                                                    RectF boundingBox = new RectF(face.getBoundingBox());
-
-                                                    //Crop out bounding box from whole Bitmap(image)
-                                                    Bitmap cropped_face = getCropBitmapByCPU(frame_bmp1, boundingBox);
-
-                                                    if(flipX)
-                                                        cropped_face = rotateBitmap(cropped_face, 0, flipX, false);
-                                                    //Scale the acquired Face to 112*112 which is required input for model
-                                                    Bitmap scaled = getResizedBitmap(cropped_face, 112, 112);
-
-                                                    if(start)
-                                                        recognizeImage(scaled); //Send scaled bitmap to create face embeddings.
-//                                                    System.out.println(boundingBox);
-
-                                                }
-                                                else
-                                                {
-                                                    if(registered.isEmpty())
-                                                        reco_name.setText("Add Face");
-                                                    else
-                                                        reco_name.setText("No Face Detected!");
-                                                }
-
-                                            }
-                                        })
-                                .addOnFailureListener(
-                                        new OnFailureListener() {
-                                            @Override
-                                            public void onFailure(@NonNull Exception e) {
-                                                // Task failed with an exception
-                                                // ...
-                                            }
-                                        })
-                                .addOnCompleteListener(new OnCompleteListener<List<Face>>() {
-                            @Override
-                            public void onComplete(@NonNull Task<List<Face>> task) {
-
-                                imageProxy.close(); //v.important to acquire next frame for analysis
-                            }
-                        });
+        pipeline.setMirror(flipX);
+        analysisSize = pipeline.governor().resolution();
+        imageAnalysis = buildAnalysis(analysisSize);
 
+        cameraProvider.bindToLifecycle((LifecycleOwner) this, cameraSelector, imageAnalysis, preview);
 
-            }
-        });
 
+    }
 
-        cameraProvider.bindToLifecycle((LifecycleOwner) this, cameraSelector, imageAnalysis, preview);
+    private ImageAnalysis buildAnalysis(Size size) {
+        ImageAnalysis imageAnalysis =
+                new ImageAnalysis.Builder()
+                        .setTargetResolution(size)
+                        .setBackpressureStrategy(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST) //Latest frame is shown
+                        .build();
 
+        //Frames are analyzed by the pipeline's own threads; only results come back to the main thread
+        imageAnalysis.setAnalyzer(pipeline.analyzerExecutor(), pipeline);
+        return imageAnalysis;
+    }
 
+    //The governor asked for another analysis resolution: swap the analysis use case only,
+    //the preview keeps running
+    private void rebindAnalysis() {
+        if (cameraProvider == null || imageAnalysis == null)
+            return;
+        cameraProvider.unbind(imageAnalysis);
+        pipeline.tracker().clear(); //Boxes of the old resolution
+        analysisSize = pipeline.governor().resolution();
+        imageAnalysis = buildAnalysis(analysisSize);
+        cameraProvider.bindToLifecycle((LifecycleOwner) this, cameraSelector, imageAnalysis);
     }
 
     public void recognizeImage(final Bitmap bitmap) {
@@ -678,302 +1174,145 @@ public class FaceRecognitionActivity extends AppCompatActivity {
         // set Face to Preview
         face_preview.setImageBitmap(bitmap);
 
-        //Create ByteBuffer to store normalized image
-
-        ByteBuffer imgData = ByteBuffer.allocateDirect(1 * inputSize * inputSize * 3 * 4);
+        //Reused input buffer to store normalized image
+        ByteBuffer imgData = inferenceContext.input();
 
-        imgData.order(ByteOrder.nativeOrder());
+        intValues = inferenceContext.pixels();
 
-        intValues = new int[inputSize * inputSize];
-
-        //get pixel values from Bitmap to normalize
+        //get pixel values from Bitmap to normalize (float model) or quantize (quantized model)
         bitmap.getPixels(intValues, 0, bitmap.getWidth(), 0, 0, bitmap.getWidth(), bitmap.getHeight());
 
-        imgData.rewind();
-
-        for (int i = 0; i < inputSize; ++i) {
-            for (int j = 0; j < inputSize; ++j) {
-                int pixelValue = intValues[i * inputSize + j];
-                if (isModelQuantized) {
-                    // Quantized model
-                    imgData.put((byte) ((pixelValue >> 16) & 0xFF));
-                    imgData.put((byte) ((pixelValue >> 8) & 0xFF));
-                    imgData.put((byte) (pixelValue & 0xFF));
-                } else { // Float model
-                    imgData.putFloat((((pixelValue >> 16) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                    imgData.putFloat((((pixelValue >> 8) & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-                    imgData.putFloat(((pixelValue & 0xFF) - IMAGE_MEAN) / IMAGE_STD);
-
-                }
-            }
+        //A photo picked again (or a near copy of one) reuses its embedding; there is no
+        //tracker for still images to tell it is the same face
+        long hash = EmbeddingCache.hash(intValues, inputSize);
+        float[] cached = embeddingCache.find(hash);
+        if (cached != null) {
+            System.arraycopy(cached, 0, primaryEmbedding, 0, OUTPUT_SIZE); //Saved by addFace()
+            return;
         }
-        //imgData is input to our model
-        Object[] inputArray = {imgData};
-
-        Map<Integer, Object> outputMap = new HashMap<>();
-
-
-        embeedings = new float[1][OUTPUT_SIZE]; //output of model will be stored in this variable
-
-        outputMap.put(0, embeedings);
-
-        tfLite.runForMultipleInputsOutputs(inputArray, outputMap); //Run model
-
-
-
-        float distance_local = Float.MAX_VALUE;
-        String id = "0";
-        String label = "?";
-
-        //Compare new face with saved Faces.
-        if (registered.size() > 0) {
-
-            final List<Pair<String, Float>> nearest = findNearest(embeedings[0]);//Find 2 closest matching face
-
-            if (nearest.get(0) != null) {
-
-                final String name = nearest.get(0).first; //get name and distance of closest matching face
-               // label = name;
-                distance_local = nearest.get(0).second;
-                if (developerMode)
-                {
-                    if(distance_local<distance) //If distance between Closest found face is more than 1.000 ,then output UNKNOWN face.
-                        reco_name.setText("Nearest: "+name +"\nDist: "+ String.format("%.3f",distance_local)+"\n2nd Nearest: "+nearest.get(1).first +"\nDist: "+ String.format("%.3f",nearest.get(1).second));
-                    else
-                        reco_name.setText("Unknown "+"\nDist: "+String.format("%.3f",distance_local)+"\nNearest: "+name +"\nDist: "+ String.format("%.3f",distance_local)+"\n2nd Nearest: "+nearest.get(1).first +"\nDist: "+ String.format("%.3f",nearest.get(1).second));
-
-//                    System.out.println("nearest: " + name + " - distance: " + distance_local);
-                }
-                else
-                {
-                    if(distance_local<distance) //If distance between Closest found face is more than 1.000 ,then output UNKNOWN face.
-                        reco_name.setText(name);
-                    else
-                        reco_name.setText("Unknown");
-//                    System.out.println("nearest: " + name + " - distance: " + distance_local);
-                }
-
-
-
-                }
-            }
-
-
-//            final int numDetectionsOutput = 1;
-//            final ArrayList<SimilarityClassifier.Recognition> recognitions = new ArrayList<>(numDetectionsOutput);
-//            SimilarityClassifier.Recognition rec = new SimilarityClassifier.Recognition(
-//                    id,
-//                    label,
-//                    distance);
-//
-//            recognitions.add( rec );
-
-    }
-//    public void register(String name, SimilarityClassifier.Recognition rec) {
-//        registered.put(name, rec);
-//    }
-
-    //Compare Faces by distance between face embeddings
-    private List<Pair<String, Float>> findNearest(float[] emb) {
-        List<Pair<String, Float>> neighbour_list = new ArrayList<Pair<String, Float>>();
-        Pair<String, Float> ret = null; //to get closest match
-        Pair<String, Float> prev_ret = null; //to get second closest match
-        for (Map.Entry<String, SimilarityClassifier.Recognition> entry : registered.entrySet())
-        {
-
-            final String name = entry.getKey();
-           final float[] knownEmb = ((float[][]) entry.getValue().getExtra())[0];
-
-            float distance = 0;
-            for (int i = 0; i < emb.length; i++) {
-                float diff = emb[i] - knownEmb[i];
-                distance += diff*diff;
-            }
-            distance = (float) Math.sqrt(distance);
-            if (ret == null || distance < ret.second) {
-                prev_ret=ret;
-                ret = new Pair<>(name, distance);
-            }
+        photoSampler.pack(intValues, inputSize * inputSize, imgData);
+        synchronized (tfLite) { //Also run by the camera pipeline
+            inferenceContext.run(tfLite, 1);
         }
-        if(prev_ret==null) prev_ret=ret;
-        neighbour_list.add(ret);
-        neighbour_list.add(prev_ret);
-
-        return neighbour_list;
-
-    }
-    public Bitmap getResizedBitmap(Bitmap bm, int newWidth, int newHeight) {
-        int width = bm.getWidth();
-        int height = bm.getHeight();
-        float scaleWidth = ((float) newWidth) / width;
-        float scaleHeight = ((float) newHeight) / height;
-        // CREATE A MATRIX FOR THE MANIPULATION
-        Matrix matrix = new Matrix();
-        // RESIZE THE BIT MAP
-        matrix.postScale(scaleWidth, scaleHeight);
-
-        // "RECREATE" THE NEW BITMAP
-        Bitmap resizedBitmap = Bitmap.createBitmap(
-                bm, 0, 0, width, height, matrix, false);
-        bm.recycle();
-        return resizedBitmap;
+        System.arraycopy(inferenceContext.embeddings(1)[0], 0, primaryEmbedding, 0, OUTPUT_SIZE); //Saved by addFace()
+        embeddingCache.put(hash, primaryEmbedding);
     }
-    private static Bitmap getCropBitmapByCPU(Bitmap source, RectF cropRectF) {
-        Bitmap resultBitmap = Bitmap.createBitmap((int) cropRectF.width(),
-                (int) cropRectF.height(), Bitmap.Config.ARGB_8888);
-        Canvas cavas = new Canvas(resultBitmap);
 
-        // draw background
-        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
-        paint.setColor(Color.WHITE);
-        cavas.drawRect(
-                new RectF(0, 0, cropRectF.width(), cropRectF.height()),
-                paint);
+    //Result of one camera frame from the pipeline, on the main thread. The first face
+    //drives the text below the preview and the face preview, every face gets an overlay label.
+    private void showFrame(FacePipeline.Frame frame) {
 
-        Matrix matrix = new Matrix();
-        matrix.postTranslate(-cropRectF.left, -cropRectF.top);
+        visitRecorder.record(frame);
 
-        cavas.drawBitmap(source, matrix, paint);
+        if (!pipeline.governor().resolution().equals(analysisSize))
+            rebindAnalysis();
 
-        if (source != null && !source.isRecycled()) {
-            source.recycle();
+        if (developerMode) {
+            long now = SystemClock.uptimeMillis();
+            if (now - statsShownAt >= STATS_INTERVAL_MS) {
+                statsShownAt = now;
+                faceOverlay.setStats(pipeline.stats().describe(pipeline.governor().getSkippedFrames()));
+            }
         }
 
-        return resultBitmap;
-    }
-
-    private static Bitmap rotateBitmap(
-            Bitmap bitmap, int rotationDegrees, boolean flipX, boolean flipY) {
-        Matrix matrix = new Matrix();
-
-        // Rotate the image back to straight.
-        matrix.postRotate(rotationDegrees);
-
-        // Mirror the image along the X or Y axis.
-        matrix.postScale(flipX ? -1.0f : 1.0f, flipY ? -1.0f : 1.0f);
-        Bitmap rotatedBitmap =
-                Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-
-        // Recycle the old bitmap if it has changed.
-        if (rotatedBitmap != bitmap) {
-            bitmap.recycle();
+        if (frame.count == 0) {
+            faceOverlay.clear();
+            if(gallery.isEmpty())
+                showName("Add Face");
+            else
+                showName("No Face Detected!");
+            return;
         }
-        return rotatedBitmap;
-    }
-
-    //IMPORTANT. If conversion not done ,the toBitmap conversion does not work on some devices.
-    private static byte[] YUV_420_888toNV21(Image image) {
 
-        int width = image.getWidth();
-        int height = image.getHeight();
-        int ySize = width*height;
-        int uvSize = width*height/4;
+        //Boxes are in upright image coordinates
+        faceOverlay.setFaces(frame.imageWidth(), frame.imageHeight(), frame.mirror, frame.boxes, frame.labels, frame.count);
 
-        byte[] nv21 = new byte[ySize + uvSize*2];
+        //Voted identity of the first face (IdentityVote); the text only changes with it
+        if (!developerMode && frame.labels[0] != null)
+            showName(frame.labels[0]);
 
-        ByteBuffer yBuffer = image.getPlanes()[0].getBuffer(); // Y
-        ByteBuffer uBuffer = image.getPlanes()[1].getBuffer(); // U
-        ByteBuffer vBuffer = image.getPlanes()[2].getBuffer(); // V
+        if (!frame.firstEmbedded)
+            return; //First face kept its identity without a new embedding; developer mode keeps its last numbers
 
-        int rowStride = image.getPlanes()[0].getRowStride();
-        assert(image.getPlanes()[0].getPixelStride() == 1);
-
-        int pos = 0;
+        // set Face to Preview
+        if (previewBitmap == null)
+            previewBitmap = Bitmap.createBitmap(inputSize, inputSize, Bitmap.Config.ARGB_8888);
+        previewBitmap.setPixels(frame.facePixels(), 0, inputSize, 0, 0, inputSize, inputSize);
+        face_preview.setImageBitmap(previewBitmap);
 
-        if (rowStride == width) { // likely
-            yBuffer.get(nv21, 0, ySize);
-            pos += ySize;
-        }
-        else {
-            long yBufferPos = -rowStride; // not an actual position
-            for (; pos<ySize; pos+=width) {
-                yBufferPos += rowStride;
-                yBuffer.position((int) yBufferPos);
-                yBuffer.get(nv21, pos, width);
-            }
+        System.arraycopy(frame.embedding, 0, primaryEmbedding, 0, OUTPUT_SIZE); //Saved by addFace()
+        if (developerMode) {
+            int slot = recentCropCount++ % RECENT_CROPS;
+            if (recentCrops[slot] == null)
+                recentCrops[slot] = new int[inputSize * inputSize];
+            System.arraycopy(frame.facePixels(), 0, recentCrops[slot], 0, inputSize * inputSize);
         }
 
-        rowStride = image.getPlanes()[2].getRowStride();
-        int pixelStride = image.getPlanes()[2].getPixelStride();
-
-        assert(rowStride == image.getPlanes()[1].getRowStride());
-        assert(pixelStride == image.getPlanes()[1].getPixelStride());
-
-        if (pixelStride == 2 && rowStride == width && uBuffer.get(0) == vBuffer.get(1)) {
-            // maybe V an U planes overlap as per NV21, which means vBuffer[1] is alias of uBuffer[0]
-            byte savePixel = vBuffer.get(1);
-            try {
-                vBuffer.put(1, (byte)~savePixel);
-                if (uBuffer.get(0) == (byte)~savePixel) {
-                    vBuffer.put(1, savePixel);
-                    vBuffer.position(0);
-                    uBuffer.position(0);
-                    vBuffer.get(nv21, ySize, 1);
-                    uBuffer.get(nv21, ySize + 1, uBuffer.remaining());
-
-                    return nv21; // shortcut
-                }
-            }
-            catch (ReadOnlyBufferException ex) {
-                // unfortunately, we cannot check if vBuffer and uBuffer overlap
-            }
-
-            // unfortunately, the check failed. We must save U and V pixel by pixel
-            vBuffer.put(1, savePixel);
-        }
+        FaceGallery.Match nearest = frame.match;
+        if (!nearest.found())
+            return;
 
-        // other optimizations could check if (pixelStride == 1) or (pixelStride == 2),
-        // but performance gain would be less significant
+        if (developerMode)
+        {
+            //Raw match of this frame next to the voted identity
+            final String name = nearest.name; //get name and distance of closest matching face
+            float distance_local = nearest.distance;
+            String stats = "\nAllocs/frame: "+frame.allocations+"\nEmbedded: "+pipeline.tracker().getFacesEmbedded()+"/"+pipeline.tracker().getFacesSeen()+"\nDropped: "+pipeline.getDroppedFrames()+"\nAnalysis: "+pipeline.governor().describe()+"\nDetection: "+pipeline.scheduler().describe()+"\nModel: "+faceModel.file+", "+interpreterConfig+"\nBitmaps: "+bitmapPool.describe()+"\nPhoto cache: "+embeddingCache.describe();
+            reco_name.setText("Voted: "+frame.labels[0]+"\nNearest: "+name +"\nDist: "+ String.format("%.3f",distance_local)+"\n2nd Nearest: "+nearest.secondName +"\nDist: "+ String.format("%.3f",nearest.secondDistance)+stats);
+            shownName = null; //Repaint once developer mode is turned off
 
-        for (int row=0; row<height/2; row++) {
-            for (int col=0; col<width/2; col++) {
-                int vuPos = col*pixelStride + row*rowStride;
-                nv21[pos++] = vBuffer.get(vuPos);
-                nv21[pos++] = uBuffer.get(vuPos);
-            }
+//                    System.out.println("nearest: " + name + " - distance: " + distance_local);
         }
-
-        return nv21;
     }
 
-    private Bitmap toBitmap(Image image) {
-
-        byte[] nv21=YUV_420_888toNV21(image);
-
-
-        YuvImage yuvImage = new YuvImage(nv21, ImageFormat.NV21, image.getWidth(), image.getHeight(), null);
-
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        yuvImage.compressToJpeg(new Rect(0, 0, yuvImage.getWidth(), yuvImage.getHeight()), 75, out);
+    //Sets the text below the preview only when it differs from what is shown
+    private void showName(String text) {
+        if (text.equals(shownName))
+            return;
+        shownName = text;
+        reco_name.setText(text);
+    }
 
-        byte[] imageBytes = out.toByteArray();
-        //System.out.println("bytes"+ Arrays.toString(imageBytes));
+//    public void register(String name, SimilarityClassifier.Recognition rec) {
+//        registered.put(name, rec);
+//    }
 
-        //System.out.println("FORMAT"+image.getFormat());
+    //Compact the journal into a fresh gallery snapshot (written in the background).
+    //Faces are already saved as they are added, renamed or deleted.
+    private void saveGallery() {
+        galleryStore.saveAsync(gallery);
+        Toast.makeText(context, "Recognitions Saved", Toast.LENGTH_SHORT).show();
+    }
 
-        return BitmapFactory.decodeByteArray(imageBytes, 0, imageBytes.length);
+    //Load Faces from the memory-mapped gallery snapshot plus its journal, replacing faces with the same name
+    private void loadGallery() {
+        try {
+            galleryStore.read(gallery);
+            Toast.makeText(context, "Recognitions Loaded", Toast.LENGTH_SHORT).show();
+        } catch (IOException e) {
+            e.printStackTrace();
+            Toast.makeText(context, "Could not load Recognitions", Toast.LENGTH_SHORT).show();
+        }
     }
 
-    //Save Faces to Shared Preferences.Conversion of Recognition objects to json string
-    private void insertToSP(HashMap<String, SimilarityClassifier.Recognition> jsonMap,int mode) {
-        if(mode==1)  //mode: 0:save all, 1:clear all, 2:update all
-            jsonMap.clear();
-        else if (mode==0)
-            jsonMap.putAll(readFromSP());
-        String jsonString = new Gson().toJson(jsonMap);
-//        for (Map.Entry<String, SimilarityClassifier.Recognition> entry : jsonMap.entrySet())
-//        {
-//            System.out.println("Entry Input "+entry.getKey()+" "+  entry.getValue().getExtra());
-//        }
+    //Older versions kept faces as a Gson string in the "HashMap" Shared Preferences.
+    //Convert them once to the binary gallery, then drop the json.
+    private void migrateFromSP() {
         SharedPreferences sharedPreferences = getSharedPreferences("HashMap", MODE_PRIVATE);
-        SharedPreferences.Editor editor = sharedPreferences.edit();
-        editor.putString("map", jsonString);
-        //System.out.println("Input josn"+jsonString.toString());
-        editor.apply();
-        Toast.makeText(context, "Recognitions Saved", Toast.LENGTH_SHORT).show();
+        if (galleryStore.exists() || !sharedPreferences.contains("map"))
+            return;
+        for (Map.Entry<String, SimilarityClassifier.Recognition> entry : readFromSP().entrySet())
+            gallery.put(entry.getKey(), ((float[][]) entry.getValue().getExtra())[0]);
+        try {
+            galleryStore.save(gallery);
+            sharedPreferences.edit().remove("map").apply();
+        } catch (IOException e) {
+            e.printStackTrace(); //Keep the json so migration is retried on next start
+        }
+        gallery.clear();
     }
 
-    //Load Faces from Shared Preferences.Json String to Recognition object
+    //Load legacy Faces from Shared Preferences.Json String to Recognition object (migration only)
     private HashMap<String, SimilarityClassifier.Recognition> readFromSP(){
         SharedPreferences sharedPreferences = getSharedPreferences("HashMap", MODE_PRIVATE);
         String defValue = new Gson().toJson(new HashMap<String, SimilarityClassifier.Recognition>());
@@ -999,98 +1338,332 @@ public class FaceRecognitionActivity extends AppCompatActivity {
 
         }
 //        System.out.println("OUTPUT"+ Arrays.deepToString(outut));
-        Toast.makeText(context, "Recognitions Loaded", Toast.LENGTH_SHORT).show();
         return retrievedMap;
     }
 
     //Load Photo from phone storage
     private void loadphoto()
     {
-        start=false;
+        pipeline.setRunning(false);
         Intent intent = new Intent();
         intent.setType("image/*");
         intent.setAction(Intent.ACTION_GET_CONTENT);
         startActivityForResult(Intent.createChooser(intent, "Select Picture"), SELECT_PICTURE);
     }
 
+    //Mirrors the gallery under patients/{patientId}/faces (GallerySync). The patient is the
+    //signed-in user unless the opening activity passes "patientId"; "firestoreEmulator"
+    //(host:port) points sync at the local emulator for testing.
+    private void startSync()
+    {
+        String patientId = getIntent().getStringExtra("patientId");
+        FirebaseFirestore db;
+        try {
+            db = GallerySync.firestore(getIntent().getStringExtra("firestoreEmulator"));
+            if (patientId == null && FirebaseAuth.getInstance().getCurrentUser() != null)
+                patientId = FirebaseAuth.getInstance().getCurrentUser().getUid();
+        } catch (IllegalStateException e) {
+            return; //Firebase is not set up in this build
+        }
+        if (patientId == null)
+            return;
+        syncPatientId = patientId;
+        visitRecorder.setPatient(db, patientId);
+        gallerySync = new GallerySync(this, db, patientId, FaceModel.galleryTag(OUTPUT_SIZE), new GallerySync.Listener() {
+            @Override
+            public void onRemoteFace(String name, FaceBlob blob) {
+                gallery.putPrototypes(name, blob.prototypes, blob.count);
+                galleryStore.recordAdd(gallery, name);
+            }
+
+            @Override
+            public void onRemoteDelete(String name) {
+                if (gallery.remove(name))
+                    galleryStore.recordDelete(gallery, name);
+            }
+
+            @Override
+            public void onVisitorPhoto(String name, Uri photo) {
+                visitors.put(photo, name);
+                nextVisitor();
+            }
+        });
+        gallerySync.start(gallery);
+    }
+
+    //Enrolls the next caretaker visitor photo once no other enrollment is running
+    private void nextVisitor()
+    {
+        if (bulkEnroller != null || visitors.isEmpty())
+            return;
+        Map.Entry<Uri, String> next = visitors.entrySet().iterator().next();
+        visitors.remove(next.getKey());
+        bulkVisitor = next.getKey();
+        List<Uri> photos = new ArrayList<>();
+        photos.add(next.getKey());
+        startBulkEnroll(next.getValue(), photos, null);
+    }
+
+    //Recognition goes on in DoorwayService without the preview; this screen closes so the
+    //service gets the camera, and opening it again stops the service
+    private void doorwayMode()
+    {
+        if (gallery.isEmpty()) {
+            Toast.makeText(context, "Add faces first, Doorway Mode announces known visitors", Toast.LENGTH_LONG).show();
+            return;
+        }
+        if (checkSelfPermission(Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
+            requestPermissions(new String[]{Manifest.permission.CAMERA}, MY_CAMERA_REQUEST_CODE);
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+                && checkSelfPermission(Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED)
+            requestPermissions(new String[]{Manifest.permission.POST_NOTIFICATIONS}, NOTIFICATION_REQUEST_CODE); //Without it visitors are only announced out loud
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(context);
+        builder.setTitle("Doorway Mode");
+        builder.setMessage("Recognition keeps running with the screen off, on the current camera at low resolution and about "
+                +Math.round(DoorwayService.CPU_BUDGET*100)+"% of one processor core.\n\nKnown visitors are announced out loud and in a notification, each at most every "
+                +DoorwayService.ANNOUNCE_INTERVAL_MS/60000+" minutes.\n\nStop it from its notification or by opening this screen again.");
+        builder.setPositiveButton("Start", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                DoorwayService.start(context, cam_face, syncPatientId);
+                Toast.makeText(context, "Doorway Mode ON", Toast.LENGTH_SHORT).show();
+                finish();
+            }
+        });
+        builder.setNegativeButton("Cancel", null);
+        builder.show();
+    }
+
+    //Who was recognized in the last 7 days and for how long, from the on-device visit log
+    private void visitLog()
+    {
+        final long now = System.currentTimeMillis();
+        visitRecorder.totals(now - 7*24*60*60*1000L, now, totals -> {
+            if (isFinishing() || isDestroyed())
+                return;
+            StringBuilder message = new StringBuilder();
+            SimpleDateFormat lastSeen = new SimpleDateFormat("EEE HH:mm", Locale.getDefault());
+            for (VisitSessions.Total total : totals) {
+                long minutes = Math.max(1, Math.round(total.timeMs / 60000.0));
+                message.append(total.name).append(": ")
+                        .append(total.visits).append(total.visits == 1 ? " visit, " : " visits, ")
+                        .append(minutes >= 60 ? (minutes/60)+" h "+(minutes%60)+" min" : minutes+" min")
+                        .append(", last ").append(lastSeen.format(new Date(total.lastSeen)))
+                        .append("\n\n");
+            }
+            AlertDialog.Builder builder = new AlertDialog.Builder(context);
+            builder.setTitle("Visits This Week");
+            builder.setMessage(totals.isEmpty() ? "No known visitors were recognized in the last 7 days." : message.toString().trim());
+            builder.setPositiveButton("OK", null);
+            builder.show();
+        });
+    }
+
+    //Many photos of one person at once: ask for the name, then pick photos or a whole folder
+    private void bulkEnroll()
+    {
+        if (bulkEnroller != null) {
+            Toast.makeText(context, "Bulk enrollment already running", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        AlertDialog.Builder builder = new AlertDialog.Builder(context);
+        builder.setTitle("Whose photos?");
+        final EditText input = new EditText(context);
+        input.setInputType(InputType.TYPE_CLASS_TEXT);
+        builder.setView(input);
+        builder.setPositiveButton("Next", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                String name = input.getText().toString().trim();
+                if (name.isEmpty()) {
+                    Toast.makeText(context, "Enter a name", Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                bulkName = name;
+                String[] sources = {"Select Photos", "Select Folder"};
+                AlertDialog.Builder chooser = new AlertDialog.Builder(context);
+                chooser.setTitle("Photos of " + name);
+                chooser.setItems(sources, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        Intent intent;
+                        if (which == 0) {
+                            intent = new Intent(Intent.ACTION_GET_CONTENT);
+                            intent.setType("image/*");
+                            intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+                            startActivityForResult(Intent.createChooser(intent, "Select Pictures"), SELECT_PHOTOS);
+                        } else {
+                            intent = new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE);
+                            startActivityForResult(intent, SELECT_FOLDER);
+                        }
+                    }
+                });
+                chooser.setNegativeButton("Cancel", null);
+                chooser.show();
+            }
+        });
+        builder.setNegativeButton("Cancel", null);
+        builder.show();
+    }
+
+    //Photos are embedded on BulkEnroller's workers; the gallery is written once at the end
+    private void startBulkEnroll(final String name, List<Uri> photos, Uri folder)
+    {
+        if (bulkEnroller != null) {
+            Toast.makeText(context, "Another enrollment is running, try again shortly", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        pipeline.setRunning(false);
+        bulkEnroller = new BulkEnroller(getContentResolver(), faceModel, modelBuffer, interpreterConfig,
+                IMAGE_MEAN, IMAGE_STD, distance, new BulkEnroller.Listener() {
+            @Override
+            public void onProgress(int done, int total) {
+                if (bulkProgress != null)
+                    bulkProgress.setMessage("Processed " + done + " of " + total + " photos");
+            }
+
+            @Override
+            public void onFinished(BulkEnroller.Result result) {
+                bulkEnroller = null;
+                if (isFinishing() || isDestroyed())
+                    return;
+                if (bulkProgress != null)
+                    bulkProgress.dismiss();
+                bulkProgress = null;
+                pipeline.setRunning(true);
+                Uri visitor = bulkVisitor;
+                bulkVisitor = null;
+                if (result.cancelled) {
+                    if (visitor != null)
+                        gallerySync.visitorDeferred(visitor); //Not a failure, asked again next time
+                    nextVisitor();
+                    return;
+                }
+                int kept = gallery.enrollAll(result.name, result.embeddings);
+                if (kept > 0) {
+                    galleryStore.recordAdd(gallery, result.name);
+                    if (gallerySync != null)
+                        gallerySync.push(gallery, result.name);
+                }
+                if (visitor != null) {
+                    gallerySync.visitorDone(visitor, !result.embeddings.isEmpty());
+                    Toast.makeText(context, result.embeddings.isEmpty() ? "No face found in the photo of visitor "+result.name
+                            : "Visitor "+result.name+" added by caretaker", Toast.LENGTH_LONG).show();
+                    nextVisitor();
+                    return;
+                }
+                String summary = result.embeddings.size() + " of " + result.photos + " photos used for " + result.name
+                        + ", " + gallery.prototypeCount(result.name) + " views saved";
+                if (result.noFace > 0)
+                    summary += "\n" + result.noFace + " without a face";
+                if (result.outliers > 0)
+                    summary += "\n" + result.outliers + " of someone else";
+                if (result.failed > 0)
+                    summary += "\n" + result.failed + " could not be read";
+                if (result.duplicates > 0)
+                    summary += "\n" + result.duplicates + " near copies (not run through the model)";
+                Toast.makeText(context, summary, Toast.LENGTH_LONG).show();
+                nextVisitor();
+            }
+        });
+
+        AlertDialog.Builder builder = new AlertDialog.Builder(context);
+        builder.setTitle("Enrolling " + name);
+        builder.setMessage("Reading photos...");
+        builder.setCancelable(false);
+        builder.setNegativeButton("Cancel", new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                if (bulkEnroller != null)
+                    bulkEnroller.cancel();
+            }
+        });
+        bulkProgress = builder.show();
+
+        if (folder != null)
+            bulkEnroller.startFolder(name, folder);
+        else
+            bulkEnroller.start(name, photos);
+    }
+
     //Similar Analyzing Procedure
     public void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
+        if (resultCode == RESULT_OK && requestCode == SELECT_PHOTOS) {
+            List<Uri> photos = new ArrayList<>();
+            ClipData clip = data.getClipData();
+            if (clip != null) {
+                for (int i = 0; i < clip.getItemCount(); i++)
+                    photos.add(clip.getItemAt(i).getUri());
+            } else if (data.getData() != null) {
+                photos.add(data.getData()); //A single pick comes without ClipData
+            }
+            if (!photos.isEmpty())
+                startBulkEnroll(bulkName, photos, null);
+            return;
+        }
+        if (resultCode == RESULT_OK && requestCode == SELECT_FOLDER) {
+            if (data.getData() != null)
+                startBulkEnroll(bulkName, null, data.getData());
+            return;
+        }
         if (resultCode == RESULT_OK) {
             if (requestCode == SELECT_PICTURE) {
                 Uri selectedImageUri = data.getData();
+                Bitmap decoded = null;
                 try {
-                    InputImage impphoto=InputImage.fromBitmap(getBitmapFromUri(selectedImageUri),0);
-                    detector.process(impphoto).addOnSuccessListener(new OnSuccessListener<List<Face>>() {
-                        @Override
-                        public void onSuccess(List<Face> faces) {
-
-                            if(faces.size()!=0) {
-                                recognize.setText("Recognize");
-                                add_face.setVisibility(View.VISIBLE);
-                                reco_name.setVisibility(View.INVISIBLE);
-                                face_preview.setVisibility(View.VISIBLE);
-                                preview_info.setText("1.Bring Face in view of Camera.\n\n2.Your Face preview will appear here.\n\n3.Click Add button to save face.");
-                                Face face = faces.get(0);
-//                                System.out.println(face);
-
-                                //write code to recreate bitmap from source
-                                //Write code to show bitmap to canvas
-
-                                Bitmap frame_bmp= null;
-                                try {
-                                    frame_bmp = getBitmapFromUri(selectedImageUri);
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                }
-                                Bitmap frame_bmp1 = rotateBitmap(frame_bmp, 0, flipX, false);
-
-                                //face_preview.setImageBitmap(frame_bmp1);
-
-
-                                RectF boundingBox = new RectF(face.getBoundingBox());
-
-
-                                Bitmap cropped_face = getCropBitmapByCPU(frame_bmp1, boundingBox);
-
-                                Bitmap scaled = getResizedBitmap(cropped_face, 112, 112);
-                                // face_preview.setImageBitmap(scaled);
-
-                                    recognizeImage(scaled);
-                                    addFace();
-//                                System.out.println(boundingBox);
-                                try {
-                                    Thread.sleep(100);
-                                } catch (InterruptedException e) {
-                                    e.printStackTrace();
-                                }
-                            }
-                        }
-                    }).addOnFailureListener(new OnFailureListener() {
-                        @Override
-                        public void onFailure(@NonNull Exception e) {
-                            start=true;
-                            Toast.makeText(context, "Failed to add", Toast.LENGTH_SHORT).show();
-                        }
-                    });
-                    face_preview.setImageBitmap(getBitmapFromUri(selectedImageUri));
+                    decoded = bitmapPool.decode(getContentResolver(), selectedImageUri); //Decoded once, subsampled
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
+                final Bitmap photo = decoded;
+                if (photo == null) {
+                    pipeline.setRunning(true);
+                    Toast.makeText(context, "Failed to add", Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                face_preview.setImageBitmap(photo);
+                InputImage impphoto=InputImage.fromBitmap(photo,0);
+                detector.process(impphoto).addOnSuccessListener(new OnSuccessListener<List<Face>>() {
+                    @Override
+                    public void onSuccess(List<Face> faces) {
+
+                        if(faces.size()!=0) {
+                            pipeline.setEnrolling(true);
+                            recognize.setText("Recognize");
+                            add_face.setVisibility(View.VISIBLE);
+                            reco_name.setVisibility(View.INVISIBLE);
+                            face_preview.setVisibility(View.VISIBLE);
+                            preview_info.setText("1.Bring Face in view of Camera.\n\n2.Your Face preview will appear here.\n\n3.Click Add button to save face.");
+                            Face face = faces.get(0);
+
+                            //Crop, mirror and resize in one draw into a reused 112x112 Bitmap
+                            Bitmap scaled = faceCropper.crop(photo, new RectF(face.getBoundingBox()), flipX);
+                            recognizeImage(scaled); //Also shows scaled, so photo is off screen
+                            addFace();
+                        } else {
+                            face_preview.setImageBitmap(null);
+                            pipeline.setRunning(true);
+                            Toast.makeText(context, "No face found", Toast.LENGTH_SHORT).show();
+                        }
+                        bitmapPool.release(photo);
+                    }
+                }).addOnFailureListener(new OnFailureListener() {
+                    @Override
+                    public void onFailure(@NonNull Exception e) {
+                        face_preview.setImageBitmap(null);
+                        bitmapPool.release(photo);
+                        pipeline.setRunning(true);
+                        Toast.makeText(context, "Failed to add", Toast.LENGTH_SHORT).show();
+                    }
+                });
 
 
             }
         }
     }
 
-    private Bitmap getBitmapFromUri(Uri uri) throws IOException {
-        ParcelFileDescriptor parcelFileDescriptor =
-                getContentResolver().openFileDescriptor(uri, "r");
-        FileDescriptor fileDescriptor = parcelFileDescriptor.getFileDescriptor();
-        Bitmap image = BitmapFactory.decodeFileDescriptor(fileDescriptor);
-        parcelFileDescriptor.close();
-        return image;
-    }
-
 }
-
@@ -0,0 +1,196 @@
+package com.mihir.alzheimerscaregiver.face_recognition;
+
+import android.graphics.RectF;
+
+import com.mihir.alzheimerscaregiver.face_core.FaceGallery;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//Follows faces across frames so a face that stays put keeps its identity without being
+//embedded again. Faces are associated with tracks by ML Kit tracking id when available,
+//otherwise by bounding-box overlap (IoU). A track asks for a new embedding when it is
+//born, when its identity is older than the re-identification interval, or when its box
+//has drifted away from where it was last identified. Each track votes over its recent
+//matches (IdentityVote), so its name only changes on consistent evidence.
+//The tracker is updated from the preprocessing stage and told about identities from the
+//matching stage of FacePipeline, so its methods are synchronized.
+public class FaceTracker {
+
+    public static class Track {
+        final int id;
+        int trackingId = -1;             //ML Kit id, -1 when tracking is unavailable
+        final RectF box = new RectF();
+        final RectF identifiedBox = new RectF();
+        long identifiedAt = -1;          //-1: never identified
+        int missed;
+        boolean seen;
+
+        final IdentityVote vote = new IdentityVote();
+        volatile String name;            //Decided identity, null while nothing is enrolled
+        volatile float distance = Float.MAX_VALUE; //Of the latest match
+
+        Track(int id) {
+            this.id = id;
+        }
+
+        public int id() {
+            return id;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public float distance() {
+            return distance;
+        }
+    }
+
+    public static final long DEFAULT_REIDENTIFY_MS = 2000;
+    public static final float DEFAULT_DRIFT_IOU = 0.5f;  //Re-identify below this overlap with the identified box
+    private static final float MATCH_IOU = 0.3f;         //Minimum overlap to continue a track
+    private static final int MAX_MISSED = 3;             //Frames a track survives without a face
+
+    private final List<Track> tracks = new ArrayList<>();
+    private long reidentifyMs = DEFAULT_REIDENTIFY_MS;
+    private float driftIou = DEFAULT_DRIFT_IOU;
+    private int nextId;
+
+    //Counters for developer mode
+    private long facesSeen, facesEmbedded;
+    private float motion; //Largest center shift of a continued track in the last update, in face widths
+
+    public synchronized void setReidentifyInterval(long ms) {
+        reidentifyMs = ms;
+    }
+
+    public synchronized void setDriftThreshold(float iou) {
+        driftIou = iou;
+    }
+
+    //Assigns a track to each of the first count faces (out[i] for boxes[i]). trackingIds[i]
+    //is the ML Kit tracking id, -1 when the detection has none.
+    public synchronized void update(RectF[] boxes, int[] trackingIds, int count, Track[] out) {
+        for (Track track : tracks)
+            track.seen = false;
+
+        for (int i = 0; i < count; i++) {
+            int trackingId = trackingIds[i];
+            out[i] = null;
+            if (trackingId != -1) {
+                for (Track track : tracks) {
+                    if (!track.seen && track.trackingId == trackingId) {
+                        out[i] = track;
+                        break;
+                    }
+                }
+            }
+        }
+
+        //Faces without a tracking id match by overlap, best remaining pair first
+        while (true) {
+            float best = MATCH_IOU;
+            int bestFace = -1;
+            Track bestTrack = null;
+            for (int i = 0; i < count; i++) {
+                if (out[i] != null)
+                    continue;
+                for (Track track : tracks) {
+                    if (track.seen || isClaimed(track, out, count))
+                        continue;
+                    float iou = iou(boxes[i], track.box);
+                    if (iou > best) {
+                        best = iou;
+                        bestFace = i;
+                        bestTrack = track;
+                    }
+                }
+            }
+            if (bestTrack == null)
+                break;
+            out[bestFace] = bestTrack;
+            bestTrack.seen = true;
+        }
+
+        motion = 0;
+        for (int i = 0; i < count; i++) {
+            Track track = out[i];
+            RectF box = boxes[i];
+            if (track == null) {
+                track = new Track(nextId++);
+                tracks.add(track);
+                out[i] = track;
+                motion = Float.MAX_VALUE; //A new face counts as movement
+            } else if (motion < Float.MAX_VALUE) {
+                float dx = box.centerX() - track.box.centerX();
+                float dy = box.centerY() - track.box.centerY();
+                float shift = (float) Math.sqrt(dx * dx + dy * dy) / Math.max(1, track.box.width());
+                motion = Math.max(motion, shift);
+            }
+            track.trackingId = trackingIds[i];
+            track.box.set(box);
+            track.seen = true;
+            track.missed = 0;
+        }
+
+        for (int i = tracks.size() - 1; i >= 0; i--) {
+            Track track = tracks.get(i);
+            if (!track.seen && ++track.missed > MAX_MISSED)
+                tracks.remove(i);
+        }
+        facesSeen += count;
+    }
+
+    public synchronized boolean needsEmbedding(Track track, long nowMs) {
+        return track.identifiedAt < 0
+                || nowMs - track.identifiedAt >= reidentifyMs
+                || iou(track.box, track.identifiedBox) < driftIou;
+    }
+
+    //Adds a gallery match to the track's vote. Returns true if its decided identity changed.
+    public synchronized boolean identified(Track track, FaceGallery.Match match, float threshold, long nowMs) {
+        String previous = track.name;
+        track.name = track.vote.add(match, threshold);
+        track.distance = match.distance;
+        track.identifiedAt = nowMs;
+        track.identifiedBox.set(track.box);
+        facesEmbedded++;
+        return previous == null ? track.name != null : !previous.equals(track.name);
+    }
+
+    public synchronized void clear() {
+        tracks.clear();
+    }
+
+    public synchronized float getMotion() {
+        return motion;
+    }
+
+    public synchronized long getFacesSeen() {
+        return facesSeen;
+    }
+
+    public synchronized long getFacesEmbedded() {
+        return facesEmbedded;
+    }
+
+    private static boolean isClaimed(Track track, Track[] out, int count) {
+        for (int i = 0; i < count; i++)
+            if (out[i] == track)
+                return true;
+        return false;
+    }
+
+    static float iou(RectF a, RectF b) {
+        float left = Math.max(a.left, b.left);
+        float top = Math.max(a.top, b.top);
+        float right = Math.min(a.right, b.right);
+        float bottom = Math.min(a.bottom, b.bottom);
+        if (right <= left || bottom <= top)
+            return 0;
+        float intersection = (right - left) * (bottom - top);
+        float union = a.width() * a.height() + b.width() * b.height() - intersection;
+        return union > 0 ? intersection / union : 0;
+    }
+}
@@ -0,0 +1,130 @@
+package com.mihir.alzheimerscaregiver.face_recognition;
+
+import android.util.Size;
+
+//Decides how much of the camera stream the pipeline analyzes.
+//  - While every face holds still, a few frames per second are enough (the tracker keeps
+//    their identities); any movement or a new face brings back every frame.
+//  - No frame is admitted sooner than the pipeline's own end-to-end latency, since the
+//    stages would only drop it.
+//  - After idleMs without a face, recognition pauses: one frame per IDLE_INTERVAL_MS is
+//    detected at the low analysis resolution, and the first face found resumes full rate.
+//  - Latency that stays above SLOW_MS with faces present also drops to the low
+//    resolution, until it stays below FAST_MS again.
+//  - With a CPU budget (a share of one core), frames are spaced so the pipeline's work
+//    per frame, averaged, stays within it: 40 ms of work at a 5% budget is one frame
+//    every 800 ms. This bound holds in every state, paused or not.
+//Frames are admitted on the detect thread and reported back from the main thread.
+public class FrameGovernor {
+
+    public static final Size HIGH = new Size(640, 480);
+    public static final Size LOW = new Size(320, 240);
+    public static final long DEFAULT_IDLE_MS = 10000;
+
+    static final float STILL_MOTION = 0.03f;  //Largest face center shift between frames, in face widths
+    static final long STILL_INTERVAL_MS = 200;
+    static final long IDLE_INTERVAL_MS = 500;
+    static final long SLOW_MS = 250, FAST_MS = 120;
+    static final long SLOW_HOLD_MS = 3000, FAST_HOLD_MS = 10000; //Hysteresis, a resolution change rebinds the camera
+    private static final float SMOOTHING = 0.2f;
+
+    private long idleMs = DEFAULT_IDLE_MS;
+    private float cpuBudget;        //Share of one core, 0 for no budget
+    private float work;             //Smoothed processing time per analyzed frame (ms)
+    private float latency;          //Smoothed end-to-end latency (ms), faces present
+    private float motion;
+    private int faces;
+    private long lastAdmitted = Long.MIN_VALUE / 2;
+    private long lastFace = -1;
+    private long slowSince = -1, fastSince = -1;
+    private boolean idle, slow;
+    private long skipped;
+
+    public synchronized void setIdleTimeout(long ms) {
+        idleMs = ms;
+    }
+
+    public synchronized long getIdleTimeout() {
+        return idleMs;
+    }
+
+    public synchronized void setCpuBudget(float share) {
+        cpuBudget = share;
+    }
+
+    //Detect thread: true if this camera frame should be analyzed
+    public synchronized boolean admit(long now) {
+        if (lastFace < 0)
+            lastFace = now;
+        if (now - lastAdmitted < interval()) {
+            skipped++;
+            return false;
+        }
+        lastAdmitted = now;
+        return true;
+    }
+
+    //Result of an admitted frame: faces found, admission to result in ms, time the stages
+    //spent working on it in ms, and face motion
+    public synchronized void frameDone(long now, int faceCount, long latencyMs, float workMs, float faceMotion) {
+        work = work == 0 ? workMs : work + SMOOTHING * (workMs - work);
+        faces = faceCount;
+        if (faceCount == 0) {
+            idle = lastFace >= 0 && now - lastFace >= idleMs;
+            return;
+        }
+        lastFace = now;
+        idle = false;
+        motion = faceMotion;
+        latency = latency == 0 ? latencyMs : latency + SMOOTHING * (latencyMs - latency);
+
+        if (latency > SLOW_MS) {
+            fastSince = -1;
+            if (slowSince < 0)
+                slowSince = now;
+            if (now - slowSince >= SLOW_HOLD_MS)
+                slow = true;
+        } else if (latency < FAST_MS) {
+            slowSince = -1;
+            if (fastSince < 0)
+                fastSince = now;
+            if (now - fastSince >= FAST_HOLD_MS)
+                slow = false;
+        } else {
+            slowSince = fastSince = -1;
+        }
+    }
+
+    public synchronized Size resolution() {
+        return idle || slow ? LOW : HIGH;
+    }
+
+    public synchronized boolean isIdle() {
+        return idle;
+    }
+
+    public synchronized long getSkippedFrames() {
+        return skipped;
+    }
+
+    //Developer mode summary
+    public synchronized String describe() {
+        Size size = resolution();
+        return (idle ? "Paused" : "Active") + " " + size.getWidth() + "x" + size.getHeight()
+                + ", every " + interval() + " ms, latency " + Math.round(latency) + " ms"
+                + (cpuBudget > 0 ? ", work " + Math.round(work) + " ms, budget " + Math.round(cpuBudget * 100) + "%" : "");
+    }
+
+    private long interval() {
+        long interval;
+        if (idle) {
+            interval = IDLE_INTERVAL_MS;
+        } else {
+            interval = faces > 0 && motion < STILL_MOTION ? STILL_INTERVAL_MS : 0;
+            interval = Math.max(interval, (long) (latency * 0.8f));
+        }
+        if (cpuBudget > 0)
+            interval = Math.max(interval, (long) (work / cpuBudget));
+        return interval;
+    }
+}
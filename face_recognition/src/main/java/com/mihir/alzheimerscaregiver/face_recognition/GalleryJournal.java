@@ -0,0 +1,208 @@
+package com.mihir.alzheimerscaregiver.face_recognition;
+
+import com.mihir.alzheimerscaregiver.face_core.FaceGallery;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+//Append-only log of gallery changes made since the last snapshot.
+//
+//Record layout (little endian):
+//  int   payload length (type byte included)
+//  int   CRC32 of the payload
+//  byte  type
+//  ...   type specific fields, names as (short length, UTF-8 bytes)
+//
+//A record is only trusted if it is complete and its checksum matches. Replay stops at
+//the first bad record and the file is cut back to the last good one, so a crash in the
+//middle of an append loses at most that append.
+//A crash between a compaction's snapshot and its truncate replays the whole journal over
+//a snapshot that already contains it, so the records written now (IDENTITY, DELETE,
+//CLEAR) each set a name to a final state and can be replayed any number of times.
+//RENAME is not like that (A->B then ADD A would overwrite B). ADD and RENAME are only
+//read from journals of older versions; nothing writes them any more, renames are written
+//as IDENTITY of the new name plus DELETE.
+public class GalleryJournal {
+
+    static final byte ADD = 1;      //name, dim floats (normalized embedding); written by older versions
+    static final byte RENAME = 2;   //old name, new name; written by older versions
+    static final byte DELETE = 3;   //name
+    static final byte CLEAR = 4;    //no fields
+    static final byte IDENTITY = 5; //name, short count, count x dim floats (all prototypes)
+
+    private static final int RECORD_HEADER = 8;
+
+    private final File file;
+
+    public GalleryJournal(File file) {
+        this.file = file;
+    }
+
+    public boolean exists() {
+        return file.exists();
+    }
+
+    public long length() {
+        return file.length();
+    }
+
+    //Every prototype of an identity, so replay does not depend on the novelty rules
+    static byte[] identity(String name, float[] prototypes, int count, int dim) {
+        byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = payload(1 + 2 + encoded.length + 2 + count * dim * 4);
+        payload.put(IDENTITY);
+        putName(payload, encoded);
+        payload.putShort((short) count);
+        payload.asFloatBuffer().put(prototypes, 0, count * dim);
+        return frame(payload);
+    }
+
+    static byte[] delete(String name) {
+        byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = payload(1 + 2 + encoded.length);
+        payload.put(DELETE);
+        putName(payload, encoded);
+        return frame(payload);
+    }
+
+    static byte[] clear() {
+        ByteBuffer payload = payload(1);
+        payload.put(CLEAR);
+        return frame(payload);
+    }
+
+    //Appends records with one write and one sync
+    public void append(byte[]... records) throws IOException {
+        int total = 0;
+        for (byte[] record : records)
+            total += record.length;
+        ByteBuffer out = ByteBuffer.allocate(total);
+        for (byte[] record : records)
+            out.put(record);
+        out.flip();
+        try (FileOutputStream stream = new FileOutputStream(file, true)) {
+            FileChannel channel = stream.getChannel();
+            while (out.hasRemaining())
+                channel.write(out);
+            stream.getFD().sync();
+        }
+    }
+
+    //Applies every valid record to gallery and returns how many were applied
+    public int replay(FaceGallery gallery) throws IOException {
+        if (!file.exists())
+            return 0;
+        int applied = 0;
+        long good = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            float[] embedding = new float[gallery.dim()];
+            CRC32 crc = new CRC32();
+
+            while (map.remaining() >= RECORD_HEADER) {
+                int length = map.getInt();
+                int checksum = map.getInt();
+                if (length <= 0 || length > map.remaining())
+                    break;
+                ByteBuffer payload = map.slice();
+                payload.limit(length);
+                payload.order(ByteOrder.LITTLE_ENDIAN);
+                crc.reset();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != checksum)
+                    break;
+                if (!apply(payload, gallery, embedding))
+                    break;
+                map.position(map.position() + length);
+                good = map.position();
+                applied++;
+            }
+            if (good < size)
+                channel.truncate(good); //Drop a torn or corrupt tail
+        }
+        return applied;
+    }
+
+    public void truncate() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(0);
+            raf.getFD().sync();
+        }
+    }
+
+    private static boolean apply(ByteBuffer payload, FaceGallery gallery, float[] embedding) {
+        switch (payload.get()) {
+            case ADD: {
+                String name = getName(payload);
+                if (payload.remaining() != embedding.length * 4)
+                    return false;
+                payload.asFloatBuffer().get(embedding);
+                gallery.putNormalized(name, embedding);
+                return true;
+            }
+            case IDENTITY: {
+                String name = getName(payload);
+                int count = payload.getShort() & 0xFFFF;
+                if (count == 0 || payload.remaining() != count * embedding.length * 4)
+                    return false;
+                float[] prototypes = new float[count * embedding.length];
+                payload.asFloatBuffer().get(prototypes);
+                gallery.putPrototypes(name, prototypes, count);
+                return true;
+            }
+            case RENAME: {
+                String oldName = getName(payload);
+                gallery.rename(oldName, getName(payload));
+                return true;
+            }
+            case DELETE:
+                gallery.remove(getName(payload));
+                return true;
+            case CLEAR:
+                gallery.clear();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static ByteBuffer payload(int length) {
+        return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    //Prefixes the filled payload with its length and checksum
+    private static byte[] frame(ByteBuffer payload) {
+        byte[] record = new byte[RECORD_HEADER + payload.capacity()];
+        ByteBuffer out = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+        payload.rewind();
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        out.putInt(payload.capacity());
+        out.putInt((int) crc.getValue());
+        out.put(payload);
+        return record;
+    }
+
+    private static void putName(ByteBuffer payload, byte[] encoded) {
+        payload.putShort((short) encoded.length);
+        payload.put(encoded);
+    }
+
+    private static String getName(ByteBuffer payload) {
+        int length = payload.getShort() & 0xFFFF;
+        byte[] encoded = new byte[length];
+        payload.get(encoded);
+        return new String(encoded, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,274 @@
+package com.mihir.alzheimerscaregiver.face_recognition;
+
+import android.content.Context;
+
+import com.mihir.alzheimerscaregiver.face_core.FaceGallery;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+//Binary face gallery file, memory-mapped on load.
+//
+//Layout (little endian):
+//  int   magic 'FGAL'
+//  int   version
+//  int   count
+//  int   dim
+//  int   name table size in bytes
+//  int   model tag (FaceModel.galleryTag(), 0 in files written before it was recorded)
+//  name table: count x (short length, UTF-8 bytes), padded to 4 bytes
+//  int   prototypes per identity, count of them (version 2 only)
+//  float32 block: every identity's normalized prototypes in name order, row-major
+//                 (version 1: exactly one embedding per identity)
+//
+//The snapshot is only rewritten on compaction: it goes to a temporary file that is
+//synced and renamed over the old one, so a crash leaves either the previous or the new
+//snapshot, never a partial one. Individual enrollments, renames and deletes are appended
+//to a GalleryJournal next to it, so their cost does not grow with the gallery.
+//All file access, reads included, runs in order on one background thread: a journal replay
+//can cut the file back, so it must never overlap a queued append or compaction.
+public class GalleryStore {
+
+    static final long COMPACT_BYTES = 64 * 1024; //Journal size that triggers a new snapshot
+
+    static final int MAGIC = 0x4C414746; //"FGAL" read as little-endian bytes
+    static final int VERSION = 2;      //Multiple prototypes per identity
+    static final int HEADER_BYTES = 24;
+
+    private static GalleryStore shared; //faces.bin of the app, for the activity and DoorwayService
+
+    private final File file;
+    private final GalleryJournal journal;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    private long journalBytes; //Journal size once all queued appends are written
+    private int modelTag;
+
+    public GalleryStore(File file) {
+        this.file = file;
+        this.journal = new GalleryJournal(new File(file.getPath() + ".journal"));
+    }
+
+    //The one store of the app's faces.bin: two stores on the same files would each have a
+    //writer thread, and one's replay could cut off the other's queued appends
+    public static synchronized GalleryStore shared(Context context) {
+        if (shared == null)
+            shared = new GalleryStore(new File(context.getApplicationContext().getFilesDir(), "faces.bin"));
+        return shared;
+    }
+
+    //Embedding model the gallery belongs to; snapshots of another model are refused
+    public void setModelTag(int modelTag) {
+        this.modelTag = modelTag;
+    }
+
+    public boolean exists() {
+        return file.exists() || journal.exists();
+    }
+
+    //Adds (or replaces) every stored face in gallery: the snapshot first, then the
+    //journal on top of it. Runs on the background thread after every queued write and
+    //blocks until it is done. Returns the number of faces in the gallery afterwards.
+    public int read(FaceGallery gallery) throws IOException {
+        journalBytes = await(() -> {
+            readSnapshot(gallery);
+            journal.replay(gallery);
+            return journal.length();
+        });
+        if (journalBytes > COMPACT_BYTES)
+            saveAsync(gallery);
+        return gallery.size();
+    }
+
+    //Records every current prototype of name, after it was enrolled or changed
+    public void recordAdd(FaceGallery gallery, String name) {
+        float[] prototypes = gallery.getPrototypes(name);
+        int count = prototypes.length / gallery.dim();
+        if (count > 0)
+            append(gallery, GalleryJournal.identity(name, prototypes, count, gallery.dim()));
+    }
+
+    //Journaled as every prototype of newName plus a delete of oldName: unlike a rename,
+    //both can be replayed again over a snapshot that already has the change
+    public void recordRename(FaceGallery gallery, String oldName, String newName) {
+        float[] prototypes = gallery.getPrototypes(newName);
+        int count = prototypes.length / gallery.dim();
+        if (count > 0)
+            append(gallery, GalleryJournal.identity(newName, prototypes, count, gallery.dim()), GalleryJournal.delete(oldName));
+    }
+
+    public void recordDelete(FaceGallery gallery, String... names) {
+        byte[][] records = new byte[names.length][];
+        for (int i = 0; i < names.length; i++)
+            records[i] = GalleryJournal.delete(names[i]);
+        append(gallery, records);
+    }
+
+    public void recordClear(FaceGallery gallery) {
+        append(gallery, GalleryJournal.clear());
+    }
+
+    //Records must be created after the change was applied to gallery, on the same thread
+    private void append(FaceGallery gallery, byte[]... records) {
+        for (byte[] record : records)
+            journalBytes += record.length;
+        writer.execute(() -> {
+            try {
+                journal.append(records);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        if (journalBytes > COMPACT_BYTES)
+            saveAsync(gallery);
+    }
+
+    private void readSnapshot(FaceGallery gallery) throws IOException {
+        if (!file.exists())
+            return;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (map.remaining() < HEADER_BYTES || map.getInt() != MAGIC)
+                throw new IOException("Not a face gallery file");
+            int version = map.getInt();
+            if (version != 1 && version != VERSION)
+                throw new IOException("Unsupported face gallery version " + version);
+            int count = map.getInt();
+            int dim = map.getInt();
+            int nameBytes = map.getInt();
+            int tag = map.getInt();
+            if (tag != 0 && modelTag != 0 && tag != modelTag)
+                throw new IOException("Face gallery was enrolled with another face model");
+            if (dim != gallery.dim())
+                throw new IOException("Gallery embedding size " + dim + " does not match model output " + gallery.dim());
+            if (map.remaining() < nameBytes + (long) count * (version == 1 ? dim * 4 : 4))
+                throw new IOException("Truncated face gallery file");
+
+            String[] names = new String[count];
+            byte[] scratch = new byte[256];
+            for (int i = 0; i < count; i++) {
+                int length = map.getShort() & 0xFFFF;
+                if (scratch.length < length)
+                    scratch = new byte[length];
+                map.get(scratch, 0, length);
+                names[i] = new String(scratch, 0, length, StandardCharsets.UTF_8);
+            }
+            map.position(HEADER_BYTES + nameBytes);
+            if (version == 1) {
+                gallery.addAllNormalized(names, map.asFloatBuffer());
+                return;
+            }
+            int[] counts = new int[count];
+            long total = 0;
+            for (int i = 0; i < count; i++) {
+                counts[i] = map.getInt();
+                if (counts[i] <= 0)
+                    throw new IOException("Corrupt face gallery file");
+                total += counts[i];
+            }
+            if (map.remaining() < total * dim * 4)
+                throw new IOException("Truncated face gallery file");
+            gallery.addAllNormalized(names, counts, map.asFloatBuffer());
+        }
+    }
+
+    //Compaction: snapshot of the gallery taken on the calling thread, written on the
+    //background thread after every append queued before it, then the journal is emptied.
+    //Appends queued later land in the fresh journal.
+    public void saveAsync(FaceGallery gallery) {
+        final ByteBuffer image = encode(gallery, modelTag);
+        journalBytes = 0;
+        writer.execute(() -> {
+            try {
+                write(image);
+                journal.truncate();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    //Blocking compaction, after every queued write
+    public void save(FaceGallery gallery) throws IOException {
+        final ByteBuffer image = encode(gallery, modelTag);
+        await(() -> {
+            write(image);
+            if (journal.exists())
+                journal.truncate();
+            return 0L;
+        });
+        journalBytes = 0;
+    }
+
+    //Runs task on the writer thread and waits for it
+    private long await(Callable<Long> task) throws IOException {
+        try {
+            return writer.submit(task).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " + file);
+        }
+    }
+
+    static ByteBuffer encode(FaceGallery gallery, int modelTag) {
+        synchronized (gallery) { //Prototypes are read directly
+            String[] names = gallery.names();
+            byte[][] encoded = new byte[names.length][];
+            int nameBytes = 0;
+            for (int i = 0; i < names.length; i++) {
+                encoded[i] = names[i].getBytes(StandardCharsets.UTF_8);
+                nameBytes += 2 + encoded[i].length;
+            }
+            nameBytes = (nameBytes + 3) & ~3;
+
+            int dim = gallery.dim();
+            int countBytes = names.length * 4;
+            ByteBuffer out = ByteBuffer.allocate(HEADER_BYTES + nameBytes + countBytes + gallery.prototypeTotal() * dim * 4);
+            out.order(ByteOrder.LITTLE_ENDIAN);
+            out.putInt(MAGIC).putInt(VERSION).putInt(names.length).putInt(dim).putInt(nameBytes).putInt(modelTag);
+            for (byte[] name : encoded) {
+                out.putShort((short) name.length);
+                out.put(name);
+            }
+            out.position(HEADER_BYTES + nameBytes + countBytes);
+            int[] counts = new int[names.length];
+            gallery.writePrototypes(out.asFloatBuffer(), counts);
+            out.position(HEADER_BYTES + nameBytes);
+            out.asIntBuffer().put(counts);
+            out.rewind();
+            return out;
+        }
+    }
+
+    private void write(ByteBuffer image) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(tmp)) {
+            FileChannel channel = stream.getChannel();
+            while (image.hasRemaining())
+                channel.write(image);
+            stream.getFD().sync();
+        }
+        if (!tmp.renameTo(file))
+            throw new IOException("Could not replace " + file);
+    }
+}
@@ -0,0 +1,313 @@
+package com.mihir.alzheimerscaregiver.face_recognition;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.util.Log;
+
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.Blob;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.DocumentChange;
+import com.google.firebase.firestore.DocumentSnapshot;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+import com.google.firebase.firestore.ListenerRegistration;
+import com.google.firebase.firestore.Query;
+import com.google.firebase.firestore.SetOptions;
+import com.mihir.alzheimerscaregiver.face_core.FaceBlob;
+import com.mihir.alzheimerscaregiver.face_core.FaceGallery;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+//Mirrors the face gallery under patients/{patientId}/faces, one document per identity:
+//    name, embeddings (FaceBlob: float16 prototypes, ~390 bytes per view), count, dim, model,
+//    version (incremented by every write), deleted (tombstone), updatedAt (server time),
+//    updatedBy (device that wrote it)
+//Only changes transfer: the listener asks for documents with updatedAt after the last one
+//applied (kept in the "FaceSync" preferences), and a document is applied only when its
+//version is newer than the one this device last saw for that identity.
+//The caretaker app adds visitors as documents with pending = true and a small JPEG in
+//photo; this device embeds the photo, uploads the identity and removes the request
+//(or marks it failed when the photo shows no usable face).
+//Callbacks arrive on the main thread.
+public class GallerySync {
+
+    private static final String TAG = "GallerySync";
+
+    public interface Listener {
+        //Replace name's prototypes with blob's (already checked to be from this model)
+        void onRemoteFace(String name, FaceBlob blob);
+
+        void onRemoteDelete(String name);
+
+        //A caretaker's photo of a new visitor, saved to a local file; enroll it and push()
+        void onVisitorPhoto(String name, Uri photo);
+    }
+
+    static final String COLLECTION = "faces";
+    static final String NAME = "name", EMBEDDINGS = "embeddings", COUNT = "count", DIM = "dim", MODEL = "model",
+            VERSION = "version", DELETED = "deleted", PENDING = "pending", PHOTO = "photo", FAILED = "failed",
+            UPDATED_AT = "updatedAt", UPDATED_BY = "updatedBy";
+
+    private final Context context;
+    private final CollectionReference faces;
+    private final int modelTag;
+    private final Listener listener;
+    private final SharedPreferences prefs;
+    private final String device;
+    private final Set<String> visitorsInProgress = new HashSet<>(); //Document ids
+    private ListenerRegistration registration, visitorRegistration;
+    private boolean caughtUp;
+
+    public GallerySync(Context context, FirebaseFirestore db, String patientId, int modelTag, Listener listener) {
+        this.context = context.getApplicationContext();
+        this.faces = db.collection("patients").document(patientId).collection(COLLECTION);
+        this.modelTag = modelTag;
+        this.listener = listener;
+        prefs = context.getSharedPreferences("FaceSync", Context.MODE_PRIVATE);
+        String id = prefs.getString("device", null);
+        if (id == null) {
+            id = UUID.randomUUID().toString();
+            prefs.edit().putString("device", id).apply();
+        }
+        device = id;
+    }
+
+    //The default Firestore, or the local emulator when host ("10.0.2.2:8080" from an
+    //Android emulator) is given. Must be called before anything else uses Firestore.
+    public static FirebaseFirestore firestore(String emulatorHost) {
+        FirebaseFirestore db = FirebaseFirestore.getInstance();
+        if (emulatorHost != null) {
+            int colon = emulatorHost.lastIndexOf(':');
+            db.useEmulator(emulatorHost.substring(0, colon), Integer.parseInt(emulatorHost.substring(colon + 1)));
+        }
+        return db;
+    }
+
+    //Listens for changes since the saved cursor. Once the backlog is applied, identities
+    //this device has never synced are uploaded (a gallery enrolled before sync existed).
+    public void start(FaceGallery gallery) {
+        Query query = faces.orderBy(UPDATED_AT);
+        Timestamp cursor = cursor();
+        if (cursor != null)
+            query = faces.whereGreaterThan(UPDATED_AT, cursor).orderBy(UPDATED_AT);
+        registration = query.addSnapshotListener((snapshot, error) -> {
+            if (error != null) {
+                Log.w(TAG, "Face sync stopped", error);
+                return;
+            }
+            if (snapshot == null)
+                return;
+            for (DocumentChange change : snapshot.getDocumentChanges())
+                if (change.getType() != DocumentChange.Type.REMOVED)
+                    apply(change.getDocument());
+            if (!caughtUp && !snapshot.getMetadata().isFromCache()) {
+                caughtUp = true;
+                pushUnsynced(gallery);
+            }
+        });
+        //Visitor requests are few and wait until handled, so they are not behind the cursor
+        visitorRegistration = faces.whereEqualTo(PENDING, true).addSnapshotListener((snapshot, error) -> {
+            if (error != null) {
+                Log.w(TAG, "Visitor requests stopped", error);
+                return;
+            }
+            if (snapshot == null)
+                return;
+            for (DocumentChange change : snapshot.getDocumentChanges())
+                if (change.getType() != DocumentChange.Type.REMOVED)
+                    visitorPhoto(change.getDocument());
+        });
+    }
+
+    public void stop() {
+        if (registration != null)
+            registration.remove();
+        if (visitorRegistration != null)
+            visitorRegistration.remove();
+        registration = visitorRegistration = null;
+    }
+
+    //Uploads name's current prototypes
+    public void push(FaceGallery gallery, String name) {
+        float[] prototypes;
+        int count;
+        synchronized (gallery) {
+            if (!gallery.contains(name))
+                return;
+            prototypes = gallery.getPrototypes(name);
+            count = gallery.prototypeCount(name);
+        }
+        Map<String, Object> data = header(name);
+        data.put(EMBEDDINGS, Blob.fromBytes(FaceBlob.encode(prototypes, count, gallery.dim(), modelTag)));
+        data.put(COUNT, count);
+        data.put(DIM, gallery.dim());
+        data.put(MODEL, modelTag);
+        data.put(DELETED, false);
+        data.put(PENDING, false);
+        data.put(PHOTO, FieldValue.delete()); //A visitor photo is not needed once embedded
+        write(name, data);
+    }
+
+    public void pushDelete(String name) {
+        Map<String, Object> data = header(name);
+        data.put(DELETED, true);
+        data.put(EMBEDDINGS, FieldValue.delete());
+        data.put(PHOTO, FieldValue.delete());
+        write(name, data);
+    }
+
+    public void pushRename(FaceGallery gallery, String oldName, String newName) {
+        pushDelete(oldName);
+        push(gallery, newName);
+    }
+
+    private Map<String, Object> header(String name) {
+        Map<String, Object> data = new HashMap<>();
+        data.put(NAME, name);
+        data.put(VERSION, FieldValue.increment(1)); //Atomic on the server, works offline too
+        data.put(UPDATED_AT, FieldValue.serverTimestamp());
+        data.put(UPDATED_BY, device);
+        return data;
+    }
+
+    //Queued by Firestore while offline; the version comes back with the echo in apply()
+    private void write(String name, Map<String, Object> data) {
+        faces.document(documentId(name)).set(data, SetOptions.merge())
+                .addOnFailureListener(e -> Log.w(TAG, "Could not upload " + name, e));
+    }
+
+    private void pushUnsynced(FaceGallery gallery) {
+        for (String name : gallery.names())
+            if (version(name) == 0)
+                push(gallery, name);
+    }
+
+    private void apply(DocumentSnapshot doc) {
+        if (doc.getMetadata().hasPendingWrites())
+            return; //Our own write before the server stamped it; it comes back stamped
+        String name = doc.getString(NAME);
+        Timestamp updatedAt = doc.getTimestamp(UPDATED_AT);
+        if (name == null || updatedAt == null)
+            return;
+        long version = doc.getLong(VERSION) != null ? doc.getLong(VERSION) : 0;
+
+        if (Boolean.TRUE.equals(doc.getBoolean(PENDING)) || Boolean.TRUE.equals(doc.getBoolean(FAILED))) {
+            //Visitor request, handled by the other listener, or one no device could enroll
+        } else if (device.equals(doc.getString(UPDATED_BY))) {
+            setVersion(name, version); //Echo of our own upload
+        } else if (version > version(name)) {
+            setVersion(name, version);
+            if (Boolean.TRUE.equals(doc.getBoolean(DELETED))) {
+                listener.onRemoteDelete(name);
+            } else {
+                Blob embeddings = doc.getBlob(EMBEDDINGS);
+                if (embeddings != null) {
+                    try {
+                        FaceBlob blob = FaceBlob.decode(embeddings.toBytes());
+                        if (blob.modelTag == modelTag)
+                            listener.onRemoteFace(name, blob);
+                        else
+                            Log.w(TAG, name + " was enrolled with another model (" + blob.modelTag + ")");
+                    } catch (IllegalArgumentException e) {
+                        Log.w(TAG, "Bad face blob for " + name, e);
+                    }
+                }
+            }
+        }
+        saveCursor(updatedAt);
+    }
+
+    private void visitorPhoto(DocumentSnapshot doc) {
+        String name = doc.getString(NAME);
+        Blob photo = doc.getBlob(PHOTO);
+        if (name == null || photo == null || !visitorsInProgress.add(doc.getId()))
+            return;
+        File file = new File(context.getCacheDir(), "visitor_" + doc.getId() + ".jpg");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(photo.toBytes());
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save visitor photo of " + name, e);
+            visitorsInProgress.remove(doc.getId());
+            return;
+        }
+        listener.onVisitorPhoto(name, Uri.fromFile(file));
+    }
+
+    //After onVisitorPhoto was handled. An enrolled visitor now has its own document (push),
+    //so the request goes; otherwise it stays, marked failed, for the caretaker to see.
+    public void visitorDone(Uri photo, boolean enrolled) {
+        String id = visitorPhotoDone(photo);
+        if (enrolled) {
+            faces.document(id).delete();
+        } else {
+            Map<String, Object> data = new HashMap<>();
+            data.put(PENDING, false);
+            data.put(FAILED, true);
+            data.put(PHOTO, FieldValue.delete());
+            data.put(UPDATED_AT, FieldValue.serverTimestamp());
+            data.put(UPDATED_BY, device);
+            faces.document(id).set(data, SetOptions.merge());
+        }
+    }
+
+    //The user cancelled the enrollment of onVisitorPhoto: only the local copy goes, the
+    //request stays pending and is offered again in the next session
+    public void visitorDeferred(Uri photo) {
+        visitorPhotoDone(photo);
+    }
+
+    //Deletes the local copy of a visitor photo; returns the id of its request
+    private String visitorPhotoDone(Uri photo) {
+        File file = new File(photo.getPath());
+        String fileName = file.getName();
+        String id = fileName.substring("visitor_".length(), fileName.length() - ".jpg".length());
+        visitorsInProgress.remove(id);
+        file.delete();
+        return id;
+    }
+
+    private long version(String name) {
+        return prefs.getLong("v:" + name, 0);
+    }
+
+    private void setVersion(String name, long version) {
+        prefs.edit().putLong("v:" + name, version).apply();
+    }
+
+    private Timestamp cursor() {
+        if (!prefs.contains("cursorSeconds"))
+            return null;
+        return new Timestamp(prefs.getLong("cursorSeconds", 0), prefs.getInt("cursorNanos", 0));
+    }
+
+    private void saveCursor(Timestamp updatedAt) {
+        Timestamp cursor = cursor();
+        if (cursor == null || updatedAt.compareTo(cursor) > 0)
+            prefs.edit().putLong("cursorSeconds", updatedAt.getSeconds()).putInt("cursorNanos", updatedAt.getNanoseconds()).apply();
+    }
+
+    //Stable per name, and free of characters Firestore ids do not allow
+    static String documentId(String name) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(name.getBytes(StandardCharsets.UTF_8));
+            StringBuilder id = new StringBuilder();
+            for (int i = 0; i < 12; i++)
+                id.append(String.format("%02x", digest[i]));
+            return id.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.mihir.alzheimerscaregiver.face_recognition;
+
+import android.os.SystemClock;
+
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+//Owns every buffer needed to run the embedding model on up to maxBatch faces, so that
+//the per-frame path does not allocate. Faces are packed one after another into a single
+//direct input buffer and run as one batch; the interpreter input is resized to the batch
+//on every run, which TFLite ignores unless the shape actually changed (several contexts
+//can share one interpreter, so a context cannot remember the shape itself). All buffers
+//are created up front. Quantized outputs land in a byte buffer and are dequantized
+//into the float embeddings with the output tensor's scale and zero point.
+public class InferenceContext {
+
+    private final int maxBatch;
+    private final int outputSize;
+    private final ByteBuffer input;        //Direct model input (maxBatch x size x size x 3)
+    private final int[] pixels;            //ARGB scratch for the face crop / preview
+    private final float[][][] embeddings;  //embeddings[n] has n rows, the exact output shape for a batch of n
+    private final Object[][] inputArrays;  //inputArrays[n] wraps a view of the first n faces of input
+    private final Map<Integer, Object>[] outputMaps;
+    private final int[][] shapes;
+
+    private final ByteBuffer quantizedOutput; //null for float outputs
+    private final boolean signedOutput;
+    private final float outputScale;
+    private final int outputZeroPoint;
+
+    private long tensorNanos, runNanos; //Last run: input resize and output handling, and the run itself
+
+    @SuppressWarnings("unchecked")
+    public InferenceContext(FaceModel model, int maxBatch) {
+        this.maxBatch = maxBatch;
+        this.outputSize = model.outputSize;
+        int inputSize = model.inputSize;
+        int faceBytes = model.inputBytesPerFace();
+        input = ByteBuffer.allocateDirect(faceBytes * maxBatch);
+        input.order(ByteOrder.nativeOrder());
+        pixels = new int[inputSize * inputSize];
+        embeddings = new float[maxBatch + 1][][];
+        inputArrays = new Object[maxBatch + 1][];
+        outputMaps = new Map[maxBatch + 1];
+        shapes = new int[maxBatch + 1][];
+
+        if (model.quantizedOutput()) {
+            quantizedOutput = ByteBuffer.allocateDirect(model.outputBytesPerFace() * maxBatch);
+            quantizedOutput.order(ByteOrder.nativeOrder());
+        } else {
+            quantizedOutput = null;
+        }
+        signedOutput = model.outputType == DataType.INT8;
+        outputScale = model.outputScale;
+        outputZeroPoint = model.outputZeroPoint;
+
+        for (int n = 1; n <= maxBatch; n++) {
+            input.limit(faceBytes * n);
+            ByteBuffer view = input.slice().order(ByteOrder.nativeOrder());
+            embeddings[n] = new float[n][outputSize];
+            inputArrays[n] = new Object[]{view};
+            outputMaps[n] = new HashMap<>();
+            if (quantizedOutput != null) {
+                quantizedOutput.limit(model.outputBytesPerFace() * n);
+                outputMaps[n].put(0, quantizedOutput.slice().order(ByteOrder.nativeOrder()));
+            } else {
+                outputMaps[n].put(0, embeddings[n]);
+            }
+            shapes[n] = new int[]{n, inputSize, inputSize, 3};
+        }
+        input.clear();
+        if (quantizedOutput != null)
+            quantizedOutput.clear();
+    }
+
+    public int maxBatch() {
+        return maxBatch;
+    }
+
+    //Rewound input buffer; fill it with one face after another
+    public ByteBuffer input() {
+        input.clear();
+        return input;
+    }
+
+    public int[] pixels() {
+        return pixels;
+    }
+
+    //Output of the last run of n faces. Overwritten by the next run; copy before keeping it.
+    public float[][] embeddings(int n) {
+        return embeddings[n];
+    }
+
+    //Callers sharing the interpreter between threads must hold its lock
+    public void run(Interpreter interpreter, int n) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        interpreter.resizeInput(0, shapes[n]); //Tensors are reallocated by the run only after a real change
+        if (quantizedOutput != null)
+            ((ByteBuffer) outputMaps[n].get(0)).clear();
+        long running = SystemClock.elapsedRealtimeNanos();
+        interpreter.runForMultipleInputsOutputs(inputArrays[n], outputMaps[n]);
+        long ran = SystemClock.elapsedRealtimeNanos();
+        if (quantizedOutput != null)
+            dequantize(n);
+        runNanos = ran - running;
+        tensorNanos = running - start + SystemClock.elapsedRealtimeNanos() - ran;
+    }
+
+    public long getTensorNanos() {
+        return tensorNanos;
+    }
+
+    public long getRunNanos() {
+        return runNanos;
+    }
+
+    //real = scale * (q - zeroPoint); a model without parameters (scale 0) keeps raw values
+    private void dequantize(int n) {
+        float scale = outputScale != 0 ? outputScale : 1;
+        float[][] rows = embeddings[n];
+        int index = 0;
+        for (int row = 0; row < n; row++) {
+            float[] embedding = rows[row];
+            for (int i = 0; i < outputSize; i++, index++) {
+                int q = signedOutput ? quantizedOutput.get(index) : quantizedOutput.get(index) & 0xFF;
+                embedding[i] = scale * (q - outputZeroPoint);
+            }
+        }
+    }
+}
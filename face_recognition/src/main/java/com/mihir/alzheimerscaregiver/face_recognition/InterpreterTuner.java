@@ -0,0 +1,232 @@
+package com.mihir.alzheimerscaregiver.face_recognition;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.SystemClock;
+
+import androidx.core.content.pm.PackageInfoCompat;
+
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+//Picks the fastest interpreter configuration for this device by timing the bundled model
+//on synthetic input: 1, 2 and 4 threads with XNNPACK on and off, and NNAPI where the
+//platform has it. A configuration only counts if every run succeeds, its output agrees
+//with the single-threaded reference and its timings are steady. Each model file's winner
+//is stored in SharedPreferences under its own keys, next to the device model and app
+//version it was measured on, so calibration runs once per device, release and model and
+//switching models keeps both results. Everything here runs on the CPU path; NNAPI is
+//only chosen if it actually beats it.
+public class InterpreterTuner {
+
+    public static class Config {
+        public final int threads;
+        public final boolean xnnpack;
+        public final boolean nnapi;
+
+        public Config(int threads, boolean xnnpack, boolean nnapi) {
+            this.threads = threads;
+            this.xnnpack = xnnpack;
+            this.nnapi = nnapi;
+        }
+
+        public Interpreter.Options options() {
+            Interpreter.Options options = new Interpreter.Options();
+            options.setNumThreads(threads);
+            options.setUseXNNPACK(xnnpack);
+            options.setUseNNAPI(nnapi);
+            return options;
+        }
+
+        String encode() {
+            return threads + "," + xnnpack + "," + nnapi;
+        }
+
+        static Config decode(String value) {
+            String[] parts = value.split(",");
+            if (parts.length != 3)
+                return null;
+            try {
+                return new Config(Integer.parseInt(parts[0]), Boolean.parseBoolean(parts[1]), Boolean.parseBoolean(parts[2]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return threads + (threads == 1 ? " thread" : " threads")
+                    + (xnnpack ? ", XNNPACK" : "") + (nnapi ? ", NNAPI" : "");
+        }
+    }
+
+    private static final String PREFS = "Distance";
+    private static final String KEY_DEVICE = "interpreter_device:"; //+ model file
+    private static final String KEY_CONFIG = "interpreter_config:"; //+ model file
+
+    private static final int WARMUP_RUNS = 3;
+    private static final int TIMED_RUNS = 15;
+    private static final float MAX_SPREAD = 2.0f;        //p90 / median above this is not steady
+    private static final float MIN_AGREEMENT = 0.99f;    //Cosine similarity with the reference output
+
+    //Used until this device has been calibrated
+    public static Config defaultConfig() {
+        return new Config(Math.min(4, Runtime.getRuntime().availableProcessors()), true, false);
+    }
+
+    //Stored configuration for this device model, app version and model, null if not calibrated yet
+    public static Config load(Context context, String modelFile) {
+        SharedPreferences sharedPref = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE);
+        if (!deviceKey(context).equals(sharedPref.getString(KEY_DEVICE + modelFile, null)))
+            return null;
+        String value = sharedPref.getString(KEY_CONFIG + modelFile, null);
+        return value != null ? Config.decode(value) : null;
+    }
+
+    public static void save(Context context, String modelFile, Config config) {
+        SharedPreferences.Editor editor = context.getSharedPreferences(PREFS, Context.MODE_PRIVATE).edit();
+        editor.putString(KEY_DEVICE + modelFile, deviceKey(context));
+        editor.putString(KEY_CONFIG + modelFile, config.encode());
+        editor.remove("interpreter_device").remove("interpreter_config"); //One slot for every model, before
+        editor.apply();
+    }
+
+    static String deviceKey(Context context) {
+        String version = "?";
+        try {
+            PackageInfo info = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+            version = info.versionName + "/" + PackageInfoCompat.getLongVersionCode(info);
+        } catch (PackageManager.NameNotFoundException e) {
+            e.printStackTrace();
+        }
+        return Build.MANUFACTURER + " " + Build.MODEL + " " + version;
+    }
+
+    static List<Config> candidates() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Config> configs = new ArrayList<>();
+        for (int threads : new int[]{1, 2, 4}) {
+            if (threads > 1 && threads > cores)
+                break;
+            configs.add(new Config(threads, false, false));
+            configs.add(new Config(threads, true, false));
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) //NNAPI 1.1, the first usable for float models
+            configs.add(new Config(1, false, true));
+        return configs;
+    }
+
+    //Blocking; run it off the main thread before the camera pipeline starts
+    public static Config tune(ByteBuffer model) {
+        Config best = null;
+        long bestMedian = Long.MAX_VALUE;
+        float[] reference = null;
+        ByteBuffer input = null;
+
+        for (Config config : candidates()) {
+            Interpreter interpreter = null;
+            try {
+                interpreter = new Interpreter(model, config.options());
+                if (input == null)
+                    input = syntheticInput(interpreter.getInputTensor(0));
+                Tensor outputTensor = interpreter.getOutputTensor(0);
+                ByteBuffer output = ByteBuffer.allocateDirect(outputTensor.numBytes()).order(ByteOrder.nativeOrder());
+
+                for (int i = 0; i < WARMUP_RUNS; i++)
+                    run(interpreter, input, output);
+                long[] times = new long[TIMED_RUNS];
+                for (int i = 0; i < TIMED_RUNS; i++) {
+                    long start = SystemClock.elapsedRealtimeNanos();
+                    run(interpreter, input, output);
+                    times[i] = SystemClock.elapsedRealtimeNanos() - start;
+                }
+
+                float[] result = values(output, outputTensor);
+                if (reference == null)
+                    reference = result; //The first candidate is single-threaded plain CPU
+                else if (agreement(reference, result) < MIN_AGREEMENT)
+                    continue;
+
+                Arrays.sort(times);
+                long median = times[TIMED_RUNS / 2];
+                long p90 = times[TIMED_RUNS * 9 / 10];
+                if (p90 > median * MAX_SPREAD)
+                    continue;
+                if (median < bestMedian) {
+                    bestMedian = median;
+                    best = config;
+                }
+            } catch (RuntimeException e) {
+                //Delegate not supported for this model on this device
+                e.printStackTrace();
+            } finally {
+                if (interpreter != null)
+                    interpreter.close();
+            }
+        }
+        return best != null ? best : defaultConfig();
+    }
+
+    private static void run(Interpreter interpreter, ByteBuffer input, ByteBuffer output) {
+        input.rewind();
+        output.rewind();
+        interpreter.run(input, output);
+    }
+
+    //Fixed-seed noise in the range of a normalized face crop
+    private static ByteBuffer syntheticInput(Tensor tensor) {
+        ByteBuffer input = ByteBuffer.allocateDirect(tensor.numBytes()).order(ByteOrder.nativeOrder());
+        Random random = new Random(112);
+        if (tensor.dataType() == DataType.FLOAT32) {
+            while (input.remaining() >= 4)
+                input.putFloat(random.nextFloat() * 2 - 1);
+        } else {
+            while (input.hasRemaining())
+                input.put((byte) random.nextInt(256));
+        }
+        input.rewind();
+        return input;
+    }
+
+    //Output as floats, quantized values relative to their zero point
+    private static float[] values(ByteBuffer output, Tensor tensor) {
+        output.rewind();
+        float[] values;
+        if (tensor.dataType() == DataType.FLOAT32) {
+            values = new float[output.remaining() / 4];
+            output.asFloatBuffer().get(values);
+        } else {
+            boolean signed = tensor.dataType() == DataType.INT8;
+            int zeroPoint = tensor.quantizationParams().getZeroPoint();
+            values = new float[output.remaining()];
+            for (int i = 0; i < values.length; i++)
+                values[i] = (signed ? output.get(i) : output.get(i) & 0xFF) - zeroPoint;
+        }
+        return values;
+    }
+
+    private static float agreement(float[] a, float[] b) {
+        if (a.length != b.length)
+            return 0;
+        double dot = 0, normA = 0, normB = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (Float.isNaN(b[i]) || Float.isInfinite(b[i]))
+                return 0;
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        return normA == 0 || normB == 0 ? 0 : (float) (dot / Math.sqrt(normA * normB));
+    }
+}
@@ -0,0 +1,120 @@
+package com.mihir.alzheimerscaregiver.face_recognition;
+
+import android.os.SystemClock;
+
+import com.mihir.alzheimerscaregiver.face_core.FaceCropSampler;
+import com.mihir.alzheimerscaregiver.face_core.FaceGallery;
+
+import org.tensorflow.lite.Interpreter;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+
+//Developer mode: runs the float and the quantized model on the same recent face crops
+//and reports size, latency, how close their embeddings are and whether both models come
+//to the same recognition decision against the current gallery. Blocking; run it off the
+//main thread.
+public class ModelComparison {
+
+    private static final int TIMED_RUNS = 5; //Per crop and model, after one warm-up run
+
+    private static class Run {
+        FaceModel model;
+        float[][] embeddings;
+        String[] decisions;
+        float[] distances;
+        long medianNanos;
+    }
+
+    public static String compare(String floatFile, ByteBuffer floatModel,
+                                 String quantizedFile, ByteBuffer quantizedModel,
+                                 InterpreterTuner.Config config, int[][] crops, int cropCount,
+                                 float mean, float std, FaceGallery gallery, float threshold) {
+        Run floatRun = run(floatFile, floatModel, config, crops, cropCount, mean, std, gallery, threshold);
+        Run quantizedRun = run(quantizedFile, quantizedModel, config, crops, cropCount, mean, std, gallery, threshold);
+
+        double cosineSum = 0, distanceDiffSum = 0;
+        float cosineMin = Float.MAX_VALUE;
+        int sameDecision = 0, matched = 0;
+        for (int i = 0; i < cropCount; i++) {
+            float cosine = cosine(floatRun.embeddings[i], quantizedRun.embeddings[i]);
+            cosineSum += cosine;
+            cosineMin = Math.min(cosineMin, cosine);
+            if (floatRun.decisions[i].equals(quantizedRun.decisions[i]))
+                sameDecision++;
+            if (floatRun.distances[i] < Float.MAX_VALUE && quantizedRun.distances[i] < Float.MAX_VALUE) {
+                distanceDiffSum += Math.abs(floatRun.distances[i] - quantizedRun.distances[i]);
+                matched++;
+            }
+        }
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.US, "Face crops: %d\n\n", cropCount));
+        append(report, "Float", floatRun, floatModel);
+        append(report, "Quantized", quantizedRun, quantizedModel);
+        report.append(String.format(Locale.US, "Speed-up: %.1fx\n",
+                floatRun.medianNanos / (double) Math.max(1, quantizedRun.medianNanos)));
+        report.append(String.format(Locale.US, "Embedding cosine: mean %.3f, min %.3f\n",
+                cosineSum / cropCount, cosineMin));
+        report.append(String.format(Locale.US, "Same decision: %d/%d\n", sameDecision, cropCount));
+        if (matched > 0)
+            report.append(String.format(Locale.US, "Mean distance difference: %.3f\n", distanceDiffSum / matched));
+        return report.toString();
+    }
+
+    private static void append(StringBuilder report, String title, Run run, ByteBuffer buffer) {
+        report.append(title).append(": ").append(run.model).append('\n');
+        report.append(String.format(Locale.US, "  %.1f MB, %.2f ms per face\n\n",
+                buffer.capacity() / (1024.0 * 1024.0), run.medianNanos / 1e6));
+    }
+
+    private static Run run(String file, ByteBuffer modelBuffer, InterpreterTuner.Config config,
+                           int[][] crops, int cropCount, float mean, float std,
+                           FaceGallery gallery, float threshold) {
+        Run run = new Run();
+        Interpreter interpreter = new Interpreter(modelBuffer, config.options());
+        try {
+            run.model = FaceModel.describe(file, interpreter);
+            FaceCropSampler sampler = run.model.newSampler(mean, std);
+            InferenceContext context = new InferenceContext(run.model, 1);
+            int pixels = run.model.inputSize * run.model.inputSize;
+            FaceGallery.Match match = new FaceGallery.Match();
+
+            run.embeddings = new float[cropCount][];
+            run.decisions = new String[cropCount];
+            run.distances = new float[cropCount];
+            long[] times = new long[cropCount * TIMED_RUNS];
+            int timed = 0;
+            for (int i = 0; i < cropCount; i++) {
+                sampler.pack(crops[i], pixels, context.input());
+                context.run(interpreter, 1); //Warm-up
+                for (int r = 0; r < TIMED_RUNS; r++) {
+                    long start = SystemClock.elapsedRealtimeNanos();
+                    context.run(interpreter, 1);
+                    times[timed++] = SystemClock.elapsedRealtimeNanos() - start;
+                }
+                float[] embedding = context.embeddings(1)[0].clone();
+                run.embeddings[i] = embedding;
+                gallery.findNearest(embedding, match);
+                run.distances[i] = match.distance;
+                run.decisions[i] = !match.found() ? "" : match.distance < threshold ? match.name : "Unknown";
+            }
+            Arrays.sort(times);
+            run.medianNanos = times[times.length / 2];
+        } finally {
+            interpreter.close();
+        }
+        return run;
+    }
+
+    private static float cosine(float[] a, float[] b) {
+        double dot = 0, normA = 0, normB = 0;
+        for (int i = 0; i < a.length; i++) {
+            dot += a[i] * b[i];
+            normA += a[i] * a[i];
+            normB += b[i] * b[i];
+        }
+        return normA == 0 || normB == 0 ? 0 : (float) (dot / Math.sqrt(normA * normB));
+    }
+}
@@ -0,0 +1,121 @@
+package com.mihir.alzheimerscaregiver.face_recognition;
+
+import com.mihir.alzheimerscaregiver.face_core.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Latency of every FacePipeline stage per frame, frame rate and dropped frames, for the
+//developer overlay and the CSV export. Stages record from their own threads into
+//LatencyHistograms, so nothing here takes a lock.
+public class PipelineStats {
+
+    public static final int DETECT = 0;       //ML Kit detection, from analyze() to its result
+    public static final int YUV = 1;          //YUV to ARGB conversion
+    public static final int CROP = 2;         //Crop, resize and tensor fill of the frame's faces (one fused pass)
+    public static final int TENSOR = 3;       //Input resize and output (de)quantization around the run
+    public static final int RUN = 4;          //runForMultipleInputsOutputs
+    public static final int MATCH = 5;        //findNearest of the frame's faces
+    public static final int UI = 6;           //Post to the main thread until the listener returned
+    public static final int TOTAL = 7;        //Admission to delivery
+    static final String[] NAMES = {"detect", "yuv", "crop", "tensor_fill", "run", "find_nearest", "ui_post", "total"};
+
+    private static final long FPS_WINDOW_NS = 1_000_000_000L;
+
+    private final LatencyHistogram[] stages = new LatencyHistogram[NAMES.length];
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+
+    //Main thread only
+    private long windowStart = -1, windowFrames;
+    private volatile float fps;
+
+    public PipelineStats() {
+        for (int i = 0; i < stages.length; i++)
+            stages[i] = new LatencyHistogram();
+    }
+
+    public void record(int stage, long nanos) {
+        stages[stage].recordNanos(nanos);
+    }
+
+    public LatencyHistogram stage(int stage) {
+        return stages[stage];
+    }
+
+    public void frameDropped() {
+        dropped.incrementAndGet();
+    }
+
+    public long getDroppedFrames() {
+        return dropped.get();
+    }
+
+    //Main thread, once per delivered frame
+    public void frameDelivered(long nowNanos) {
+        delivered.incrementAndGet();
+        if (windowStart < 0)
+            windowStart = nowNanos;
+        windowFrames++;
+        long elapsed = nowNanos - windowStart;
+        if (elapsed >= FPS_WINDOW_NS) {
+            fps = windowFrames * 1e9f / elapsed;
+            windowStart = nowNanos;
+            windowFrames = 0;
+        }
+    }
+
+    public float getFps() {
+        return fps;
+    }
+
+    //Main thread: histograms, counters and the fps window start over
+    public void reset() {
+        for (LatencyHistogram stage : stages)
+            stage.reset();
+        dropped.set(0);
+        delivered.set(0);
+        windowStart = -1;
+        windowFrames = 0;
+        fps = 0;
+    }
+
+    //Overlay text: one line per stage, times in milliseconds
+    public String describe(long skipped) {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format(Locale.US, "%.1f fps, %d frames, %d dropped, %d skipped\n",
+                fps, delivered.get(), dropped.get(), skipped));
+        text.append("stage         p50   p95   p99 (ms)");
+        for (int i = 0; i < stages.length; i++) {
+            LatencyHistogram stage = stages[i];
+            text.append(String.format(Locale.US, "\n%-12s %5.1f %5.1f %5.1f", NAMES[i],
+                    stage.percentile(0.50) / 1000f, stage.percentile(0.95) / 1000f, stage.percentile(0.99) / 1000f));
+        }
+        return text.toString();
+    }
+
+    //Every non-empty bucket of every stage, after a commented summary:
+    //stage,bucket_lower_us,bucket_upper_us,count
+    public void writeCsv(Writer out, long skipped) throws IOException {
+        out.write(String.format(Locale.US, "# fps=%.2f frames=%d dropped=%d skipped=%d\n",
+                fps, delivered.get(), dropped.get(), skipped));
+        for (int i = 0; i < stages.length; i++) {
+            LatencyHistogram stage = stages[i];
+            out.write(String.format(Locale.US, "# %s count=%d mean_us=%d p50_us=%d p95_us=%d p99_us=%d max_us=%d\n",
+                    NAMES[i], stage.count(), stage.mean(), stage.percentile(0.50),
+                    stage.percentile(0.95), stage.percentile(0.99), stage.max()));
+        }
+        out.write("stage,bucket_lower_us,bucket_upper_us,count\n");
+        for (int i = 0; i < stages.length; i++) {
+            LatencyHistogram stage = stages[i];
+            for (int b = 0; b < LatencyHistogram.BUCKETS; b++) {
+                long count = stage.bucketCount(b);
+                if (count > 0)
+                    out.write(NAMES[i] + "," + LatencyHistogram.lowerBound(b) + ","
+                            + LatencyHistogram.upperBound(b) + "," + count + "\n");
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.mihir.alzheimerscaregiver.face_recognition;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.util.AttributeSet;
+import android.view.View;
+
+import com.mihir.alzheimerscaregiver.face_core.ThresholdCalibration;
+
+import java.util.Locale;
+
+//False-accept (red) and false-reject (blue) rate against the distance threshold, on a
+//log scale from 0.01% to 100%, with the current threshold (grey) and the suggested one (green).
+public class RocView extends View {
+
+    private static final float MAX_THRESHOLD = 1.6f; //Beyond this everyone is accepted
+    private static final int MIN_DECADE = -4;        //0.01%
+    private static final String[] DECADE_LABELS = {".01%", ".1%", "1%", "10%", "100%"};
+    private static final int STEPS = 160;
+
+    private final Paint farPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint frrPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint axisPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint currentPaint = new Paint();
+    private final Paint suggestedPaint = new Paint();
+    private final Path path = new Path();
+    private final float density;
+
+    private ThresholdCalibration calibration;
+    private float current, suggested;
+
+    public RocView(Context context) {
+        this(context, null);
+    }
+
+    public RocView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        density = getResources().getDisplayMetrics().density;
+        farPaint.setStyle(Paint.Style.STROKE);
+        farPaint.setStrokeWidth(2 * density);
+        farPaint.setColor(Color.RED);
+        frrPaint.set(farPaint);
+        frrPaint.setColor(Color.BLUE);
+        axisPaint.setColor(Color.DKGRAY);
+        axisPaint.setTextSize(10 * density);
+        currentPaint.setColor(Color.GRAY);
+        currentPaint.setStrokeWidth(density);
+        suggestedPaint.setColor(0xFF00A000);
+        suggestedPaint.setStrokeWidth(2 * density);
+    }
+
+    public void setCalibration(ThresholdCalibration calibration, float current, float suggested) {
+        this.calibration = calibration;
+        this.current = current;
+        this.suggested = suggested;
+        invalidate();
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int width = MeasureSpec.getSize(widthMeasureSpec);
+        setMeasuredDimension(width, Math.round(width * 0.6f));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (calibration == null)
+            return;
+        float left = 36 * density, top = 8 * density;
+        float right = getWidth() - 8 * density, bottom = getHeight() - 20 * density;
+
+        //Decades and threshold ticks
+        for (int decade = MIN_DECADE; decade <= 0; decade++) {
+            float y = y(Math.pow(10, decade), top, bottom);
+            canvas.drawLine(left, y, right, y, currentPaint);
+            canvas.drawText(DECADE_LABELS[decade - MIN_DECADE], 0, y + 4 * density, axisPaint);
+        }
+        for (int tick = 0; tick <= 8; tick++) {
+            float t = tick * 0.2f;
+            canvas.drawText(String.format(Locale.US, "%.1f", t), x(t, left, right) - 6 * density, getHeight() - 4 * density, axisPaint);
+        }
+
+        canvas.drawLine(x(current, left, right), top, x(current, left, right), bottom, currentPaint);
+        canvas.drawLine(x(suggested, left, right), top, x(suggested, left, right), bottom, suggestedPaint);
+
+        drawCurve(canvas, true, left, top, right, bottom);
+        drawCurve(canvas, false, left, top, right, bottom);
+    }
+
+    private void drawCurve(Canvas canvas, boolean far, float left, float top, float right, float bottom) {
+        path.reset();
+        for (int step = 0; step <= STEPS; step++) {
+            float threshold = step * MAX_THRESHOLD / STEPS;
+            float rate = far ? calibration.falseAcceptRate(threshold) : calibration.falseRejectRate(threshold);
+            float x = x(threshold, left, right), y = y(rate, top, bottom);
+            if (step == 0)
+                path.moveTo(x, y);
+            else
+                path.lineTo(x, y);
+        }
+        canvas.drawPath(path, far ? farPaint : frrPaint);
+    }
+
+    private static float x(float threshold, float left, float right) {
+        return left + (right - left) * Math.min(threshold, MAX_THRESHOLD) / MAX_THRESHOLD;
+    }
+
+    //Rates below 0.01% (including 0) sit on the bottom edge
+    private static float y(double rate, float top, float bottom) {
+        double decades = Math.log10(Math.max(rate, Math.pow(10, MIN_DECADE)));
+        return (float) (top + (bottom - top) * decades / MIN_DECADE);
+    }
+}
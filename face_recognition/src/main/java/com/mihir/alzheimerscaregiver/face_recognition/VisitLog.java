@@ -0,0 +1,224 @@
+package com.mihir.alzheimerscaregiver.face_recognition;
+
+import com.mihir.alzheimerscaregiver.face_core.VisitSessions;
+import com.mihir.alzheimerscaregiver.face_core.VisitSessions.Visit;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+//Closed visits (VisitSessions) in an append-only file, with a day index so a range query
+//reads only the days it covers.
+//
+//Record layout (little endian), framed like GalleryJournal:
+//  int    payload length
+//  int    CRC32 of the payload
+//  long   first sighting, epoch ms
+//  int    duration in ms
+//  float  best distance
+//  int    sightings
+//  short  name length, UTF-8 name
+//
+//Records fall into UTC day buckets: a record belongs to the day of its last sighting, or
+//to the bucket before it when that one is later (a visit written late), so buckets only
+//grow along the file. The index file lists every bucket as (int day, long offset of its
+//first record), 12 bytes each, appended when a bucket begins. It is only a cache: when it
+//does not agree with the log it is rebuilt from the log.
+//A visit is written within a gap of its last sighting and lasts at most MAX_VISIT_MS, so
+//every visit overlapping [from, to) is in the buckets day(from) to day(to + MAX_VISIT_MS) + 1.
+//A torn last record is cut off on open, as in GalleryJournal. Methods block on file I/O;
+//call them off the main thread.
+public class VisitLog {
+
+    static final long DAY_MS = 24L * 60 * 60 * 1000;
+    private static final int RECORD_HEADER = 8;
+    private static final int INDEX_ENTRY = 12;
+
+    private final File file, indexFile;
+    private final TreeMap<Integer, Long> buckets = new TreeMap<>(); //Day to offset of its first record
+    private int lastBucket = Integer.MIN_VALUE;
+    private long length; //Valid bytes of the log
+    private boolean opened;
+
+    public VisitLog(File file, File indexFile) {
+        this.file = file;
+        this.indexFile = indexFile;
+    }
+
+    static int day(long epochMs) {
+        return (int) Math.floorDiv(epochMs, DAY_MS);
+    }
+
+    public synchronized void append(Visit visit) throws IOException {
+        open();
+        byte[] name = visit.name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(8 + 4 + 4 + 4 + 2 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+        payload.putLong(visit.firstSeen);
+        payload.putInt((int) visit.durationMs());
+        payload.putFloat(visit.bestDistance);
+        payload.putInt(visit.sightings);
+        payload.putShort((short) name.length);
+        payload.put(name);
+        payload.flip();
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + payload.remaining()).order(ByteOrder.LITTLE_ENDIAN);
+        record.putInt(payload.remaining());
+        record.putInt((int) crc.getValue());
+        record.put(payload);
+        record.flip();
+        write(file, record);
+
+        int bucket = Math.max(day(visit.lastSeen), lastBucket);
+        if (bucket != lastBucket)
+            startBucket(bucket, length, true);
+        length += record.capacity();
+    }
+
+    //Adds the visits overlapping [from, to) to out, in the order they were written
+    public synchronized void query(long from, long to, List<Visit> out) throws IOException {
+        open();
+        Map.Entry<Integer, Long> first = buckets.ceilingEntry(day(from));
+        if (first == null || from >= to)
+            return;
+        Map.Entry<Integer, Long> after = buckets.higherEntry(day(to + VisitSessions.MAX_VISIT_MS) + 1);
+        long start = first.getValue(), end = after != null ? after.getValue() : length;
+        if (end <= start)
+            return;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            CRC32 crc = new CRC32();
+            Visit visit;
+            while ((visit = next(map, crc)) != null)
+                if (visit.lastSeen >= from && visit.firstSeen < to)
+                    out.add(visit);
+        }
+    }
+
+    //Loads the index, finishes it from the records written after its last bucket (or from
+    //the whole log when it does not fit the log) and cuts off a torn tail
+    private void open() throws IOException {
+        if (opened)
+            return;
+        long size = file.exists() ? file.length() : 0;
+        buckets.clear();
+        lastBucket = Integer.MIN_VALUE;
+        if (!readIndex(size)) {
+            buckets.clear();
+            lastBucket = Integer.MIN_VALUE;
+            if (indexFile.exists() && !indexFile.delete())
+                throw new IOException("Cannot rebuild " + indexFile);
+        }
+        long start = buckets.isEmpty() ? 0 : buckets.lastEntry().getValue();
+        length = start;
+        if (size > start) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                 FileChannel channel = raf.getChannel()) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, start, size - start);
+                map.order(ByteOrder.LITTLE_ENDIAN);
+                CRC32 crc = new CRC32();
+                Visit visit;
+                while ((visit = next(map, crc)) != null) {
+                    int bucket = Math.max(day(visit.lastSeen), lastBucket);
+                    if (bucket != lastBucket)
+                        startBucket(bucket, length, true);
+                    length = start + map.position();
+                }
+                if (length < size)
+                    channel.truncate(length); //Drop a torn or corrupt tail
+            }
+        }
+        opened = true;
+    }
+
+    //False if the index is unreadable or points past the log
+    private boolean readIndex(long logSize) throws IOException {
+        if (!indexFile.exists())
+            return true;
+        long indexSize = indexFile.length();
+        if (indexSize % INDEX_ENTRY != 0)
+            return false;
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+             FileChannel channel = raf.getChannel()) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, indexSize);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            long lastOffset = -1;
+            while (map.hasRemaining()) {
+                int day = map.getInt();
+                long offset = map.getLong();
+                if (day <= lastBucket || offset <= lastOffset || offset >= logSize)
+                    return false;
+                startBucket(day, offset, false);
+                lastOffset = offset;
+            }
+        }
+        return true;
+    }
+
+    private void startBucket(int day, long offset, boolean persist) throws IOException {
+        buckets.put(day, offset);
+        lastBucket = day;
+        if (persist) {
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY).order(ByteOrder.LITTLE_ENDIAN);
+            entry.putInt(day);
+            entry.putLong(offset);
+            entry.flip();
+            write(indexFile, entry);
+        }
+    }
+
+    //The next valid record, null at the end or at a torn or corrupt record
+    private static Visit next(ByteBuffer map, CRC32 crc) {
+        if (map.remaining() < RECORD_HEADER)
+            return null;
+        int position = map.position();
+        int length = map.getInt();
+        int checksum = map.getInt();
+        if (length < 22 || length > map.remaining()) {
+            map.position(position);
+            return null;
+        }
+        ByteBuffer payload = map.slice();
+        payload.limit(length);
+        payload.order(ByteOrder.LITTLE_ENDIAN);
+        crc.reset();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            map.position(position);
+            return null;
+        }
+        long firstSeen = payload.getLong();
+        int duration = payload.getInt();
+        float bestDistance = payload.getFloat();
+        int sightings = payload.getInt();
+        byte[] name = new byte[payload.getShort() & 0xFFFF];
+        if (name.length != payload.remaining()) {
+            map.position(position);
+            return null;
+        }
+        payload.get(name);
+        map.position(position + RECORD_HEADER + length);
+        return new Visit(new String(name, StandardCharsets.UTF_8), firstSeen, firstSeen + duration, bestDistance, sightings);
+    }
+
+    private static void write(File target, ByteBuffer data) throws IOException {
+        try (FileOutputStream stream = new FileOutputStream(target, true)) {
+            FileChannel channel = stream.getChannel();
+            while (data.hasRemaining())
+                channel.write(data);
+            stream.getFD().sync();
+        }
+    }
+}
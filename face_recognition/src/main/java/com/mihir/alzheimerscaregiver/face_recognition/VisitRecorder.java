@@ -0,0 +1,180 @@
+package com.mihir.alzheimerscaregiver.face_recognition;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.firebase.Timestamp;
+import com.google.firebase.firestore.CollectionReference;
+import com.google.firebase.firestore.FieldValue;
+import com.google.firebase.firestore.FirebaseFirestore;
+
+import com.mihir.alzheimerscaregiver.face_core.IdentityVote;
+import com.mihir.alzheimerscaregiver.face_core.VisitSessions;
+import com.mihir.alzheimerscaregiver.face_core.VisitSessions.Visit;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+//Turns the recognized names of pipeline frames into visits (VisitSessions) and writes
+//each closed visit to the VisitLog. When a patient is linked, it also keeps one aggregate
+//per person and day under patients/{patientId}/visits for the caretaker app:
+//    name, day ("yyyy-MM-dd", local), date (start of that day), visits, minutes,
+//    firstSeen, lastSeen, bestDistance, updatedAt
+//A day's aggregate is recomputed from the log whenever one of its visits closes, so
+//Firestore sees a few writes a day instead of one per frame.
+//Frames arrive on the main thread; the log and the uploads run on one background thread.
+public class VisitRecorder {
+
+    private static final String TAG = "VisitRecorder";
+    static final String COLLECTION = "visits";
+
+    public interface Callback {
+        //Main thread
+        void onTotals(List<VisitSessions.Total> totals);
+    }
+
+    private static VisitLog log; //Shared by the activity and DoorwayService
+
+    private final VisitSessions sessions = new VisitSessions();
+    private final VisitLog visitLog;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, "VisitRecorder"));
+    private final Handler main = new Handler(Looper.getMainLooper());
+    private final List<Visit> closed = new ArrayList<>(); //Main thread scratch
+    private volatile CollectionReference visits;          //null while no patient is linked
+
+    public VisitRecorder(Context context) {
+        visitLog = log(context);
+    }
+
+    private static synchronized VisitLog log(Context context) {
+        if (log == null) {
+            File dir = context.getApplicationContext().getFilesDir();
+            log = new VisitLog(new File(dir, "visits.bin"), new File(dir, "visits.idx"));
+        }
+        return log;
+    }
+
+    public void setPatient(FirebaseFirestore db, String patientId) {
+        visits = db.collection("patients").document(patientId).collection(COLLECTION);
+    }
+
+    //Main thread, every delivered frame (also those without faces, which close visits)
+    public void record(FacePipeline.Frame frame) {
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < frame.count; i++) {
+            String name = frame.labels[i];
+            if (name != null && !name.equals(IdentityVote.UNKNOWN))
+                sessions.seen(name, frame.tracks[i].distance(), now, closed);
+        }
+        sessions.expire(now, closed);
+        flush();
+    }
+
+    //Recognition stops: open visits end now
+    public void close() {
+        sessions.closeAll(closed);
+        flush();
+        writer.shutdown(); //Queued writes still finish
+    }
+
+    //Per person totals of [from, to), read from the log in the background
+    public void totals(long from, long to, Callback callback) {
+        writer.execute(() -> {
+            List<Visit> found = new ArrayList<>();
+            try {
+                visitLog.query(from, to, found);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not read visits", e);
+            }
+            List<VisitSessions.Total> totals = VisitSessions.totals(found, from, to);
+            main.post(() -> callback.onTotals(totals));
+        });
+    }
+
+    private void flush() {
+        if (closed.isEmpty())
+            return;
+        List<Visit> done = new ArrayList<>(closed);
+        closed.clear();
+        writer.execute(() -> {
+            Set<String> days = new LinkedHashSet<>(); //"dayStart name" of the aggregates to refresh
+            for (Visit visit : done) {
+                try {
+                    visitLog.append(visit);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not save the visit of " + visit.name, e);
+                }
+                for (long day = startOfDay(visit.firstSeen); day <= visit.lastSeen; day = nextDay(day))
+                    days.add(day + " " + visit.name);
+            }
+            CollectionReference visits = this.visits;
+            if (visits == null)
+                return;
+            for (String key : days) {
+                int space = key.indexOf(' ');
+                push(visits, Long.parseLong(key.substring(0, space)), key.substring(space + 1));
+            }
+        });
+    }
+
+    //Writer thread
+    private void push(CollectionReference visits, long dayStart, String name) {
+        long dayEnd = nextDay(dayStart);
+        List<Visit> found = new ArrayList<>();
+        try {
+            visitLog.query(dayStart, dayEnd, found);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read visits", e);
+            return;
+        }
+        for (VisitSessions.Total total : VisitSessions.totals(found, dayStart, dayEnd)) {
+            if (!total.name.equals(name))
+                continue;
+            String day = new SimpleDateFormat("yyyy-MM-dd", Locale.US).format(new Date(dayStart));
+            Map<String, Object> data = new HashMap<>();
+            data.put("name", name);
+            data.put("day", day);
+            data.put("date", new Timestamp(new Date(dayStart)));
+            data.put("visits", total.visits);
+            data.put("minutes", Math.round(total.timeMs / 60000.0));
+            data.put("firstSeen", new Timestamp(new Date(total.firstSeen)));
+            data.put("lastSeen", new Timestamp(new Date(total.lastSeen)));
+            data.put("bestDistance", total.bestDistance);
+            data.put("updatedAt", FieldValue.serverTimestamp());
+            visits.document(day + "_" + GallerySync.documentId(name)).set(data)
+                    .addOnFailureListener(e -> Log.w(TAG, "Could not upload visits of " + name, e));
+        }
+    }
+
+    //Local midnight at or before time
+    static long startOfDay(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+
+    static long nextDay(long dayStart) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(dayStart);
+        calendar.add(Calendar.DAY_OF_MONTH, 1); //23 or 25 hours across a clock change
+        return calendar.getTimeInMillis();
+    }
+}
@@ -0,0 +1,107 @@
+package com.mihir.alzheimerscaregiver.face_recognition;
+
+import android.graphics.Rect;
+import android.media.Image;
+
+import com.mihir.alzheimerscaregiver.face_core.Yuv420;
+import com.mihir.alzheimerscaregiver.face_core.YuvPlane;
+
+import java.nio.ByteBuffer;
+
+//Converts YUV_420_888 camera frames straight to ARGB pixels (no NV21/JPEG round trip).
+//The planes are copied out of the Image and converted by face_core's Yuv420.
+//Also cuts a region of a frame out as NV21 for face detection in that region only.
+//Plane copies and the output buffers are reused across frames, so a converter
+//instance must only be used from one thread at a time.
+public class YuvConverter {
+
+    private final YuvPlane y = new YuvPlane();
+    private final YuvPlane u = new YuvPlane();
+    private final YuvPlane v = new YuvPlane();
+    private int[] argb = new int[0];
+    private byte[] nv21 = new byte[0];
+    private int width, height;
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    //Pixels of the last converted frame, row-major, width*height valid entries
+    public int[] getPixels() {
+        return argb;
+    }
+
+    public int[] convert(Image image) {
+        Image.Plane[] planes = image.getPlanes();
+        width = image.getWidth();
+        height = image.getHeight();
+
+        copyPlane(planes[0], y);
+        copyPlane(planes[1], u);
+        copyPlane(planes[2], v);
+
+        if (argb.length < width * height) {
+            argb = new int[width * height];
+        }
+
+        Yuv420.toArgb(y, u, v, width, height, argb);
+        return argb;
+    }
+
+    //The even-aligned sensor rectangle r of image as NV21 (a width*height Y plane, then
+    //interleaved V and U at half resolution). Only the region is read from the planes.
+    //The array is reused by the next call.
+    public byte[] cropNv21(Image image, Rect r) {
+        int width = r.width(), height = r.height();
+        int size = width * height * 3 / 2;
+        if (nv21.length != size) { //InputImage.fromByteArray wants the exact size
+            nv21 = new byte[size];
+        }
+        Image.Plane[] planes = image.getPlanes();
+
+        ByteBuffer yBuffer = planes[0].getBuffer();
+        int yRowStride = planes[0].getRowStride(), yPixelStride = planes[0].getPixelStride();
+        int pos = 0;
+        for (int row = r.top; row < r.bottom; row++) {
+            int start = row * yRowStride + r.left * yPixelStride;
+            if (yPixelStride == 1) {
+                yBuffer.position(start);
+                yBuffer.get(nv21, pos, width);
+                pos += width;
+            } else {
+                for (int col = 0; col < width; col++)
+                    nv21[pos++] = yBuffer.get(start + col * yPixelStride);
+            }
+        }
+
+        ByteBuffer uBuffer = planes[1].getBuffer(), vBuffer = planes[2].getBuffer();
+        int uRowStride = planes[1].getRowStride(), uPixelStride = planes[1].getPixelStride();
+        int vRowStride = planes[2].getRowStride(), vPixelStride = planes[2].getPixelStride();
+        for (int row = r.top >> 1; row < r.bottom >> 1; row++) {
+            int u = row * uRowStride + (r.left >> 1) * uPixelStride;
+            int v = row * vRowStride + (r.left >> 1) * vPixelStride;
+            for (int col = 0; col < width >> 1; col++) {
+                nv21[pos++] = vBuffer.get(v + col * vPixelStride);
+                nv21[pos++] = uBuffer.get(u + col * uPixelStride);
+            }
+        }
+        yBuffer.rewind();
+        return nv21;
+    }
+
+    private void copyPlane(Image.Plane plane, YuvPlane dst) {
+        ByteBuffer buffer = plane.getBuffer();
+        buffer.rewind();
+        int size = buffer.remaining();
+        byte[] data = dst.data;
+        if (data.length < size) {
+            data = new byte[size];
+        }
+        buffer.get(data, 0, size);
+        dst.set(data, plane.getRowStride(), plane.getPixelStride());
+    }
+}